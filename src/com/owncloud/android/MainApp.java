@@ -20,8 +20,6 @@ import android.app.Application;
 import android.content.Context;
 
 import com.owncloud.android.datamodel.ThumbnailsCacheManager;
-import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
-import com.owncloud.android.lib.common.OwnCloudClientManagerFactory.Policy;
 import com.owncloud.android.lib.common.utils.Log_OC;
 /**
  * Main Application of the project
@@ -34,27 +32,14 @@ import com.owncloud.android.lib.common.utils.Log_OC;
  */
 public class MainApp extends Application {
     
-    private static final String AUTH_ON = "on";
-    
-    @SuppressWarnings("unused")
-    private static final String POLICY_SINGLE_SESSION_PER_ACCOUNT = "single session per account";
-    @SuppressWarnings("unused")
-    private static final String POLICY_ALWAYS_NEW_CLIENT = "always new client";
-
     private static Context mContext;
     
     public void onCreate(){
         super.onCreate();
         MainApp.mContext = getApplicationContext();
         
-        boolean isSamlAuth = AUTH_ON.equals(getString(R.string.auth_method_saml_web_sso));
-        
-        if (isSamlAuth) {   
-            OwnCloudClientManagerFactory.setDefaultPolicy(Policy.SINGLE_SESSION_PER_ACCOUNT);
-            
-        } else {
-            OwnCloudClientManagerFactory.setDefaultPolicy(Policy.ALWAYS_NEW_CLIENT);
-        }
+        // clients to the server of every account are shared by all the services, for every 
+        // authentication method; see OwnCloudClientPool
         
         // initialise thumbnails cache on background thread
         new ThumbnailsCacheManager.InitDiskCacheTask().execute();
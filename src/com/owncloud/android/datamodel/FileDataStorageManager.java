@@ -148,6 +148,41 @@ public class FileDataStorageManager {
     }
     
     
+    /**
+     * @param folder    Folder in the database.
+     * @return          Number of files and folders directly contained in the folder, counted
+     *                  without loading them.
+     */
+    public int getFolderContentCount(OCFile folder) {
+        if (folder == null || !folder.isFolder() || folder.getFileId() == -1) {
+            return 0;
+        }
+        Uri req_uri = Uri.withAppendedPath(
+                ProviderTableMeta.CONTENT_URI_DIR,
+                String.valueOf(folder.getFileId()));
+        String[] projection = new String[] { ProviderTableMeta._ID };
+        String where = ProviderTableMeta.FILE_PARENT + "=?";
+        String[] whereArgs = new String[] { String.valueOf(folder.getFileId()) };
+        Cursor c = null;
+        if (getContentProviderClient() != null) {
+            try {
+                c = getContentProviderClient().query(req_uri, projection, where, whereArgs, null);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, e.getMessage());
+                return 0;
+            }
+        } else {
+            c = getContentResolver().query(req_uri, projection, where, whereArgs, null);
+        }
+        int count = 0;
+        if (c != null) {
+            count = c.getCount();
+            c.close();
+        }
+        return count;
+    }
+    
+    
     public Vector<OCFile> getFolderImages(OCFile folder) {
         Vector<OCFile> ret = new Vector<OCFile>(); 
         if (folder != null) {
@@ -192,6 +227,7 @@ public class FileDataStorageManager {
         cv.put(ProviderTableMeta.FILE_PERMISSIONS, file.getPermissions());
         cv.put(ProviderTableMeta.FILE_REMOTE_ID, file.getRemoteId());
         cv.put(ProviderTableMeta.FILE_UPDATE_THUMBNAIL, file.needsUpdateThumbnail());
+        putContentDigests(cv, file);
         
         boolean sameRemotePath = fileExists(file.getRemotePath());
         if (sameRemotePath ||
@@ -253,6 +289,112 @@ public class FileDataStorageManager {
     }
 
 
+    /**
+     * Updates the digests of the contents of a file, together with the dates of its last
+     * synchronization of data, without changing any other property.
+     * 
+     * Lets the synchronization of contents of a file record its result without overwriting
+     * properties that could have been refreshed meanwhile from the server.
+     * 
+     * @param file      File with the values to save; must exist in the database.
+     */
+    public void updateContentDigests(OCFile file) {
+        ContentValues cv = new ContentValues();
+        putContentDigests(cv, file);
+        cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, file.getLastSyncDateForData());
+        cv.put(
+            ProviderTableMeta.FILE_MODIFIED_AT_LAST_SYNC_FOR_DATA, 
+            file.getModificationTimestampAtLastSyncForData()
+        );
+        String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                ProviderTableMeta.FILE_PATH + "=?";
+        String[] whereArgs = new String[] { mAccount.name, file.getRemotePath() };
+        if (getContentResolver() != null) {
+            getContentResolver().update(ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+        } else {
+            try {
+                getContentProviderClient().update(
+                        ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to update content digests of " + file.getRemotePath() + 
+                        " in database: " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Updates the link to the local copy of a file, only if the link saved in the database is
+     * still the expected one.
+     * 
+     * Lets work done out of the synchronization of a folder, like copying local files into 
+     * the ownCloud folder, record its result without overwriting newer changes.
+     * 
+     * @param file                  File with the new storage path to save.
+     * @param expectedStoragePath   Storage path that the database should keep for the file.
+     * @return                      'True' if the storage path was updated.
+     */
+    public boolean updateStoragePath(OCFile file, String expectedStoragePath) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_STORAGE_PATH, file.getStoragePath());
+        String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                ProviderTableMeta.FILE_PATH + "=? AND " +
+                ProviderTableMeta.FILE_STORAGE_PATH + "=?";
+        String[] whereArgs = new String[] { 
+                mAccount.name, file.getRemotePath(), expectedStoragePath 
+        };
+        int updated = 0;
+        if (getContentResolver() != null) {
+            updated = getContentResolver().update(
+                    ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+        } else {
+            try {
+                updated = getContentProviderClient().update(
+                        ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to update storage path of " + file.getRemotePath() + 
+                        " in database: " + e.getMessage());
+            }
+        }
+        return (updated > 0);
+    }
+
+
+    /**
+     * Updates the time of the last access to the local copy of a file, without changing any
+     * other property.
+     * 
+     * @param file          File accessed; must exist in the database.
+     * @param accessTime    Time of the access, in milliseconds.
+     */
+    public void updateLastAccess(OCFile file, long accessTime) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_LAST_ACCESS, accessTime);
+        String where = ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                ProviderTableMeta.FILE_PATH + "=?";
+        String[] whereArgs = new String[] { mAccount.name, file.getRemotePath() };
+        if (getContentResolver() != null) {
+            getContentResolver().update(ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+        } else {
+            try {
+                getContentProviderClient().update(
+                        ProviderTableMeta.CONTENT_URI, cv, where, whereArgs);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Fail to update last access to " + file.getRemotePath() + 
+                        " in database: " + e.getMessage());
+            }
+        }
+    }
+
+
+    private void putContentDigests(ContentValues cv, OCFile file) {
+        cv.put(ProviderTableMeta.FILE_CONTENT_DIGEST, file.getContentDigest());
+        cv.put(ProviderTableMeta.FILE_LOCAL_DIGEST, file.getLocalDigest());
+        cv.put(ProviderTableMeta.FILE_LOCAL_DIGEST_LENGTH, file.getLocalDigestLength());
+        cv.put(ProviderTableMeta.FILE_LOCAL_DIGEST_MODIFIED, file.getLocalDigestModified());
+    }
+
+
     /**
      * Inserts or updates the list of files contained in a given folder.
      * 
@@ -300,6 +442,7 @@ public class FileDataStorageManager {
             cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, file.getPublicLink());
             cv.put(ProviderTableMeta.FILE_PERMISSIONS, file.getPermissions());
             cv.put(ProviderTableMeta.FILE_REMOTE_ID, file.getRemoteId());
+            putContentDigests(cv, file);
 
             boolean existsByPath = fileExists(file.getRemotePath());
             if (existsByPath || fileExists(file.getFileId())) {
@@ -941,6 +1084,13 @@ public class FileDataStorageManager {
             file.setRemoteId(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_REMOTE_ID)));
             file.setNeedsUpdateThumbnail(c.getInt(
                     c.getColumnIndex(ProviderTableMeta.FILE_UPDATE_THUMBNAIL)) == 1 ? true : false);
+            file.setContentDigest(c.getString(
+                    c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_DIGEST)));
+            file.setLocalDigest(
+                    c.getString(c.getColumnIndex(ProviderTableMeta.FILE_LOCAL_DIGEST)),
+                    c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LOCAL_DIGEST_LENGTH)),
+                    c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LOCAL_DIGEST_MODIFIED))
+            );
                     
         }
         return file;
@@ -1323,6 +1473,7 @@ public class FileDataStorageManager {
                     ProviderTableMeta.FILE_UPDATE_THUMBNAIL, 
                     file.needsUpdateThumbnail() ? 1 : 0
                 );
+                putContentDigests(cv, file);
 
                 boolean existsByPath = fileExists(file.getRemotePath());
                 if (existsByPath || fileExists(file.getFileId())) {
@@ -1461,6 +1612,11 @@ public class FileDataStorageManager {
                         build()
                 );
                 //}
+                
+                // restore the share-by-link state of the shared file, cleaned above
+                if (ShareType.PUBLIC_LINK.equals(share.getShareType())) {
+                    operations.add(prepareSetSharedByLink(share));
+                }
             }
         }
             
@@ -1488,6 +1644,26 @@ public class FileDataStorageManager {
         
     }
 
+    private ContentProviderOperation prepareSetSharedByLink(OCShare share) {
+        String path = share.getPath();
+        if (share.isFolder() && !path.endsWith(FileUtils.PATH_SEPARATOR)) {
+            path = path + FileUtils.PATH_SEPARATOR;
+        }
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_SHARE_BY_LINK, 1);
+        if (share.getShareLink() != null && share.getShareLink().length() > 0) {
+            cv.put(ProviderTableMeta.FILE_PUBLIC_LINK, share.getShareLink());
+        }
+        return ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
+                withValues(cv).
+                withSelection(
+                        ProviderTableMeta.FILE_ACCOUNT_OWNER + "=? AND " + 
+                                ProviderTableMeta.FILE_PATH + "=?",
+                        new String[] { mAccount.name, path }
+                ).
+                build();
+    }
+
     private ArrayList<ContentProviderOperation> prepareRemoveSharesInFolder(
             OCFile folder, ArrayList<ContentProviderOperation> preparedOperations
             ) {
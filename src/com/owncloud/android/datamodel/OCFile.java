@@ -70,6 +70,11 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
 
     private boolean mNeedsUpdateThumbnail;
 
+    private String mContentDigest;
+    private String mLocalDigest;
+    private long mLocalDigestLength;
+    private long mLocalDigestModified;
+
 
     /**
      * Create new {@link OCFile} with given path.
@@ -112,6 +117,10 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mPermissions = source.readString();
         mRemoteId = source.readString();
         mNeedsUpdateThumbnail = source.readInt() == 0;
+        mContentDigest = source.readString();
+        mLocalDigest = source.readString();
+        mLocalDigestLength = source.readLong();
+        mLocalDigestModified = source.readLong();
 
     }
 
@@ -136,6 +145,10 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         dest.writeString(mPermissions);
         dest.writeString(mRemoteId);
         dest.writeInt(mNeedsUpdateThumbnail ? 1 : 0);
+        dest.writeString(mContentDigest);
+        dest.writeString(mLocalDigest);
+        dest.writeLong(mLocalDigestLength);
+        dest.writeLong(mLocalDigestModified);
     }
     
     /**
@@ -349,6 +362,10 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mPermissions = null;
         mRemoteId = null;
         mNeedsUpdateThumbnail = false;
+        mContentDigest = null;
+        mLocalDigest = null;
+        mLocalDigestLength = 0;
+        mLocalDigestModified = 0;
     }
 
     /**
@@ -557,4 +574,39 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         this.mRemoteId = remoteId;
     }
 
+    /**
+     * Digest of the contents of the file when they were last synchronized with the server,
+     * in the format "ALGORITHM:hex", or null if unknown.
+     */
+    public String getContentDigest() {
+        return mContentDigest;
+    }
+
+    public void setContentDigest(String contentDigest) {
+        this.mContentDigest = contentDigest;
+    }
+
+    /**
+     * Last digest computed on the local copy of the file, valid while the local copy keeps
+     * the length and modification time returned by {@link #getLocalDigestLength()} and
+     * {@link #getLocalDigestModified()}.
+     */
+    public String getLocalDigest() {
+        return mLocalDigest;
+    }
+
+    public long getLocalDigestLength() {
+        return mLocalDigestLength;
+    }
+
+    public long getLocalDigestModified() {
+        return mLocalDigestModified;
+    }
+
+    public void setLocalDigest(String localDigest, long length, long modified) {
+        mLocalDigest = localDigest;
+        mLocalDigestLength = length;
+        mLocalDigestModified = modified;
+    }
+
 }
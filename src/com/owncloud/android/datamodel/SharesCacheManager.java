@@ -0,0 +1,139 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.FileUtils;
+import com.owncloud.android.lib.resources.shares.OCShare;
+
+/**
+ * Keeps in memory the last list of shares fetched from the server for every account.
+ *
+ * A snapshot of all the shares in an account is refreshed with a single request to the
+ * share API (see {@link com.owncloud.android.operations.GetSharesOperation}), and the
+ * share state of any folder is derived from it while it is fresh, instead of asking the
+ * server about the shares in every folder that is browsed.
+ */
+public class SharesCacheManager {
+
+    private static final String TAG = SharesCacheManager.class.getSimpleName();
+
+    /** Time, in milliseconds, a snapshot of the shares in an account is considered fresh */
+    public static final long SNAPSHOT_TTL = 60 * 1000;
+
+    private static final Map<String, Snapshot> mSnapshots = new HashMap<String, Snapshot>();
+
+
+    private static class Snapshot {
+        final List<OCShare> mShares;
+        final long mTakenAt;
+
+        Snapshot(List<OCShare> shares, long takenAt) {
+            mShares = shares;
+            mTakenAt = takenAt;
+        }
+    }
+
+
+    /**
+     * Stores a new snapshot of the shares in an account, replacing any former one.
+     *
+     * @param accountName       Name of the ownCloud account the shares belong to.
+     * @param shares            Full list of shares in the account, as returned by the server.
+     */
+    public static void putShares(String accountName, List<OCShare> shares) {
+        synchronized (mSnapshots) {
+            mSnapshots.put(
+                    accountName,
+                    new Snapshot(new ArrayList<OCShare>(shares), System.currentTimeMillis())
+            );
+        }
+        Log_OC.d(TAG, "New snapshot of " + shares.size() + " shares for " + accountName);
+    }
+
+
+    /**
+     * Returns the last snapshot of shares stored for an account, if still fresh.
+     *
+     * @param accountName       Name of the ownCloud account.
+     * @return                  List of shares in the account, or null if there is no snapshot
+     *                          or it is older than {@link #SNAPSHOT_TTL}.
+     */
+    public static List<OCShare> getFreshShares(String accountName) {
+        synchronized (mSnapshots) {
+            Snapshot snapshot = mSnapshots.get(accountName);
+            if (snapshot != null &&
+                    System.currentTimeMillis() - snapshot.mTakenAt < SNAPSHOT_TTL) {
+                return snapshot.mShares;
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * Drops the snapshot of shares of an account, so that next access to it forces a refresh.
+     *
+     * Must be called after any local change in the shares of the account.
+     *
+     * @param accountName       Name of the ownCloud account.
+     */
+    public static void invalidate(String accountName) {
+        synchronized (mSnapshots) {
+            mSnapshots.remove(accountName);
+        }
+    }
+
+
+    /**
+     * Filters a list of shares to get those bound to the direct children of a folder.
+     *
+     * @param shares            List of shares to filter.
+     * @param folder            Folder which direct children are interesting.
+     * @return                  Shares bound to files or folders directly contained in folder.
+     */
+    public static ArrayList<OCShare> getSharesInFolder(List<OCShare> shares, OCFile folder) {
+        ArrayList<OCShare> sharesInFolder = new ArrayList<OCShare>();
+        String folderPath = folder.getRemotePath();
+        if (!folderPath.endsWith(FileUtils.PATH_SEPARATOR)) {
+            folderPath += FileUtils.PATH_SEPARATOR;
+        }
+        String path;
+        for (OCShare share : shares) {
+            path = share.getPath();
+            if (path == null) {
+                continue;
+            }
+            if (path.length() > 1 && path.endsWith(FileUtils.PATH_SEPARATOR)) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if (path.startsWith(folderPath) &&
+                    path.indexOf(FileUtils.PATH_SEPARATOR, folderPath.length()) < 0 &&
+                    path.length() > folderPath.length()) {
+                sharesInFolder.add(share);
+            }
+        }
+        return sharesInFolder;
+    }
+
+}
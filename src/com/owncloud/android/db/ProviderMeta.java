@@ -31,7 +31,7 @@ import com.owncloud.android.MainApp;
 public class ProviderMeta {
 
     public static final String DB_NAME = "filelist";
-    public static final int DB_VERSION = 8;
+    public static final int DB_VERSION = 10;
 
     private ProviderMeta() {
     }
@@ -71,6 +71,11 @@ public class ProviderMeta {
         public static final String FILE_PERMISSIONS = "permissions";
         public static final String FILE_REMOTE_ID = "remote_id";
         public static final String FILE_UPDATE_THUMBNAIL = "update_thumbnail";
+        public static final String FILE_CONTENT_DIGEST = "content_digest";
+        public static final String FILE_LOCAL_DIGEST = "local_digest";
+        public static final String FILE_LOCAL_DIGEST_LENGTH = "local_digest_length";
+        public static final String FILE_LOCAL_DIGEST_MODIFIED = "local_digest_modified";
+        public static final String FILE_LAST_ACCESS = "last_access";
 
         public static final String FILE_DEFAULT_SORT_ORDER = FILE_NAME
                 + " collate nocase asc";
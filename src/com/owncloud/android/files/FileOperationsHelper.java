@@ -29,6 +29,7 @@ import android.widget.Toast;
 
 import com.owncloud.android.R;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.files.services.DownloadCache;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.files.services.FileUploader.FileUploaderBinder;
 
@@ -88,6 +89,7 @@ public class FileOperationsHelper {
             }
             
             mFileActivity.startActivity(chooserIntent);
+            DownloadCache.fileAccessed(mFileActivity, mFileActivity.getAccount(), file);
             
         } else {
             Log_OC.wtf(TAG, "Trying to open a NULL OCFile");
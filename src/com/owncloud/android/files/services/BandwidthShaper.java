@@ -0,0 +1,290 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.preference.PreferenceManager;
+
+/**
+ * Limits the bandwidth used by transfers with token buckets, one per direction and kind of
+ * network.
+ *
+ * Limits are read from the preferences, in KB/s, kept as strings as edited in the preferences
+ * screen; 0 means no limit. Metered networks other than roaming ones are limited as mobile
+ * networks, and unmetered ones as Wi-Fi. While an interactive transfer
+ * is running, transfers in the background classes ({@link TransferWorkerPool#PRIORITY_SYNC} and
+ * {@link TransferWorkerPool#PRIORITY_INSTANT}) share an additional, lower limit per direction, so
+ * that they don't saturate the link the user is waiting for.
+ *
+ * Transfers are throttled from their progress callbacks: every transfer gets a {@link Session}
+ * to register as progress listener, that blocks the transferring thread until the bytes reported
+ * fit in the buckets. The average throughput of every kind of network and direction is logged
+ * to check that the limits are respected.
+ */
+public class BandwidthShaper {
+
+    private static final String TAG = BandwidthShaper.class.getSimpleName();
+
+    public static final int DIRECTION_UPLOAD = 0;
+    public static final int DIRECTION_DOWNLOAD = 1;
+
+    public static final int NETWORK_WIFI = 0;
+    public static final int NETWORK_MOBILE = 1;
+    public static final int NETWORK_ROAMING = 2;
+
+    private static final String[] DIRECTION_NAMES = { "upload", "download" };
+    private static final String[] NETWORK_NAMES = { "wifi", "mobile", "roaming" };
+
+    /**
+     * Prefixes of the keys of the preferences with the limits, in KB/s; the name of the network
+     * is appended, for instance "max_upload_rate_mobile"
+     */
+    public static final String PREF_MAX_UPLOAD_RATE = "max_upload_rate_";
+    public static final String PREF_MAX_DOWNLOAD_RATE = "max_download_rate_";
+
+    /** Key of the preference limiting background transfers during interactive ones, in KB/s */
+    public static final String PREF_MAX_BACKGROUND_RATE = "max_background_rate";
+    public static final int DEFAULT_MAX_BACKGROUND_RATE = 64;
+
+    /** Debt, in milliseconds, below which a transfer is not put to sleep */
+    private static final long MIN_SLEEP = 10;
+
+    /**
+     * Token bucket; tokens are bytes. The bucket admits debt: a transfer takes the tokens of
+     * the bytes it sent and sleeps the time needed to pay the debt, so that several transfers
+     * sharing the bucket get together the configured rate.
+     */
+    private static class TokenBucket {
+        private long mRate = 0;             // bytes per second; 0 is unlimited
+        private double mTokens = 0;
+        private long mLastRefill = System.currentTimeMillis();
+
+        synchronized void setRate(long rate) {
+            mRate = rate;
+            mTokens = Math.min(mTokens, rate);
+        }
+
+        /**
+         * @return      Time to wait, in milliseconds, until the bytes taken are paid.
+         */
+        synchronized long take(long bytes) {
+            if (mRate <= 0) {
+                return 0;
+            }
+            long now = System.currentTimeMillis();
+            // a full bucket holds one second of traffic
+            mTokens = Math.min(mRate, mTokens + (now - mLastRefill) * mRate / 1000.0);
+            mLastRefill = now;
+            mTokens -= bytes;
+            return (mTokens < 0) ? (long) (-mTokens * 1000 / mRate) : 0;
+        }
+    }
+
+    /**
+     * Bytes and time transferred in a direction and kind of network, for telemetry.
+     */
+    private static class Throughput {
+        long mBytes = 0;
+        long mElapsed = 0;
+        long mThrottled = 0;
+    }
+
+    private static final TokenBucket[][] sBuckets = new TokenBucket[2][3];
+    private static final TokenBucket[] sBackgroundBuckets = new TokenBucket[2];
+    private static final Throughput[][] sThroughputs = new Throughput[2][3];
+    static {
+        for (int d=0; d<2; d++) {
+            for (int n=0; n<3; n++) {
+                sBuckets[d][n] = new TokenBucket();
+                sThroughputs[d][n] = new Throughput();
+            }
+            sBackgroundBuckets[d] = new TokenBucket();
+        }
+    }
+
+    private static int sInteractiveTransfers = 0;
+
+
+    /**
+     * Progress listener throttling a single transfer.
+     */
+    public static class Session implements OnDatatransferProgressListener {
+
+        private final int mDirection;
+        private final int mNetwork;
+        private final boolean mInteractive;
+        private final boolean mBackground;
+        private final long mStartedAt = System.currentTimeMillis();
+        private long mBytes = 0;
+        private long mThrottled = 0;
+        private boolean mFinished = false;
+
+        private Session(int direction, int network, int priority) {
+            mDirection = direction;
+            mNetwork = network;
+            mInteractive = (priority == TransferWorkerPool.PRIORITY_INTERACTIVE);
+            mBackground = (priority >= TransferWorkerPool.PRIORITY_SYNC);
+        }
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                long totalToTransfer, String fileName) {
+            if (progressRate <= 0) {
+                return;
+            }
+            mBytes += progressRate;
+            long wait = sBuckets[mDirection][mNetwork].take(progressRate);
+            if (mBackground && isInteractiveTransferRunning()) {
+                wait = Math.max(wait, sBackgroundBuckets[mDirection].take(progressRate));
+            }
+            if (wait >= MIN_SLEEP) {
+                try {
+                    Thread.sleep(wait);
+                    mThrottled += wait;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Ends the session, accounting the bytes transferred for the throughput telemetry.
+         */
+        public void finish() {
+            synchronized (BandwidthShaper.class) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                if (mInteractive) {
+                    sInteractiveTransfers--;
+                }
+                Throughput throughput = sThroughputs[mDirection][mNetwork];
+                long elapsed = System.currentTimeMillis() - mStartedAt;
+                throughput.mBytes += mBytes;
+                throughput.mElapsed += elapsed;
+                throughput.mThrottled += mThrottled;
+                Log_OC.d(TAG, DIRECTION_NAMES[mDirection] + " via " + NETWORK_NAMES[mNetwork] +
+                        ": " + mBytes + " bytes in " + elapsed + " ms (" +
+                        rate(mBytes, elapsed) + " B/s), throttled " + mThrottled + " ms; " +
+                        "accumulated " + rate(throughput.mBytes, throughput.mElapsed) + " B/s");
+            }
+        }
+    }
+
+
+    /**
+     * Starts the shaping of a transfer. The returned session must be added as progress listener
+     * of the transfer, and finished when the transfer ends.
+     *
+     * @param context       Android context, to read the current network and limits.
+     * @param direction     DIRECTION_UPLOAD or DIRECTION_DOWNLOAD.
+     * @param priority      Priority class of the transfer, as defined in {@link TransferWorkerPool}.
+     * @return              Session throttling the transfer.
+     */
+    public static Session startTransfer(Context context, int direction, int priority) {
+        int network = getNetwork(context);
+        loadLimits(context, direction, network);
+        Session session = new Session(direction, network, priority);
+        if (session.mInteractive) {
+            synchronized (BandwidthShaper.class) {
+                sInteractiveTransfers++;
+            }
+        }
+        return session;
+    }
+
+
+    /**
+     * @return      Average throughput, in bytes per second, of the transfers finished in the
+     *              given direction and kind of network.
+     */
+    public static synchronized long getThroughput(int direction, int network) {
+        Throughput throughput = sThroughputs[direction][network];
+        return rate(throughput.mBytes, throughput.mElapsed);
+    }
+
+
+    /**
+     * @return      Total time, in milliseconds, transfers in the given direction and kind of
+     *              network were delayed to respect the limits.
+     */
+    public static synchronized long getThrottledTime(int direction, int network) {
+        return sThroughputs[direction][network].mThrottled;
+    }
+
+
+    private static synchronized boolean isInteractiveTransferRunning() {
+        return sInteractiveTransfers > 0;
+    }
+
+
+    private static void loadLimits(Context context, int direction, int network) {
+        SharedPreferences appPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String prefix = (direction == DIRECTION_UPLOAD) ? PREF_MAX_UPLOAD_RATE : PREF_MAX_DOWNLOAD_RATE;
+        sBuckets[direction][network].setRate(
+                getLimit(appPrefs, prefix + NETWORK_NAMES[network], 0) * 1024L);
+        sBackgroundBuckets[direction].setRate(
+                getLimit(appPrefs, PREF_MAX_BACKGROUND_RATE, DEFAULT_MAX_BACKGROUND_RATE) * 1024L);
+    }
+
+
+    private static long getLimit(SharedPreferences appPrefs, String key, int defaultLimit) {
+        String limit = appPrefs.getString(key, String.valueOf(defaultLimit));
+        try {
+            return Math.max(0, Long.parseLong(limit.trim()));
+        } catch (NumberFormatException e) {
+            Log_OC.w(TAG, "Invalid limit in " + key + ": " + limit);
+            return defaultLimit;
+        }
+    }
+
+
+    private static int getNetwork(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = (cm != null) ? cm.getActiveNetworkInfo() : null;
+        if (info == null) {
+            return NETWORK_WIFI;
+        }
+        if (info.isRoaming()) {
+            return NETWORK_ROAMING;
+        }
+        boolean metered;
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN) {
+            // also tethered Wi-Fi hotspots, and mobile networks set as unmetered
+            metered = cm.isActiveNetworkMetered();
+        } else {
+            metered = (info.getType() != ConnectivityManager.TYPE_WIFI &&
+                    info.getType() != ConnectivityManager.TYPE_ETHERNET);
+        }
+        return metered ? NETWORK_MOBILE : NETWORK_WIFI;
+    }
+
+
+    private static long rate(long bytes, long elapsed) {
+        return (elapsed > 0) ? bytes * 1000 / elapsed : 0;
+    }
+
+}
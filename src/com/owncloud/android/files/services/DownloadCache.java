@@ -0,0 +1,310 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.Process;
+import android.os.RemoteException;
+import android.preference.PreferenceManager;
+
+/**
+ * Keeps the local copies of the downloaded files under a size quota.
+ *
+ * The database records the last access to every downloaded file. When the total size of the
+ * local copies exceeds the quota, the least recently used files are removed from the device,
+ * except those kept in sync and those with local changes not uploaded yet.
+ *
+ * All the work is done from the database, in a single background thread shared by the whole
+ * app; the storage folder is never scanned. Files are evicted in small groups, every group in
+ * a single transaction that clears their storage paths before the local copies are deleted.
+ */
+public class DownloadCache {
+
+    private static final String TAG = DownloadCache.class.getSimpleName();
+
+    /**
+     * Key of the preference with the maximum size of the local copies, in MB; 0 is unlimited.
+     * Kept as a string, as edited in the preferences screen.
+     */
+    public static final String PREF_QUOTA = "download_cache_quota";
+
+    /** Time, in milliseconds, since the last access or synchronization before a file can be evicted */
+    public static final long MIN_IDLE_TIME = 5 * 60 * 1000;
+
+    /** Delay, in milliseconds, of the trim after a download, so that downloads in a row are checked once */
+    private static final long TRIM_DELAY = 5000;
+
+    /** Maximum number of files evicted in a single transaction */
+    private static final int EVICTION_BATCH_SIZE = 20;
+
+    private static final String[] EVICTION_PROJECTION = new String[] {
+            ProviderTableMeta._ID,
+            ProviderTableMeta.FILE_STORAGE_PATH,
+            ProviderTableMeta.FILE_LAST_ACCESS,
+            ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA
+    };
+
+    private static final ScheduledExecutorService sExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "DownloadCacheThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static boolean sTrimScheduled = false;
+
+
+    /**
+     * Records an access to the local copy of a file, in background.
+     *
+     * @param context       Android context.
+     * @param account       ownCloud account of the file.
+     * @param file          File accessed.
+     */
+    public static void fileAccessed(Context context, final Account account, final OCFile file) {
+        if (account == null || file == null || file.isFolder()) {
+            return;
+        }
+        final ContentResolver contentResolver = context.getApplicationContext().getContentResolver();
+        final long accessTime = System.currentTimeMillis();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                new FileDataStorageManager(account, contentResolver).updateLastAccess(file, accessTime);
+            }
+        });
+    }
+
+
+    /**
+     * Records a new local copy of a file, and checks the quota a bit later.
+     *
+     * @param context       Android context.
+     * @param account       ownCloud account of the file.
+     * @param file          File downloaded.
+     */
+    public static void fileDownloaded(Context context, Account account, OCFile file) {
+        fileAccessed(context, account, file);
+        scheduleTrim(context);
+    }
+
+
+    /**
+     * Schedules a check of the quota; evicts files, in background, if exceeded.
+     *
+     * @param context       Android context.
+     */
+    public static void scheduleTrim(Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (DownloadCache.class) {
+            if (sTrimScheduled) {
+                return;
+            }
+            sTrimScheduled = true;
+        }
+        sExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DownloadCache.class) {
+                    sTrimScheduled = false;
+                }
+                long quota = getQuota(appContext);
+                if (quota > 0) {
+                    trim(appContext.getContentResolver(), quota);
+                }
+            }
+        }, TRIM_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * @return      Maximum size of the local copies, in bytes, or 0 if unlimited.
+     */
+    private static long getQuota(Context context) {
+        String quota = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(PREF_QUOTA, "0");
+        try {
+            return Math.max(0, Long.parseLong(quota.trim())) * 1024L * 1024L;
+        } catch (NumberFormatException e) {
+            Log_OC.w(TAG, "Invalid quota for the local copies: " + quota);
+            return 0;
+        }
+    }
+
+
+    private static void trim(ContentResolver contentResolver, long quota) {
+        long usage = getUsage(contentResolver);
+        if (usage <= quota) {
+            return;
+        }
+        Log_OC.d(TAG, "Local copies take " + usage + " bytes, quota is " + quota);
+
+        String idleLimit = String.valueOf(System.currentTimeMillis() - MIN_IDLE_TIME);
+        long lastAccess = -1;
+        long lastId = -1;
+        int evicted = 0;
+        long freed = 0;
+        while (usage > quota) {
+            // next files in order of last access, resuming after the last one visited
+            Cursor c = contentResolver.query(
+                    ProviderTableMeta.CONTENT_URI,
+                    EVICTION_PROJECTION,
+                    ProviderTableMeta.FILE_STORAGE_PATH + " IS NOT NULL AND " +
+                            ProviderTableMeta.FILE_KEEP_IN_SYNC + " = 0 AND " +
+                            ProviderTableMeta.FILE_LAST_ACCESS + " < ? AND " +
+                            ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA + " < ? AND (" +
+                            ProviderTableMeta.FILE_LAST_ACCESS + " > ? OR (" +
+                            ProviderTableMeta.FILE_LAST_ACCESS + " = ? AND " +
+                            ProviderTableMeta._ID + " > ?))",
+                    new String[] {
+                            idleLimit, idleLimit,
+                            String.valueOf(lastAccess), String.valueOf(lastAccess),
+                            String.valueOf(lastId)
+                    },
+                    // SQLiteQueryBuilder appends the sort order as is
+                    ProviderTableMeta.FILE_LAST_ACCESS + " ASC, " + ProviderTableMeta._ID +
+                            " ASC LIMIT " + EVICTION_BATCH_SIZE
+            );
+            if (c == null) {
+                break;
+            }
+
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>(EVICTION_BATCH_SIZE);
+            List<File> localCopies = new ArrayList<File>(EVICTION_BATCH_SIZE);
+            try {
+                if (!c.moveToFirst()) {
+                    Log_OC.w(TAG, "Nothing else can be evicted; local copies take " + usage +
+                            " bytes");
+                    break;
+                }
+                do {
+                    lastId = c.getLong(c.getColumnIndex(ProviderTableMeta._ID));
+                    lastAccess = c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LAST_ACCESS));
+                    String storagePath =
+                            c.getString(c.getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH));
+                    long lastSyncForData = c.getLong(
+                            c.getColumnIndex(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA));
+                    File localCopy = new File(storagePath);
+                    if (localCopy.isDirectory() || localCopy.lastModified() > lastSyncForData) {
+                        continue;   // folder, or local changes not uploaded yet
+                    }
+                    // not updated if accessed or replaced meanwhile
+                    operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI)
+                            .withValue(ProviderTableMeta.FILE_STORAGE_PATH, null)
+                            .withSelection(ProviderTableMeta._ID + "=? AND " +
+                                    ProviderTableMeta.FILE_STORAGE_PATH + "=? AND " +
+                                    ProviderTableMeta.FILE_LAST_ACCESS + "=?",
+                                    new String[] {
+                                            String.valueOf(lastId), storagePath,
+                                            String.valueOf(lastAccess)
+                                    })
+                            .build());
+                    localCopies.add(localCopy);
+                } while (c.moveToNext());
+            } finally {
+                c.close();
+            }
+            if (operations.isEmpty()) {
+                continue;
+            }
+
+            ContentProviderResult[] results = null;
+            try {
+                results = contentResolver.applyBatch(MainApp.getAuthority(), operations);
+            } catch (OperationApplicationException e) {
+                Log_OC.e(TAG, "Exception evicting local copies " + e.getMessage());
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Exception evicting local copies " + e.getMessage());
+            }
+            if (results == null) {
+                break;
+            }
+            for (int i=0; i<results.length; i++) {
+                if (results[i].count != null && results[i].count > 0) {
+                    File localCopy = localCopies.get(i);
+                    long length = localCopy.length();
+                    if (!localCopy.exists() || localCopy.delete()) {
+                        usage -= length;
+                        freed += length;
+                        evicted++;
+                    } else {
+                        Log_OC.w(TAG, "Could not delete evicted local copy " + localCopy);
+                    }
+                }
+            }
+        }
+        Log_OC.d(TAG, "Evicted " + evicted + " local copies, " + freed + " bytes freed");
+    }
+
+
+    /**
+     * @return      Total size, in bytes, of the local copies registered in the database.
+     */
+    private static long getUsage(ContentResolver contentResolver) {
+        long usage = 0;
+        Cursor c = contentResolver.query(
+                ProviderTableMeta.CONTENT_URI,
+                new String[] { ProviderTableMeta.FILE_CONTENT_LENGTH },
+                ProviderTableMeta.FILE_STORAGE_PATH + " IS NOT NULL",
+                null,
+                ProviderTableMeta._ID
+        );
+        if (c != null) {
+            try {
+                int index = c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_LENGTH);
+                while (c.moveToNext()) {
+                    usage += c.getLong(index);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return usage;
+    }
+
+}
@@ -20,13 +20,11 @@ package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.AbstractList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AuthenticatorActivity;
@@ -36,18 +34,21 @@ import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
-import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
 import com.owncloud.android.notifications.NotificationBuilderWithProgressBar;
 import com.owncloud.android.notifications.NotificationDelayer;
+import com.owncloud.android.notifications.TransferProgressNotifier;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.FileUtils;
+import com.owncloud.android.media.MediaStreamProxy;
 import com.owncloud.android.operations.DownloadFileOperation;
+import com.owncloud.android.services.OwnCloudClientPool;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
 import com.owncloud.android.ui.preview.PreviewImageActivity;
 import com.owncloud.android.ui.preview.PreviewImageFragment;
+import com.owncloud.android.utils.ContentDigestUtils;
 import com.owncloud.android.utils.ErrorMessageAdapter;
 
 import android.accounts.Account;
@@ -55,20 +56,22 @@ import android.accounts.AccountsException;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
-import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 
-public class FileDownloader extends Service implements OnDatatransferProgressListener {
+public class FileDownloader extends Service {
     
     public static final String EXTRA_ACCOUNT = "ACCOUNT";
     public static final String EXTRA_FILE = "FILE";
+    /** Priority class of the download; one of the PRIORITY_* constants in {@link TransferWorkerPool} */
+    public static final String EXTRA_PRIORITY = "PRIORITY";
     
     private static final String DOWNLOAD_ADDED_MESSAGE = "DOWNLOAD_ADDED";
     private static final String DOWNLOAD_FINISH_MESSAGE = "DOWNLOAD_FINISH";
@@ -77,21 +80,34 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     public static final String EXTRA_REMOTE_PATH = "REMOTE_PATH";
     public static final String ACCOUNT_NAME = "ACCOUNT_NAME";
     
+    /** Keys of the preferences limiting the number of downloads running at the same time */
+    public static final String PREF_MAX_PARALLEL_DOWNLOADS = "max_parallel_downloads";
+    public static final String PREF_MAX_PARALLEL_DOWNLOADS_PER_ACCOUNT = 
+            "max_parallel_downloads_per_account";
+    
+    private static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 4;
+    private static final int DEFAULT_MAX_PARALLEL_DOWNLOADS_PER_ACCOUNT = 3;
+
+    /** Key of the preference with the maximum number of segments downloaded at the same time
+     *  for a large file; 1 downloads every file in a single stream */
+    public static final String PREF_DOWNLOAD_SEGMENTS = "download_segments";
+
+    private static final int DEFAULT_DOWNLOAD_SEGMENTS = 1;
+
+    /** Minimum time, in milliseconds, between progress reports to the bound listeners */
+    private static final long PROGRESS_DISPATCH_INTERVAL = 100;
+    
     private static final String TAG = "FileDownloader";
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    private TransferWorkerPool mWorkers;
     private IBinder mBinder;
-    private OwnCloudClient mDownloadClient = null;
-    private Account mLastAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private volatile int mLastStartId;
+    private Handler mHandler;
     
     private ConcurrentMap<String, DownloadFileOperation> mPendingDownloads = new ConcurrentHashMap<String, DownloadFileOperation>();
-    private DownloadFileOperation mCurrentDownload = null;
     
     private NotificationManager mNotificationManager;
-    private NotificationCompat.Builder mNotificationBuilder;
-    private int mLastPercent;
+    private TransferProgressNotifier mProgressNotifier;
     
     
     public static String getDownloadAddedMessage() {
@@ -120,14 +136,56 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     public void onCreate() {
         super.onCreate();
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileDownloaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        mProgressNotifier = new TransferProgressNotifier(this,
+                R.string.downloader_download_in_progress_ticker,
+                R.string.downloader_download_in_progress_content);
+        mHandler = new Handler();
+        SharedPreferences appPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mWorkers = new TransferWorkerPool(
+                "FileDownloaderThread",
+                appPrefs.getInt(PREF_MAX_PARALLEL_DOWNLOADS, DEFAULT_MAX_PARALLEL_DOWNLOADS),
+                appPrefs.getInt(
+                        PREF_MAX_PARALLEL_DOWNLOADS_PER_ACCOUNT, 
+                        DEFAULT_MAX_PARALLEL_DOWNLOADS_PER_ACCOUNT
+                ),
+                new TransferWorkerPool.OnIdleListener() {
+                    @Override
+                    public void onIdle() {
+                        // in the main thread, so no new start request is in progress meanwhile
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                stopIfIdle();
+                            }
+                        });
+                    }
+                }
+        );
         mBinder = new FileDownloaderBinder();
     }
 
+    
+    /**
+     * Stops the service if no transfer is queued or in progress anymore. Must be called from
+     * the main thread, where the start requests enqueue new transfers.
+     */
+    private void stopIfIdle() {
+        if (mWorkers.getActiveCount() == 0 && mWorkers.getQueuedCount() == 0) {
+            stopSelf(mLastStartId);
+        }
+    }
+
+
+    /**
+     * Service clean up
+     */
+    @Override
+    public void onDestroy() {
+        mWorkers.shutdown();
+        mProgressNotifier.cancelAll();
+        super.onDestroy();
+    }
+
     /**
      * Entry point to add one or several files to the queue of downloads.
      * 
@@ -146,15 +204,34 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         }
         Account account = intent.getParcelableExtra(EXTRA_ACCOUNT);
         OCFile file = intent.getParcelableExtra(EXTRA_FILE);
+        int priority = intent.getIntExtra(EXTRA_PRIORITY, TransferWorkerPool.PRIORITY_INTERACTIVE);
+        mLastStartId = startId;
         
-        AbstractList<String> requestedDownloads = new Vector<String>(); // dvelasco: now this always contains just one element, but that can change in a near future (download of multiple selection)
-        String downloadKey = buildRemoteName(account, file);
+        final String downloadKey = buildRemoteName(account, file);
+        if (MediaStreamProxy.isStreaming(account, file)) {
+            // the proxy writes the same temporal file, and registers the download when complete
+            Log_OC.d(TAG, "Download of " + file.getRemotePath() + " skipped; being streamed");
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
         try {
-            DownloadFileOperation newDownload = new DownloadFileOperation(account, file); 
-            mPendingDownloads.putIfAbsent(downloadKey, newDownload);
-            newDownload.addDatatransferProgressListener(this);
-            newDownload.addDatatransferProgressListener((FileDownloaderBinder)mBinder);
-            requestedDownloads.add(downloadKey);
+            final DownloadFileOperation newDownload = new DownloadFileOperation(account, file); 
+            newDownload.setSegments(PreferenceManager.getDefaultSharedPreferences(this).getInt(
+                    PREF_DOWNLOAD_SEGMENTS, DEFAULT_DOWNLOAD_SEGMENTS));
+            if (mPendingDownloads.putIfAbsent(downloadKey, newDownload) == null) {
+                newDownload.addDatatransferProgressListener(
+                        new DownloadProgressListener(downloadKey, newDownload));
+                mProgressNotifier.addTransfer(newDownload, file.getFileName(), newDownload.getSize());
+                mWorkers.enqueue(downloadKey, account.name, null, priority, new Runnable() {
+                    @Override
+                    public void run() {
+                        downloadFile(downloadKey, newDownload);
+                    }
+                });
+            } else {
+                // already waiting or downloading; if waiting, the new request may be more urgent
+                mWorkers.raisePriority(downloadKey, priority);
+            }
             sendBroadcastNewDownload(newDownload);
             
         } catch (IllegalArgumentException e) {
@@ -162,12 +239,7 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             return START_NOT_STICKY;
         }
         
-        if (requestedDownloads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedDownloads;
-            mServiceHandler.sendMessage(msg);
-        }
+        stopIfIdle();
 
         return START_NOT_STICKY;
     }
@@ -199,12 +271,15 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
      * 
      *  It provides by itself the available operations.
      */
-    public class FileDownloaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileDownloaderBinder extends Binder {
         
         /** 
          * Map of listeners that will be reported about progress of downloads from a {@link FileDownloaderBinder} instance 
          */
-        private Map<String, OnDatatransferProgressListener> mBoundListeners = new HashMap<String, OnDatatransferProgressListener>();
+        private Map<String, OnDatatransferProgressListener> mBoundListeners = new ConcurrentHashMap<String, OnDatatransferProgressListener>();
+
+        /** Changes on every update of mBoundListeners, so that downloads know when to look them up again */
+        private final AtomicInteger mBoundListenersVersion = new AtomicInteger(0);
         
         
         /**
@@ -219,6 +294,10 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
                 download = mPendingDownloads.remove(buildRemoteName(account, file));
             }
             if (download != null) {
+                if (mWorkers.remove(buildRemoteName(account, file))) {
+                    // never started; won't notify a result
+                    discardCancelledDownload(download);
+                }
                 download.cancel();
             }
         }
@@ -226,6 +305,7 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         
         public void clearListeners() {
             mBoundListeners.clear();
+            mBoundListenersVersion.incrementAndGet();
         }
 
 
@@ -267,6 +347,7 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             if (account == null || file == null || listener == null) return;
             String targetKey = buildRemoteName(account, file);
             mBoundListeners.put(targetKey, listener);
+            mBoundListenersVersion.incrementAndGet();
         }
         
         
@@ -282,48 +363,74 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             String targetKey = buildRemoteName(account, file);
             if (mBoundListeners.get(targetKey) == listener) {
                 mBoundListeners.remove(targetKey);
+                mBoundListenersVersion.incrementAndGet();
             }
         }
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
-                String fileName) {
-            String key = buildRemoteName(mCurrentDownload.getAccount(), mCurrentDownload.getFile());
-            OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
-            if (boundListener != null) {
-                boundListener.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer, fileName);
+        /**
+         * Reports progress of a download to the listener bound to its file, if any.
+         * 
+         * The bound listener is cached in the download, and only looked up again when the 
+         * bound listeners change.
+         */
+        private void onTransferProgress(DownloadProgressListener download, long progressRate, 
+                long totalTransferredSoFar, long totalToTransfer, String fileName) {
+            int version = mBoundListenersVersion.get();
+            if (download.mBoundListenersVersion != version) {
+                download.mBoundListener = mBoundListeners.get(download.mDownloadKey);
+                download.mBoundListenersVersion = version;
+            }
+            if (download.mBoundListener != null) {
+                download.mBoundListener.onTransferProgress(
+                        progressRate, totalTransferredSoFar, totalToTransfer, fileName);
             }
         }
         
     }
     
     
-    /** 
-     * Download worker. Performs the pending downloads in the order they were requested. 
+    /**
+     * Receives the progress of a single download and forwards it to the status notification 
+     * and to the listeners bound through {@link FileDownloaderBinder}.
      * 
-     * Created with the Looper of a new thread, started in {@link FileUploader#onCreate()}. 
+     * Several downloads run at the same time, so every one of them needs its own instance.
+     * 
+     * Progress is forwarded at most once every {@link #PROGRESS_DISPATCH_INTERVAL} milliseconds,
+     * and when the download completes; the progress rates of the callbacks in between are added
+     * to the next one forwarded. Only called from the thread running the download.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a possible memory leak
-        FileDownloader mService;
-        public ServiceHandler(Looper looper, FileDownloader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+    private class DownloadProgressListener implements OnDatatransferProgressListener {
+        
+        private final String mDownloadKey;
+        private final DownloadFileOperation mDownload;
+
+        private long mLastDispatch = 0;
+        private long mPendingRate = 0;
+
+        /** Listener bound to the download, cached by {@link FileDownloaderBinder} */
+        private OnDatatransferProgressListener mBoundListener = null;
+        private int mBoundListenersVersion = -1;
+        
+        DownloadProgressListener(String downloadKey, DownloadFileOperation download) {
+            mDownloadKey = downloadKey;
+            mDownload = download;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedDownloads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedDownloads.iterator();
-                while (it.hasNext()) {
-                    mService.downloadFile(it.next());
-                }
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar, 
+                long totalToTransfer, String fileName) {
+            mPendingRate += progressRate;
+            long now = SystemClock.uptimeMillis();
+            boolean completed = (totalToTransfer >= 0 && totalTransferredSoFar >= totalToTransfer);
+            if (!completed && now - mLastDispatch < PROGRESS_DISPATCH_INTERVAL) {
+                return;
             }
-            mService.stopSelf(msg.arg1);
+            mLastDispatch = now;
+            long rate = mPendingRate;
+            mPendingRate = 0;
+            mProgressNotifier.updateProgress(mDownload, totalTransferredSoFar, totalToTransfer);
+            ((FileDownloaderBinder)mBinder).onTransferProgress(
+                    this, rate, totalTransferredSoFar, totalToTransfer, fileName);
         }
     }
     
@@ -331,99 +438,126 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     /**
      * Core download method: requests a file to download and stores it.
      * 
+     * Called from the worker threads in {@link #mWorkers}; several downloads can be running at 
+     * the same time.
+     * 
      * @param downloadKey   Key to access the download to perform, contained in mPendingDownloads 
+     * @param download      Download enqueued with downloadKey; if not in mPendingDownloads anymore, 
+     *                      it was cancelled after leaving the queue of {@link #mWorkers}.
      */
-    private void downloadFile(String downloadKey) {
+    private void downloadFile(String downloadKey, DownloadFileOperation download) {
         
-        synchronized(mPendingDownloads) {
-            mCurrentDownload = mPendingDownloads.get(downloadKey);
-        }
-        
-        if (mCurrentDownload != null) {
+        if (mPendingDownloads.get(downloadKey) != download) {
+            discardCancelledDownload(download);
             
-            notifyDownloadStart(mCurrentDownload);
+        } else {
+            
+            notifyDownloadStart(download);
 
             RemoteOperationResult downloadResult = null;
+            Account account = download.getAccount();
             try {
                 /// prepare client object to send the request to the ownCloud server
-                if (mDownloadClient == null || !mLastAccount.equals(mCurrentDownload.getAccount())) {
-                    mLastAccount = mCurrentDownload.getAccount();
-                    mStorageManager = 
-                            new FileDataStorageManager(mLastAccount, getContentResolver());
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mLastAccount, this);
-                    mDownloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, this);
-                }
+                OwnCloudClient client = getClientFor(account);
 
-                /// perform the download
-                downloadResult = mCurrentDownload.execute(mDownloadClient);
+                /// perform the download, within the bandwidth limits
+                BandwidthShaper.Session shaping = BandwidthShaper.startTransfer(
+                        this, BandwidthShaper.DIRECTION_DOWNLOAD,
+                        TransferWorkerPool.getRunningPriority());
+                download.addDatatransferProgressListener(shaping);
+                try {
+                    downloadResult = download.execute(client);
+                } finally {
+                    download.removeDatatransferProgressListener(shaping);
+                    shaping.finish();
+                }
                 if (downloadResult.isSuccess()) {
-                    saveDownloadedFile();
+                    saveDownloadedFile(
+                            download, new FileDataStorageManager(account, getContentResolver()));
+                    DownloadCache.fileDownloaded(this, account, download.getFile());
                 }
             
             } catch (AccountsException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
+                Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
                 downloadResult = new RemoteOperationResult(e);
             } catch (IOException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
+                Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
                 downloadResult = new RemoteOperationResult(e);
                 
             } finally {
-                synchronized(mPendingDownloads) {
-                    mPendingDownloads.remove(downloadKey);
-                }
+                mPendingDownloads.remove(downloadKey, download);
             }
 
             
             /// notify result
-            notifyDownloadResult(mCurrentDownload, downloadResult);
+            notifyDownloadResult(download, downloadResult);
             
-            sendBroadcastDownloadFinished(mCurrentDownload, downloadResult);
+            sendBroadcastDownloadFinished(this, download, downloadResult);
         }
     }
 
 
+    /**
+     * Closes the notification of a download cancelled before starting and lets the interested
+     * activities know it won't be done.
+     * 
+     * @param download      Cancelled download operation.
+     */
+    private void discardCancelledDownload(DownloadFileOperation download) {
+        mProgressNotifier.finishTransfer(download);
+        sendBroadcastDownloadFinished(this, download,
+                new RemoteOperationResult(new OperationCancelledException()));
+    }
+
+
+    /**
+     * Returns the client object to send requests to the server of an account; the same client
+     * is shared by all the downloads of the account.
+     * 
+     * Not kept in the service: the pool replaces the client of an account when its credentials
+     * or server change, and is asked every time to get the current one.
+     * 
+     * @param account       ownCloud account.
+     */
+    private OwnCloudClient getClientFor(Account account) throws AccountsException, IOException {
+        OwnCloudAccount ocAccount = new OwnCloudAccount(account, this);
+        return OwnCloudClientPool.getInstance().getClientFor(ocAccount, this);
+    }
+
+
     /**
      * Updates the OC File after a successful download.
+     * 
+     * @param download          Finished download operation.
+     * @param storageManager    Access to the local database of the account of the download.
      */
-    private void saveDownloadedFile() {
-        OCFile file = mStorageManager.getFileById(mCurrentDownload.getFile().getFileId());
+    private static void saveDownloadedFile(DownloadFileOperation download, 
+            FileDataStorageManager storageManager) {
+        OCFile file = storageManager.getFileById(download.getFile().getFileId());
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForProperties(syncDate);
         file.setLastSyncDateForData(syncDate);
         file.setNeedsUpdateThumbnail(true);
-        file.setModificationTimestamp(mCurrentDownload.getModificationTimestamp());
-        file.setModificationTimestampAtLastSyncForData(mCurrentDownload.getModificationTimestamp());
-        // file.setEtag(mCurrentDownload.getEtag());    // TODO Etag, where available
-        file.setMimetype(mCurrentDownload.getMimeType());
-        file.setStoragePath(mCurrentDownload.getSavePath());
-        file.setFileLength((new File(mCurrentDownload.getSavePath()).length()));
-        file.setRemoteId(mCurrentDownload.getFile().getRemoteId());
-        mStorageManager.saveFile(file);
+        file.setModificationTimestamp(download.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(download.getModificationTimestamp());
+        // file.setEtag(download.getEtag());    // TODO Etag, where available
+        file.setMimetype(download.getMimeType());
+        file.setStoragePath(download.getSavePath());
+        file.setFileLength((new File(download.getSavePath()).length()));
+        file.setRemoteId(download.getFile().getRemoteId());
+        ContentDigestUtils.setSynchronizedDigest(file, download.getContentDigest());
+        storageManager.saveFile(file);
     }
 
 
     /**
-     * Creates a status notification to show the download progress
+     * Notifies the start of a download to the progress notification of the current batch.
+     * 
+     * The notification opens the details of the last download started.
      * 
      * @param download  Download operation starting.
      */
     private void notifyDownloadStart(DownloadFileOperation download) {
-        /// create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder = 
-                NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
-        mNotificationBuilder
-                .setSmallIcon(R.drawable.notification_icon)
-                .setTicker(getString(R.string.downloader_download_in_progress_ticker))
-                .setContentTitle(getString(R.string.downloader_download_in_progress_ticker))
-                .setOngoing(true)
-                .setProgress(100, 0, download.getSize() < 0)
-                .setContentText(
-                        String.format(getString(R.string.downloader_download_in_progress_content), 0,
-                                new File(download.getSavePath()).getName())
-                );
-                
         /// includes a pending intent in the notification showing the details view of the file
         Intent showDetailsIntent = null;
         if (PreviewImageFragment.canBePreviewed(download.getFile())) {
@@ -435,40 +569,25 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
         showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, download.getAccount());
         showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
         
-        mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+        mProgressNotifier.startTransfer(download, PendingIntent.getActivity(
             this, (int) System.currentTimeMillis(), showDetailsIntent, 0
         ));
-
-        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
     }
 
     
-    /**
-     * Callback method to update the progress bar in the status notification.
-     */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String filePath) {
-        int percent = (int)(100.0*((double)totalTransferredSoFar)/((double)totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, totalToTransfer < 0);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
-        }
-        mLastPercent = percent;
-    }
-    
-    
     /**
      * Updates the status notification with the result of a download operation.
      * 
      * @param downloadResult    Result of the download operation.
      * @param download          Finished download operation
      */
-    private void notifyDownloadResult(DownloadFileOperation download, RemoteOperationResult downloadResult) {
-        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+    private synchronized void notifyDownloadResult(DownloadFileOperation download, RemoteOperationResult downloadResult) {
+        mProgressNotifier.finishTransfer(download);
         if (!downloadResult.isCancelled()) {
+            NotificationCompat.Builder resultBuilder = 
+                    NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+            resultBuilder.setSmallIcon(R.drawable.notification_icon);
+
             int tickerId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_ticker : 
                 R.string.downloader_download_failed_ticker;
             
@@ -479,7 +598,7 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
             tickerId = (needsToUpdateCredentials) ? 
                     R.string.downloader_download_failed_credentials_error : tickerId;
             
-            mNotificationBuilder
+            resultBuilder
             .setTicker(getString(tickerId))
             .setContentTitle(getString(tickerId))
             .setAutoCancel(true)
@@ -495,22 +614,20 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder
+                resultBuilder
                     .setContentIntent(PendingIntent.getActivity(
                         this, (int) System.currentTimeMillis(), updateAccountCredentials, PendingIntent.FLAG_ONE_SHOT));
                 
-                mDownloadClient = null;   // grant that future retries on the same account will get the fresh credentials
-                
             } else {
                 // TODO put something smart in showDetailsIntent
                 Intent   showDetailsIntent = new Intent();
-                mNotificationBuilder
+                resultBuilder
                     .setContentIntent(PendingIntent.getActivity(
                         this, (int) System.currentTimeMillis(), showDetailsIntent, 0));
             }
             
-            mNotificationBuilder.setContentText(ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download, getResources()));
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            resultBuilder.setContentText(ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download, getResources()));
+            mNotificationManager.notify(tickerId, resultBuilder.build());
             
             // Remove success notification
             if (downloadResult.isSuccess()) {   
@@ -525,19 +642,41 @@ public class FileDownloader extends Service implements OnDatatransferProgressLis
     }
     
     
+    /**
+     * Registers a download done out of the service, like the streaming of a media file, as if 
+     * it had been done by the service.
+     * 
+     * @param context           Android context.
+     * @param download          Download which contents were received, already completed.
+     * @param downloadResult    Result of the download.
+     */
+    public static void registerDownload(Context context, DownloadFileOperation download, 
+            RemoteOperationResult downloadResult) {
+        Account account = download.getAccount();
+        if (downloadResult.isSuccess()) {
+            saveDownloadedFile(
+                    download, new FileDataStorageManager(account, context.getContentResolver()));
+            DownloadCache.fileDownloaded(context, account, download.getFile());
+        }
+        sendBroadcastDownloadFinished(context, download, downloadResult);
+    }
+    
+    
     /**
      * Sends a broadcast when a download finishes in order to the interested activities can update their view
      * 
+     * @param context           Android context.
      * @param download          Finished download operation
      * @param downloadResult    Result of the download operation
      */
-    private void sendBroadcastDownloadFinished(DownloadFileOperation download, RemoteOperationResult downloadResult) {
+    private static void sendBroadcastDownloadFinished(Context context, 
+            DownloadFileOperation download, RemoteOperationResult downloadResult) {
         Intent end = new Intent(getDownloadFinishMessage());
         end.putExtra(EXTRA_DOWNLOAD_RESULT, downloadResult.isSuccess());
         end.putExtra(ACCOUNT_NAME, download.getAccount().name);
         end.putExtra(EXTRA_REMOTE_PATH, download.getRemotePath());
         end.putExtra(EXTRA_FILE_PATH, download.getSavePath());
-        sendStickyBroadcast(end);
+        context.sendStickyBroadcast(end);
     }
     
     
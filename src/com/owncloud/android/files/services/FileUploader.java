@@ -20,13 +20,20 @@ package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpStatus;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -35,13 +42,12 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
-import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.webkit.MimeTypeMap;
 
@@ -53,30 +59,30 @@ import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.db.DbHandler;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
-import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
 import com.owncloud.android.lib.common.accounts.AccountUtils.Constants;
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
-import com.owncloud.android.lib.resources.files.FileUtils;
-import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
-import com.owncloud.android.lib.resources.files.RemoteFile;
 import com.owncloud.android.lib.resources.status.OwnCloudVersion;
 import com.owncloud.android.notifications.NotificationBuilderWithProgressBar;
 import com.owncloud.android.notifications.NotificationDelayer;
+import com.owncloud.android.notifications.TransferProgressNotifier;
 import com.owncloud.android.operations.CreateFolderOperation;
 import com.owncloud.android.operations.UploadFileOperation;
 import com.owncloud.android.operations.common.SyncOperation;
+import com.owncloud.android.services.OwnCloudClientPool;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
+import com.owncloud.android.utils.ContentDigestUtils;
 import com.owncloud.android.utils.ErrorMessageAdapter;
 
 
 
-public class FileUploader extends Service implements OnDatatransferProgressListener {
+public class FileUploader extends Service {
 
     private static final String UPLOAD_FINISH_MESSAGE = "UPLOAD_FINISH";
     public static final String EXTRA_UPLOAD_RESULT = "RESULT";
@@ -96,29 +102,59 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     public static final String KEY_FORCE_OVERWRITE = "KEY_FORCE_OVERWRITE";
     public static final String KEY_INSTANT_UPLOAD = "INSTANT_UPLOAD";
     public static final String KEY_LOCAL_BEHAVIOUR = "BEHAVIOUR";
+    /** Priority class of the uploads; one of the PRIORITY_* constants in {@link TransferWorkerPool} */
+    public static final String KEY_PRIORITY = "PRIORITY";
 
     public static final int LOCAL_BEHAVIOUR_COPY = 0;
     public static final int LOCAL_BEHAVIOUR_MOVE = 1;
     public static final int LOCAL_BEHAVIOUR_FORGET = 2;
+    /** Uploads directly from the source file and copies it to the ownCloud folder after that */
+    public static final int LOCAL_BEHAVIOUR_COPY_AFTER_UPLOAD = 3;
 
     public static final int UPLOAD_SINGLE_FILE = 0;
     public static final int UPLOAD_MULTIPLE_FILES = 1;
 
+    /** Keys of the preferences limiting the number of uploads running at the same time */
+    public static final String PREF_MAX_PARALLEL_UPLOADS = "max_parallel_uploads";
+    public static final String PREF_MAX_PARALLEL_UPLOADS_PER_ACCOUNT = 
+            "max_parallel_uploads_per_account";
+
+    private static final int DEFAULT_MAX_PARALLEL_UPLOADS = 3;
+    private static final int DEFAULT_MAX_PARALLEL_UPLOADS_PER_ACCOUNT = 2;
+
+    /** Minimum time, in milliseconds, between progress reports to the bound listeners */
+    private static final long PROGRESS_DISPATCH_INTERVAL = 100;
+
+    /** Files up to this size, in bytes, requested together are uploaded in batches */
+    private static final long SMALL_FILE_MAX_SIZE = 512 * 1024;
+    /** Maximum number of files in a batch of small uploads */
+    private static final int SMALL_FILES_BATCH_SIZE = 50;
+
     private static final String TAG = FileUploader.class.getSimpleName();
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    private TransferWorkerPool mWorkers;
+    private UploadedFilesRefresher mRefresher;
+
+    /** Bytes not uploaded because the server already had the contents */
+    private final AtomicLong mSavedBytes = new AtomicLong(0);
     private IBinder mBinder;
-    private OwnCloudClient mUploadClient = null;
-    private Account mLastAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private volatile int mLastStartId;
+    private Handler mHandler;
+    private final Object mFolderCreationLock = new Object();
+
+    /** Remote folders known to exist, keyed by account name and path; valid while the service lives */
+    private final Set<String> mExistingFolders = Collections.synchronizedSet(new HashSet<String>());
+    private final ConcurrentMap<String, Object> mFolderCheckLocks = 
+            new ConcurrentHashMap<String, Object>();
 
     private ConcurrentMap<String, UploadFileOperation> mPendingUploads = new ConcurrentHashMap<String, UploadFileOperation>();
-    private UploadFileOperation mCurrentUpload = null;
+
+    /** Batch of every upload waiting in a {@link SmallFilesBatch} to be started */
+    private final ConcurrentMap<UploadFileOperation, SmallFilesBatch> mWaitingInBatch =
+            new ConcurrentHashMap<UploadFileOperation, SmallFilesBatch>();
 
     private NotificationManager mNotificationManager;
-    private NotificationCompat.Builder mNotificationBuilder;
-    private int mLastPercent;
+    private TransferProgressNotifier mProgressNotifier;
 
     
     public static String getUploadFinishMessage() {
@@ -159,13 +195,57 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         super.onCreate();
         Log_OC.i(TAG, "mPendingUploads size:" + mPendingUploads.size());
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileUploaderThread", Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        mProgressNotifier = new TransferProgressNotifier(this,
+                R.string.uploader_upload_in_progress_ticker,
+                R.string.uploader_upload_in_progress_content);
+        mHandler = new Handler();
+        SharedPreferences appPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mWorkers = new TransferWorkerPool(
+                "FileUploaderThread",
+                appPrefs.getInt(PREF_MAX_PARALLEL_UPLOADS, DEFAULT_MAX_PARALLEL_UPLOADS),
+                appPrefs.getInt(
+                        PREF_MAX_PARALLEL_UPLOADS_PER_ACCOUNT, 
+                        DEFAULT_MAX_PARALLEL_UPLOADS_PER_ACCOUNT
+                ),
+                new TransferWorkerPool.OnIdleListener() {
+                    @Override
+                    public void onIdle() {
+                        // in the main thread, so no new start request is in progress meanwhile
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                stopIfIdle();
+                            }
+                        });
+                    }
+                }
+        );
+        mRefresher = new UploadedFilesRefresher(getContentResolver());
         mBinder = new FileUploaderBinder();
     }
 
+    /**
+     * Stops the service if no transfer is queued or in progress anymore. Must be called from
+     * the main thread, where the start requests enqueue new transfers.
+     */
+    private void stopIfIdle() {
+        if (mWorkers.getActiveCount() == 0 && mWorkers.getQueuedCount() == 0) {
+            stopSelf(mLastStartId);
+        }
+    }
+
+
+    /**
+     * Service clean up
+     */
+    @Override
+    public void onDestroy() {
+        mWorkers.shutdown();
+        mRefresher.shutdown();
+        mProgressNotifier.cancelAll();
+        super.onDestroy();
+    }
+
     /**
      * Entry point to add one or several files to the queue of uploads.
      * 
@@ -225,6 +305,8 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         boolean forceOverwrite = intent.getBooleanExtra(KEY_FORCE_OVERWRITE, false);
         boolean isInstant = intent.getBooleanExtra(KEY_INSTANT_UPLOAD, false);
         int localAction = intent.getIntExtra(KEY_LOCAL_BEHAVIOUR, LOCAL_BEHAVIOUR_COPY);
+        final int priority = intent.getIntExtra(KEY_PRIORITY, isInstant ?
+                TransferWorkerPool.PRIORITY_INSTANT : TransferWorkerPool.PRIORITY_USER_BULK);
         
         if (intent.hasExtra(KEY_FILE) && files == null) {
             Log_OC.e(TAG, "Incorrect array for OCFiles provided in upload intent");
@@ -260,22 +342,49 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         OwnCloudVersion ocv = new OwnCloudVersion(version);
         
         boolean chunked = FileUploader.chunkedUploadIsSupported(ocv);
-        AbstractList<String> requestedUploads = new Vector<String>();
-        String uploadKey = null;
+        mLastStartId = startId;
         UploadFileOperation newUpload = null;
+        Map<String, SmallFilesBatch> batches = new HashMap<String, SmallFilesBatch>();
         try {
             for (int i = 0; i < files.length; i++) {
-                uploadKey = buildRemoteName(account, files[i].getRemotePath());
+                final String uploadKey = buildRemoteName(account, files[i].getRemotePath());
                 newUpload = new UploadFileOperation(account, files[i], chunked, isInstant, forceOverwrite, localAction, 
                         getApplicationContext());
                 if (isInstant) {
                     newUpload.setRemoteFolderToBeCreated();
                 }
-                mPendingUploads.putIfAbsent(uploadKey, newUpload); // Grants that the file only upload once time
-
-                newUpload.addDatatransferProgressListener(this);
-                newUpload.addDatatransferProgressListener((FileUploaderBinder)mBinder);
-                requestedUploads.add(uploadKey);
+                if (mPendingUploads.putIfAbsent(uploadKey, newUpload) == null) { // Grants that the file only upload once time
+                    newUpload.addDatatransferProgressListener(
+                            new UploadProgressListener(uploadKey, newUpload));
+                    mProgressNotifier.addTransfer(newUpload, newUpload.getFileName(),
+                            files[i].getFileLength());
+                    if (files.length > 1 && files[i].getFileLength() <= SMALL_FILE_MAX_SIZE) {
+                        // small files to the same folder go together to a single worker
+                        String folderPath = new File(files[i].getRemotePath()).getParent();
+                        SmallFilesBatch batch = batches.get(folderPath);
+                        if (batch == null) {
+                            batch = new SmallFilesBatch();
+                            batches.put(folderPath, batch);
+                        }
+                        batch.add(uploadKey, newUpload);
+                        if (batch.size() >= SMALL_FILES_BATCH_SIZE) {
+                            enqueueBatch(batch, account, priority);
+                            batches.remove(folderPath);
+                        }
+                        continue;
+                    }
+                    // uploads to the same remote path are run one after another, in order
+                    final UploadFileOperation queuedUpload = newUpload;
+                    mWorkers.enqueue(uploadKey, account.name, uploadKey, priority, new Runnable() {
+                        @Override
+                        public void run() {
+                            uploadFile(uploadKey, queuedUpload, null);
+                        }
+                    });
+                }
+            }
+            for (SmallFilesBatch batch : batches.values()) {
+                enqueueBatch(batch, account, priority);
             }
 
         } catch (IllegalArgumentException e) {
@@ -292,12 +401,7 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
 
         }
 
-        if (requestedUploads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedUploads;
-            mServiceHandler.sendMessage(msg);
-        }
+        stopIfIdle();
         Log_OC.i(TAG, "mPendingUploads size:" + mPendingUploads.size());
         return Service.START_NOT_STICKY;
     }
@@ -330,12 +434,15 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * 
      * It provides by itself the available operations.
      */
-    public class FileUploaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileUploaderBinder extends Binder {
         
         /** 
          * Map of listeners that will be reported about progress of uploads from a {@link FileUploaderBinder} instance 
          */
-        private Map<String, OnDatatransferProgressListener> mBoundListeners = new HashMap<String, OnDatatransferProgressListener>();
+        private Map<String, OnDatatransferProgressListener> mBoundListeners = new ConcurrentHashMap<String, OnDatatransferProgressListener>();
+
+        /** Changes on every update of mBoundListeners, so that uploads know when to look them up again */
+        private final AtomicInteger mBoundListenersVersion = new AtomicInteger(0);
         
         /**
          * Cancels a pending or current upload of a remote file.
@@ -349,6 +456,11 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 upload = mPendingUploads.remove(buildRemoteName(account, file));
             }
             if (upload != null) {
+                if (mWaitingInBatch.remove(upload) != null ||
+                        mWorkers.remove(buildRemoteName(account, file))) {
+                    // never started; won't notify a result
+                    discardCancelledUpload(upload);
+                }
                 upload.cancel();
             }
         }
@@ -357,6 +469,7 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         
         public void clearListeners() {
             mBoundListeners.clear();
+            mBoundListenersVersion.incrementAndGet();
         }
 
 
@@ -402,6 +515,7 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             if (account == null || file == null || listener == null) return;
             String targetKey = buildRemoteName(account, file);
             mBoundListeners.put(targetKey, listener);
+            mBoundListenersVersion.incrementAndGet();
         }
         
         
@@ -418,130 +532,202 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             String targetKey = buildRemoteName(account, file);
             if (mBoundListeners.get(targetKey) == listener) {
                 mBoundListeners.remove(targetKey);
+                mBoundListenersVersion.incrementAndGet();
             }
         }
 
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer,
-                String fileName) {
-            String key = buildRemoteName(mCurrentUpload.getAccount(), mCurrentUpload.getFile());
-            OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
-            if (boundListener != null) {
-                boundListener.onTransferProgress(progressRate, totalTransferredSoFar, totalToTransfer, fileName);
+        /**
+         * Reports progress of an upload to the listener bound to its file, if any.
+         * 
+         * The bound listener is cached in the upload, and only looked up again when the 
+         * bound listeners change.
+         */
+        private void onTransferProgress(UploadProgressListener upload, long progressRate, 
+                long totalTransferredSoFar, long totalToTransfer, String fileName) {
+            int version = mBoundListenersVersion.get();
+            if (upload.mBoundListenersVersion != version) {
+                upload.mBoundListener = mBoundListeners.get(upload.mUploadKey);
+                upload.mBoundListenersVersion = version;
+            }
+            if (upload.mBoundListener != null) {
+                upload.mBoundListener.onTransferProgress(
+                        progressRate, totalTransferredSoFar, totalToTransfer, fileName);
             }
         }
         
     }
 
     /**
-     * Upload worker. Performs the pending uploads in the order they were
-     * requested.
+     * Receives the progress of a single upload and forwards it to the status notification 
+     * and to the listeners bound through {@link FileUploaderBinder}.
+     * 
+     * Several uploads run at the same time, so every one of them needs its own instance.
      * 
-     * Created with the Looper of a new thread, started in
-     * {@link FileUploader#onCreate()}.
+     * Progress is forwarded at most once every {@link #PROGRESS_DISPATCH_INTERVAL} milliseconds,
+     * and when the upload completes; the progress rates of the callbacks in between are added
+     * to the next one forwarded. Only called from the thread running the upload.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will
-        // warn about a possible memory leak
-        FileUploader mService;
+    private class UploadProgressListener implements OnDatatransferProgressListener {
+        
+        private final String mUploadKey;
+        private final UploadFileOperation mUpload;
 
-        public ServiceHandler(Looper looper, FileUploader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+        private long mLastDispatch = 0;
+        private long mPendingRate = 0;
+
+        /** Listener bound to the upload, cached by {@link FileUploaderBinder} */
+        private OnDatatransferProgressListener mBoundListener = null;
+        private int mBoundListenersVersion = -1;
+        
+        UploadProgressListener(String uploadKey, UploadFileOperation upload) {
+            mUploadKey = uploadKey;
+            mUpload = upload;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedUploads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedUploads.iterator();
-                while (it.hasNext()) {
-                    mService.uploadFile(it.next());
-                }
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar, 
+                long totalToTransfer, String fileName) {
+            mPendingRate += progressRate;
+            long now = SystemClock.uptimeMillis();
+            boolean completed = (totalToTransfer >= 0 && totalTransferredSoFar >= totalToTransfer);
+            if (!completed && now - mLastDispatch < PROGRESS_DISPATCH_INTERVAL) {
+                return;
             }
-            mService.stopSelf(msg.arg1);
+            mLastDispatch = now;
+            long rate = mPendingRate;
+            mPendingRate = 0;
+            mProgressNotifier.updateProgress(mUpload, totalTransferredSoFar, totalToTransfer);
+            ((FileUploaderBinder)mBinder).onTransferProgress(
+                    this, rate, totalTransferredSoFar, totalToTransfer, fileName);
         }
     }
 
     /**
      * Core upload method: sends the file(s) to upload
      * 
+     * Called from the worker threads in {@link #mWorkers}; several uploads can be running at 
+     * the same time, but never two of them to the same remote path.
+     * 
      * @param uploadKey Key to access the upload to perform, contained in
      *            mPendingUploads
+     * @param upload    Upload enqueued with uploadKey; if not in mPendingUploads anymore, it was
+     *                  cancelled after leaving the queue of {@link #mWorkers}.
+     * @param batch     Batch of small uploads the upload belongs to, or null; the uploaded file
+     *                  is saved and its result notified when the batch finishes.
      */
-    public void uploadFile(String uploadKey) {
+    private void uploadFile(String uploadKey, UploadFileOperation upload, SmallFilesBatch batch) {
 
-        synchronized (mPendingUploads) {
-            mCurrentUpload = mPendingUploads.get(uploadKey);
-        }
+        if (mPendingUploads.get(uploadKey) != upload) {
+            discardCancelledUpload(upload);
 
-        if (mCurrentUpload != null) {
+        } else {
 
-            notifyUploadStart(mCurrentUpload);
+            notifyUploadStart(upload);
 
             RemoteOperationResult uploadResult = null, grantResult = null;
+            Account account = upload.getAccount();
+            OwnCloudClient client = null;
+            FileDataStorageManager storageManager = 
+                    new FileDataStorageManager(account, getContentResolver());
             
             try {
                 /// prepare client object to send requests to the ownCloud server
-                if (mUploadClient == null || !mLastAccount.equals(mCurrentUpload.getAccount())) {
-                    mLastAccount = mCurrentUpload.getAccount();
-                    mStorageManager = 
-                            new FileDataStorageManager(mLastAccount, getContentResolver());
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mLastAccount, this);
-                    mUploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, this);
-                }
+                client = getClientFor(account);
                 
                 /// check the existence of the parent folder for the file to upload
-                String remoteParentPath = new File(mCurrentUpload.getRemotePath()).getParent();
+                String remoteParentPath = new File(upload.getRemotePath()).getParent();
                 remoteParentPath = remoteParentPath.endsWith(OCFile.PATH_SEPARATOR) ? remoteParentPath : remoteParentPath + OCFile.PATH_SEPARATOR;
-                grantResult = grantFolderExistence(remoteParentPath);
+                grantResult = grantFolderExistence(remoteParentPath, upload, client, storageManager);
             
                 /// perform the upload
                 if (grantResult.isSuccess()) {
-                    OCFile parent = mStorageManager.getFileByPath(remoteParentPath);
-                    mCurrentUpload.getFile().setParentId(parent.getFileId());
-                    uploadResult = mCurrentUpload.execute(mUploadClient);
+                    OCFile parent = storageManager.getFileByPath(remoteParentPath);
+                    upload.getFile().setParentId(parent.getFileId());
+                    BandwidthShaper.Session shaping = BandwidthShaper.startTransfer(
+                            this, BandwidthShaper.DIRECTION_UPLOAD,
+                            TransferWorkerPool.getRunningPriority());
+                    upload.addDatatransferProgressListener(shaping);
+                    try {
+                        uploadResult = upload.execute(client);
+                    } finally {
+                        upload.removeDatatransferProgressListener(shaping);
+                        shaping.finish();
+                    }
                     if (uploadResult.isSuccess()) {
-                        saveUploadedFile();
+                        saveUploadedFile(upload, client, storageManager, batch);
+                        DownloadCache.scheduleTrim(this);
+                        if (upload.getSavedBytes() > 0) {
+                            Log_OC.i(TAG, "Upload of " + upload.getRemotePath() + 
+                                    " finished without transfer; bytes saved in this service: " + 
+                                    mSavedBytes.addAndGet(upload.getSavedBytes()));
+                        }
+                        
+                    } else if (uploadResult.getHttpCode() == HttpStatus.SC_NOT_FOUND || 
+                            uploadResult.getHttpCode() == HttpStatus.SC_CONFLICT) {
+                        // the parent folder is not there anymore
+                        forgetExistingFolders(account, remoteParentPath);
                     }
                 } else {
                     uploadResult = grantResult;
                 }
                 
             } catch (AccountsException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
+                Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
                 uploadResult = new RemoteOperationResult(e);
                 
             } catch (IOException e) {
-                Log_OC.e(TAG, "Error while trying to get autorization for " + mLastAccount.name, e);
+                Log_OC.e(TAG, "Error while trying to get autorization for " + account.name, e);
                 uploadResult = new RemoteOperationResult(e);
                 
             } finally {
-                synchronized (mPendingUploads) {
-                    mPendingUploads.remove(uploadKey);
-                    Log_OC.i(TAG, "Remove CurrentUploadItem from pending upload Item Map.");
-                }
-                if (uploadResult.isException()) {
-                    // enforce the creation of a new client object for next uploads; this grant that a new socket will 
-                    // be created in the future if the current exception is due to an abrupt lose of network connection
-                    mUploadClient = null;
+                mPendingUploads.remove(uploadKey, upload);
+                Log_OC.i(TAG, "Remove CurrentUploadItem from pending upload Item Map.");
+                if (client != null && isConnectionError(uploadResult)) {
+                    // enforce the creation of new connections for next uploads, in case the current exception is due
+                    // to an abrupt lose of network connection
+                    OwnCloudClientPool.getInstance().closeIdleConnections(account.name);
                 }
             }
             
             /// notify result
             
-            notifyUploadResult(uploadResult, mCurrentUpload);
-            sendFinalBroadcast(mCurrentUpload, uploadResult);
+            if (batch != null) {
+                batch.addResult(upload, uploadResult, client);
+            } else {
+                notifyUploadResult(uploadResult, upload);
+                sendFinalBroadcast(upload, uploadResult);
+            }
 
         }
 
     }
 
+    /**
+     * Closes the notification of an upload cancelled before starting and lets the interested
+     * activities know it won't be done.
+     * 
+     * @param upload    Cancelled upload operation.
+     */
+    private void discardCancelledUpload(UploadFileOperation upload) {
+        mProgressNotifier.finishTransfer(upload);
+        sendFinalBroadcast(upload, new RemoteOperationResult(new OperationCancelledException()));
+    }
+
+    /**
+     * Returns the client object to send requests to the server of an account; the same client
+     * is shared by all the uploads of the account.
+     * 
+     * Not kept in the service: the pool replaces the client of an account when its credentials
+     * or server change, and is asked every time to get the current one.
+     * 
+     * @param account       ownCloud account.
+     */
+    private OwnCloudClient getClientFor(Account account) throws AccountsException, IOException {
+        OwnCloudAccount ocAccount = new OwnCloudAccount(account, this);
+        return OwnCloudClientPool.getInstance().getClientFor(ocAccount, this);
+    }
+
     /**
      * Checks the existence of the folder where the current file will be uploaded both in the remote server 
      * and in the local database.
@@ -549,20 +735,51 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * If the upload is set to enforce the creation of the folder, the method tries to create it both remote
      * and locally.
      *  
+     *  Creations are serialized, so that concurrent uploads to the same new folder don't fail
+     *  trying to create it at the same time.
+     *  
+     *  Folders found in the server are remembered while the service lives, so that the server 
+     *  is asked only once about the target folder of a batch of uploads.
+     *  
      *  @param  pathToGrant     Full remote path whose existence will be granted.
+     *  @param  upload          Upload operation that needs the folder.
+     *  @param  client          Client object to send requests to the server of the upload.
+     *  @param  storageManager  Access to the local database of the account of the upload.
      *  @return  An {@link OCFile} instance corresponding to the folder where the file will be uploaded.
      */
-    private RemoteOperationResult grantFolderExistence(String pathToGrant) {
-        RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
-        RemoteOperationResult result = operation.execute(mUploadClient);
-        if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND && mCurrentUpload.isRemoteFolderToBeCreated()) {
-            SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
-            result = syncOp.execute(mUploadClient, mStorageManager);
+    private RemoteOperationResult grantFolderExistence(String pathToGrant, UploadFileOperation upload, 
+            OwnCloudClient client, FileDataStorageManager storageManager) {
+        String folderKey = upload.getAccount().name + pathToGrant;
+        RemoteOperationResult result = null;
+        if (mExistingFolders.contains(folderKey)) {
+            result = new RemoteOperationResult(ResultCode.OK);
+            
+        } else {
+            Object newLock = new Object();
+            Object folderLock = mFolderCheckLocks.putIfAbsent(folderKey, newLock);
+            if (folderLock == null) {
+                folderLock = newLock;
+            }
+            synchronized (folderLock) {
+                // other upload to the same folder could have checked it meanwhile
+                if (mExistingFolders.contains(folderKey)) {
+                    result = new RemoteOperationResult(ResultCode.OK);
+                } else {
+                    result = checkRemoteFolder(pathToGrant, upload, client, storageManager);
+                    if (result.isSuccess()) {
+                        mExistingFolders.add(folderKey);
+                    }
+                }
+            }
         }
+        
         if (result.isSuccess()) {
-            OCFile parentDir = mStorageManager.getFileByPath(pathToGrant);
-            if (parentDir == null) {
-                parentDir = createLocalFolder(pathToGrant);
+            OCFile parentDir;
+            synchronized (mFolderCreationLock) {
+                parentDir = storageManager.getFileByPath(pathToGrant);
+                if (parentDir == null) {
+                    parentDir = createLocalFolder(pathToGrant, storageManager);
+                }
             }
             if (parentDir != null) {
                 result = new RemoteOperationResult(ResultCode.OK);
@@ -573,19 +790,57 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
         return result;
     }
 
+
+    private RemoteOperationResult checkRemoteFolder(String pathToGrant, UploadFileOperation upload, 
+            OwnCloudClient client, FileDataStorageManager storageManager) {
+        RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
+        RemoteOperationResult result = operation.execute(client);
+        if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND && upload.isRemoteFolderToBeCreated()) {
+            synchronized (mFolderCreationLock) {
+                // check again; other upload could have created the folder meanwhile
+                result = operation.execute(client);
+                if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND) {
+                    SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
+                    result = syncOp.execute(client, storageManager);
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Removes a folder and all the folders inside from the cache of remote folders known 
+     * to exist.
+     * 
+     * @param account       ownCloud account of the folder.
+     * @param remotePath    Remote path of the folder, ending with a separator.
+     */
+    private void forgetExistingFolders(Account account, String remotePath) {
+        String prefix = account.name + remotePath;
+        synchronized (mExistingFolders) {
+            Iterator<String> it = mExistingFolders.iterator();
+            while (it.hasNext()) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
     
-    private OCFile createLocalFolder(String remotePath) {
+    private OCFile createLocalFolder(String remotePath, FileDataStorageManager storageManager) {
         String parentPath = new File(remotePath).getParent();
         parentPath = parentPath.endsWith(OCFile.PATH_SEPARATOR) ? parentPath : parentPath + OCFile.PATH_SEPARATOR;
-        OCFile parent = mStorageManager.getFileByPath(parentPath);
+        OCFile parent = storageManager.getFileByPath(parentPath);
         if (parent == null) {
-            parent = createLocalFolder(parentPath);
+            parent = createLocalFolder(parentPath, storageManager);
         }
         if (parent != null) {
             OCFile createdFolder = new OCFile(remotePath);
             createdFolder.setMimetype("DIR");
             createdFolder.setParentId(parent.getFileId());
-            mStorageManager.saveFile(createdFolder);
+            storageManager.saveFile(createdFolder);
             return createdFolder;
         }
         return null;
@@ -595,53 +850,209 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     /**
      * Saves a OC File after a successful upload.
      * 
-     * A PROPFIND is necessary to keep the props in the local database
-     * synchronized with the server, specially the modification time and Etag
-     * (where available)
+     * The properties assigned by the server, specially the modification time and Etag
+     * (where available), are refreshed later by {@link #mRefresher}, together with other 
+     * files uploaded to the same folder, unless they were already read to verify the upload.
      * 
      * TODO refactor this ugly thing
+     * 
+     * @param upload            Finished upload operation.
+     * @param client            Client object to send requests to the server of the upload.
+     * @param storageManager    Access to the local database of the account of the upload.
      */
-    private void saveUploadedFile() {
-        OCFile file = mCurrentUpload.getFile();
+    private void saveUploadedFile(UploadFileOperation upload, OwnCloudClient client, 
+            FileDataStorageManager storageManager, SmallFilesBatch batch) {
+        OCFile file = upload.getFile();
         if (file.fileExists()) {
-            file = mStorageManager.getFileById(file.getFileId());
+            file = storageManager.getFileById(file.getFileId());
         }
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForData(syncDate);
 
-        // new PROPFIND to keep data consistent with server 
-        // in theory, should return the same we already have
-        ReadRemoteFileOperation operation = new ReadRemoteFileOperation(mCurrentUpload.getRemotePath());
-        RemoteOperationResult result = operation.execute(mUploadClient);
-        if (result.isSuccess()) {
-            updateOCFile(file, (RemoteFile) result.getData().get(0));
-            file.setLastSyncDateForProperties(syncDate);
-        }
-        
         // / maybe this would be better as part of UploadFileOperation... or
         // maybe all this method
-        if (mCurrentUpload.wasRenamed()) {
-            OCFile oldFile = mCurrentUpload.getOldFile();
+        if (upload.wasRenamed()) {
+            OCFile oldFile = upload.getOldFile();
             if (oldFile.fileExists()) {
                 oldFile.setStoragePath(null);
-                mStorageManager.saveFile(oldFile);
+                storageManager.saveFile(oldFile);
 
             } // else: it was just an automatic renaming due to a name
               // coincidence; nothing else is needed, the storagePath is right
-              // in the instance returned by mCurrentUpload.getFile()
+              // in the instance returned by upload.getFile()
         }
         file.setNeedsUpdateThumbnail(true);
-        mStorageManager.saveFile(file);
+        ContentDigestUtils.setSynchronizedDigest(file, upload.getContentDigest());
+        if (batch != null) {
+            // saved with the rest of the batch
+            batch.addUploadedFile(upload, file);
+            return;
+        }
+        boolean refreshed = upload.copyServerProperties(file);
+        if (refreshed) {
+            file.setLastSyncDateForProperties(syncDate);
+        }
+        storageManager.saveFile(file);
+
+        if (!refreshed) {
+            // new PROPFIND to keep data consistent with server, shared with other uploads
+            mRefresher.add(upload.getAccount(), client, file.getRemotePath());
+        }
+    }
+
+
+    /**
+     * @return      'True' if the result is due to a failure in the connection to the server,
+     *              so that the client object should not be used anymore.
+     */
+    private static boolean isConnectionError(RemoteOperationResult result) {
+        if (result == null || !result.isException()) {
+            return false;
+        }
+        switch (result.getCode()) {
+            case WRONG_CONNECTION:
+            case TIMEOUT:
+            case HOST_NOT_AVAILABLE:
+            case SSL_ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Adds a batch of small uploads to the queue of workers. The batch holds the ordering keys
+     * of all its uploads, so that other uploads to the same paths run before or after it.
+     */
+    private void enqueueBatch(SmallFilesBatch batch, Account account, int priority) {
+        mWorkers.enqueueWithOrderingKeys(batch.getKey(), account.name, batch.getUploadKeys(),
+                priority, batch);
     }
 
-    private void updateOCFile(OCFile file, RemoteFile remoteFile) {
-        file.setCreationTimestamp(remoteFile.getCreationTimestamp());
-        file.setFileLength(remoteFile.getLength());
-        file.setMimetype(remoteFile.getMimeType());
-        file.setModificationTimestamp(remoteFile.getModifiedTimestamp());
-        file.setModificationTimestampAtLastSyncForData(remoteFile.getModifiedTimestamp());
-        // file.setEtag(remoteFile.getEtag());    // TODO Etag, where available
-        file.setRemoteId(remoteFile.getRemoteId());
+
+    /**
+     * Group of small uploads to the same folder, run one after another in a single worker.
+     * 
+     * All of them share the client of the account, and so its open connection to the server,
+     * without waiting again in the queue of workers between files. The uploaded files are saved
+     * in the database in a single transaction when the batch finishes, and their results are 
+     * notified after that, so that listeners find the files already saved.
+     */
+    private class SmallFilesBatch implements Runnable {
+
+        private final List<String> mUploadKeys = new ArrayList<String>();
+        private final List<UploadFileOperation> mUploads = new ArrayList<UploadFileOperation>();
+        private final List<UploadFileOperation> mFinished = new ArrayList<UploadFileOperation>();
+        private final List<RemoteOperationResult> mResults = new ArrayList<RemoteOperationResult>();
+        /** Files to save for the successful uploads, as updated by saveUploadedFile */
+        private final Map<UploadFileOperation, OCFile> mUploadedFiles =
+                new HashMap<UploadFileOperation, OCFile>();
+        private OwnCloudClient mClient = null;
+
+        void add(String uploadKey, UploadFileOperation upload) {
+            mUploadKeys.add(uploadKey);
+            mUploads.add(upload);
+            mWaitingInBatch.put(upload, this);
+        }
+
+        int size() {
+            return mUploads.size();
+        }
+
+        String getKey() {
+            return mUploadKeys.get(0) + "#batch";
+        }
+
+        /**
+         * @return      Keys of the uploads in the batch, used as its ordering keys in the pool,
+         *              so that it never runs at the same time as other uploads to the same paths.
+         */
+        List<String> getUploadKeys() {
+            return new ArrayList<String>(mUploadKeys);
+        }
+
+        void addUploadedFile(UploadFileOperation upload, OCFile file) {
+            mUploadedFiles.put(upload, file);
+        }
+
+        void addResult(UploadFileOperation upload, RemoteOperationResult result,
+                OwnCloudClient client) {
+            mFinished.add(upload);
+            mResults.add(result);
+            if (client != null) {
+                mClient = client;
+            }
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtime();
+            for (int i=0; i<mUploads.size(); i++) {
+                // uploads cancelled while waiting were already discarded by the binder
+                if (mWaitingInBatch.remove(mUploads.get(i)) != null) {
+                    uploadFile(mUploadKeys.get(i), mUploads.get(i), this);
+                }
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+
+            /// save uploaded files, one transaction per folder
+            int uploaded = 0;
+            long bytes = 0;
+            if (!mFinished.isEmpty()) {
+                Account account = mFinished.get(0).getAccount();
+                FileDataStorageManager storageManager = 
+                        new FileDataStorageManager(account, getContentResolver());
+                Map<String, List<OCFile>> filesPerFolder = new HashMap<String, List<OCFile>>();
+                for (int i=0; i<mFinished.size(); i++) {
+                    OCFile file = mUploadedFiles.get(mFinished.get(i));
+                    if (mResults.get(i).isSuccess() && file != null) {
+                        String folderPath = new File(file.getRemotePath()).getParent();
+                        folderPath = folderPath.endsWith(OCFile.PATH_SEPARATOR) ? folderPath : folderPath + OCFile.PATH_SEPARATOR;
+                        List<OCFile> files = filesPerFolder.get(folderPath);
+                        if (files == null) {
+                            files = new ArrayList<OCFile>();
+                            filesPerFolder.put(folderPath, files);
+                        }
+                        OCFile saved = storageManager.getFileByPath(file.getRemotePath());
+                        if (saved != null) {
+                            file.setFileId(saved.getFileId());
+                        }
+                        files.add(file);
+                    }
+                }
+                for (Map.Entry<String, List<OCFile>> entry : filesPerFolder.entrySet()) {
+                    OCFile folder = storageManager.getFileByPath(entry.getKey());
+                    if (folder != null) {
+                        storageManager.saveFolder(folder, entry.getValue(), 
+                                Collections.<OCFile>emptyList());
+                    } else {
+                        // folder removed from the database meanwhile; save the files one by one
+                        Log_OC.w(TAG, "Folder " + entry.getKey() + " not found in database, " +
+                                "saving uploaded files individually");
+                        for (OCFile file : entry.getValue()) {
+                            storageManager.saveFile(file);
+                        }
+                    }
+                    for (OCFile file : entry.getValue()) {
+                        // new PROPFIND to keep data consistent with server, shared with other uploads
+                        mRefresher.add(account, mClient, file.getRemotePath());
+                        bytes += file.getFileLength();
+                    }
+                    uploaded += entry.getValue().size();
+                }
+            }
+
+            /// notify results
+            for (int i=0; i<mFinished.size(); i++) {
+                notifyUploadResult(mResults.get(i), mFinished.get(i));
+                sendFinalBroadcast(mFinished.get(i), mResults.get(i));
+            }
+            Log_OC.i(TAG, "Batch of small files: " + uploaded + " of " + mUploads.size() + 
+                    " uploaded, " + bytes + " bytes in " + elapsed + " ms" + 
+                    ((elapsed > 0) ? 
+                            String.format(" (%.1f files/s)", uploaded * 1000.0 / elapsed) : ""));
+        }
     }
 
     private OCFile obtainNewOCFileToUpload(String remotePath, String localPath, String mimeType,
@@ -677,50 +1088,21 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
     }
 
     /**
-     * Creates a status notification to show the upload progress
+     * Notifies the start of an upload to the progress notification of the current batch.
+     * 
+     * The notification opens the details of the last upload started.
      * 
      * @param upload Upload operation starting.
      */
     private void notifyUploadStart(UploadFileOperation upload) {
-        // / create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder = 
-                NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
-        mNotificationBuilder
-                .setOngoing(true)
-                .setSmallIcon(R.drawable.notification_icon)
-                .setTicker(getString(R.string.uploader_upload_in_progress_ticker))
-                .setContentTitle(getString(R.string.uploader_upload_in_progress_ticker))
-                .setProgress(100, 0, false)
-                .setContentText(
-                        String.format(getString(R.string.uploader_upload_in_progress_content), 0, upload.getFileName()));
-
         /// includes a pending intent in the notification showing the details view of the file
         Intent showDetailsIntent = new Intent(this, FileDisplayActivity.class);
         showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
         showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
         showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+        mProgressNotifier.startTransfer(upload, PendingIntent.getActivity(
             this, (int) System.currentTimeMillis(), showDetailsIntent, 0
         ));
-
-        mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
-    }
-
-    /**
-     * Callback method to update the progress bar in the status notification
-     */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar, long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, false);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
-        }
-        mLastPercent = percent;
     }
 
     /**
@@ -729,14 +1111,18 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
      * @param uploadResult Result of the upload operation.
      * @param upload Finished upload operation
      */
-    private void notifyUploadResult(
+    private synchronized void notifyUploadResult(
             RemoteOperationResult uploadResult, UploadFileOperation upload) {
         Log_OC.d(TAG, "NotifyUploadResult with resultCode: " + uploadResult.getCode());
         // / cancelled operation or success -> silent removal of progress notification
-        mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+        mProgressNotifier.finishTransfer(upload);
         
         // Show the result: success or fail notification
         if (!uploadResult.isCancelled()) {
+            NotificationCompat.Builder resultBuilder = 
+                    NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+            resultBuilder.setSmallIcon(R.drawable.notification_icon);
+
             int tickerId = (uploadResult.isSuccess()) ? R.string.uploader_upload_succeeded_ticker : 
                 R.string.uploader_upload_failed_ticker;
             
@@ -750,7 +1136,7 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             tickerId = (needsToUpdateCredentials) ? 
                     R.string.uploader_upload_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            resultBuilder
             .setTicker(getString(tickerId))
             .setContentTitle(getString(tickerId))
             .setAutoCancel(true)
@@ -760,6 +1146,15 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
             content =  ErrorMessageAdapter.getErrorCauseMessage(
                     uploadResult, upload, getResources()
             );
+
+            /// by default, the notification shows the details view of the file
+            Intent showDetailsIntent = new Intent(this, FileDisplayActivity.class);
+            showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
+            showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
+            showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            resultBuilder.setContentIntent(PendingIntent.getActivity(
+                this, (int) System.currentTimeMillis(), showDetailsIntent, 0
+            ));
             
             if (needsToUpdateCredentials) {
                 // let the user update credentials with one click
@@ -774,17 +1169,15 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                resultBuilder.setContentIntent(PendingIntent.getActivity(
                     this, 
                     (int) System.currentTimeMillis(), 
                     updateAccountCredentials, 
                     PendingIntent.FLAG_ONE_SHOT
                 ));
-                
-                mUploadClient = null;   
-                    // grant that future retries on the same account will get the fresh credentials
+
             } else {
-                mNotificationBuilder.setContentText(content);
+                resultBuilder.setContentText(content);
     
                 if (upload.isInstant()) {
                     DbHandler db = null;
@@ -814,13 +1207,13 @@ public class FileUploader extends Service implements OnDatatransferProgressListe
                 }
             }
             
-            mNotificationBuilder.setContentText(content);
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            resultBuilder.setContentText(content);
+            mNotificationManager.notify(tickerId, resultBuilder.build());
             
             if (uploadResult.isSuccess()) {
                 
                 DbHandler db = new DbHandler(this.getBaseContext());
-                db.removeIUPendingFile(mCurrentUpload.getOriginalStoragePath());
+                db.removeIUPendingFile(upload.getOriginalStoragePath());
                 db.close();
 
                 // remove success notification, with a delay of 2 seconds
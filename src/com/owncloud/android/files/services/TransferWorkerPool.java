@@ -0,0 +1,476 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import android.os.Process;
+
+/**
+ * Bounded pool of worker threads running file transfers.
+ *
+ * Every transfer belongs to a priority class. When a worker is free, the transfer with the
+ * highest priority is started, and transfers in the same class are started in the order they
+ * were enqueued, as long as the number of active transfers is below the global limit and the
+ * number of active transfers of the same account is below the per-account limit. Running
+ * transfers are never interrupted; priorities are applied between files.
+ *
+ * A transfer waiting in the queue gains one priority class every {@link #AGING_INTERVAL}
+ * milliseconds, so that low priority transfers are not starved by a constant flow of higher
+ * priority ones. One extra worker is reserved for interactive transfers, so they don't wait
+ * for a file of a long backlog to finish.
+ *
+ * Transfers sharing an ordering key (for instance, the same target path) never run at the same
+ * time, and are started in the order they were enqueued. A transfer may hold several ordering
+ * keys, like a batch of uploads to different paths.
+ */
+public class TransferWorkerPool {
+
+    private static final String TAG = TransferWorkerPool.class.getSimpleName();
+
+    private static final long IDLE_THREAD_KEEP_ALIVE = 30;  // seconds
+
+    /** Transfers requested by the user and waited for, like a file to open or preview */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /** Transfers requested by the user in the background, like uploads of several files */
+    public static final int PRIORITY_USER_BULK = 1;
+    /** Transfers started by the synchronization of kept-in-sync files */
+    public static final int PRIORITY_SYNC = 2;
+    /** Instant uploads of pictures and videos */
+    public static final int PRIORITY_INSTANT = 3;
+
+    private static final int PRIORITY_CLASSES = 4;
+    private static final String[] PRIORITY_NAMES = { "interactive", "user-bulk", "sync", "instant" };
+
+    /** Time, in milliseconds, a queued transfer waits to gain a priority class */
+    public static final long AGING_INTERVAL = 30 * 1000;
+
+    /** Priority class of the transfer running in every worker thread */
+    private static final ThreadLocal<Integer> sRunningPriority = new ThreadLocal<Integer>();
+
+    /**
+     * Callback to know when the pool runs out of work.
+     */
+    public interface OnIdleListener {
+        public void onIdle();
+    }
+
+    static class QueuedTransfer {
+        final String mKey;
+        final String mAccountName;
+        final Collection<String> mOrderingKeys;
+        final Runnable mTransfer;
+        final long mEnqueuedAt;
+        int mPriority;
+        boolean mOnReservedWorker = false;
+
+        QueuedTransfer(String key, String accountName, Collection<String> orderingKeys, int priority,
+                Runnable transfer) {
+            mKey = key;
+            mAccountName = accountName;
+            mOrderingKeys = orderingKeys;
+            mPriority = priority;
+            mTransfer = transfer;
+            mEnqueuedAt = System.currentTimeMillis();
+        }
+
+        int effectivePriority(long now) {
+            return Math.max(PRIORITY_INTERACTIVE,
+                    mPriority - (int) ((now - mEnqueuedAt) / AGING_INTERVAL));
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final OnIdleListener mOnIdleListener;
+
+    private final LinkedList<QueuedTransfer> mQueue = new LinkedList<QueuedTransfer>();
+    private final Map<String, Integer> mActivePerAccount = new HashMap<String, Integer>();
+    private final Set<String> mActiveOrderingKeys = new HashSet<String>();
+    private int mActiveCount = 0;
+    private boolean mReservedWorkerBusy = false;
+
+    /** Metrics per priority class */
+    private final long[] mStartedCount = new long[PRIORITY_CLASSES];
+    private final long[] mTotalWait = new long[PRIORITY_CLASSES];
+    private final long[] mMaxWait = new long[PRIORITY_CLASSES];
+
+    private int mMaxTransfers;
+    private int mMaxTransfersPerAccount;
+
+
+    /**
+     * @param name                      Prefix for the names of the worker threads.
+     * @param maxTransfers              Maximum number of transfers running at the same time.
+     * @param maxTransfersPerAccount    Maximum number of transfers of a single account running
+     *                                  at the same time.
+     * @param onIdleListener            Listener to notify when all the transfers finished, or null.
+     */
+    public TransferWorkerPool(final String name, int maxTransfers, int maxTransfersPerAccount,
+            OnIdleListener onIdleListener) {
+        mMaxTransfers = Math.max(1, maxTransfers);
+        mMaxTransfersPerAccount = Math.max(1, maxTransfersPerAccount);
+        mOnIdleListener = onIdleListener;
+        mExecutor = new ThreadPoolExecutor(
+                mMaxTransfers + 1, mMaxTransfers + 1,   // one worker reserved for interactive transfers
+                IDLE_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(0);
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + "_" + mCount.incrementAndGet());
+                    }
+                }
+        );
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Changes the limits of concurrent transfers. Active transfers are not interrupted.
+     */
+    public synchronized void setLimits(int maxTransfers, int maxTransfersPerAccount) {
+        mMaxTransfers = Math.max(1, maxTransfers);
+        mMaxTransfersPerAccount = Math.max(1, maxTransfersPerAccount);
+        if (mMaxTransfers + 1 > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(mMaxTransfers + 1);
+            mExecutor.setCorePoolSize(mMaxTransfers + 1);
+        } else {
+            mExecutor.setCorePoolSize(mMaxTransfers + 1);
+            mExecutor.setMaximumPoolSize(mMaxTransfers + 1);
+        }
+        dispatch();
+    }
+
+
+    /**
+     * Adds a transfer to the queue.
+     *
+     * @param key           Key identifying the transfer, to remove it from the queue.
+     * @param accountName   Name of the account the transfer belongs to.
+     * @param orderingKey   Transfers with the same ordering key are run one after another,
+     *                      in order; null if no ordering is needed.
+     * @param priority      Priority class of the transfer; one of the PRIORITY_* constants.
+     * @param transfer      Work to do in a worker thread.
+     */
+    public void enqueue(String key, String accountName, String orderingKey,
+            int priority, Runnable transfer) {
+        enqueueWithOrderingKeys(key, accountName, (orderingKey == null) ?
+                Collections.<String>emptyList() :
+                Collections.singletonList(orderingKey), priority, transfer);
+    }
+
+
+    /**
+     * Adds a transfer holding several ordering keys to the queue; it is not run at the same time
+     * as any other transfer sharing one of them, nor before the ones enqueued earlier with them.
+     *
+     * @param key           Key identifying the transfer, to remove it from the queue.
+     * @param accountName   Name of the account the transfer belongs to.
+     * @param orderingKeys  Ordering keys of the transfer; empty if no ordering is needed.
+     * @param priority      Priority class of the transfer; one of the PRIORITY_* constants.
+     * @param transfer      Work to do in a worker thread.
+     */
+    public synchronized void enqueueWithOrderingKeys(String key, String accountName,
+            Collection<String> orderingKeys, int priority, Runnable transfer) {
+        mQueue.add(new QueuedTransfer(key, accountName, orderingKeys, checkPriority(priority),
+                transfer));
+        dispatch();
+    }
+
+
+    /**
+     * Moves a transfer waiting in the queue to a higher priority class; nothing is done if
+     * the transfer is not waiting or its class is already higher.
+     *
+     * @param key           Key of the transfer, as passed to {@link #enqueue}.
+     * @param priority      New priority class of the transfer.
+     */
+    public synchronized void raisePriority(String key, int priority) {
+        for (QueuedTransfer transfer : mQueue) {
+            if (transfer.mKey.equals(key)) {
+                if (priority < transfer.mPriority) {
+                    transfer.mPriority = checkPriority(priority);
+                    dispatch();
+                }
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Removes from the queue a transfer that was not started yet.
+     *
+     * @param key       Key of the transfer, as passed to {@link #enqueue}.
+     * @return          'True' if the transfer was waiting in the queue and was removed.
+     */
+    public synchronized boolean remove(String key) {
+        Iterator<QueuedTransfer> it = mQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next().mKey.equals(key)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return      Number of transfers currently running.
+     */
+    public synchronized int getActiveCount() {
+        return mActiveCount;
+    }
+
+
+    /**
+     * @return      Number of transfers waiting for a free worker.
+     */
+    public synchronized int getQueuedCount() {
+        return mQueue.size();
+    }
+
+
+    /**
+     * @return      Priority class of the transfer running in the current thread, or
+     *              {@link #PRIORITY_USER_BULK} if the thread is not a worker of a pool.
+     */
+    public static int getRunningPriority() {
+        Integer priority = sRunningPriority.get();
+        return (priority != null) ? priority : PRIORITY_USER_BULK;
+    }
+
+
+    /**
+     * @param priority  Priority class.
+     * @return          Number of transfers of the class waiting for a free worker.
+     */
+    public synchronized int getQueuedCount(int priority) {
+        int count = 0;
+        for (QueuedTransfer transfer : mQueue) {
+            if (transfer.mPriority == priority) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * @param priority  Priority class.
+     * @return          Average time, in milliseconds, the transfers of the class started so
+     *                  far waited in the queue.
+     */
+    public synchronized long getAverageWait(int priority) {
+        long started = mStartedCount[checkPriority(priority)];
+        return (started > 0) ? mTotalWait[priority] / started : 0;
+    }
+
+
+    /**
+     * @param priority  Priority class.
+     * @return          Longest time, in milliseconds, a transfer of the class waited in
+     *                  the queue.
+     */
+    public synchronized long getMaxWait(int priority) {
+        return mMaxWait[checkPriority(priority)];
+    }
+
+
+    /**
+     * Stops accepting transfers; queued transfers are discarded, active transfers are not
+     * interrupted.
+     */
+    public synchronized void shutdown() {
+        mQueue.clear();
+        mExecutor.shutdown();
+    }
+
+
+    /**
+     * Starts as many queued transfers as the limits allow, highest priority first.
+     */
+    private void dispatch() {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+        QueuedTransfer next;
+        while ((next = nextToStart()) != null) {
+            mQueue.remove(next);
+            start(next);
+        }
+    }
+
+
+    /**
+     * @return      Queued transfer to start now, or null if none can be started.
+     */
+    private QueuedTransfer nextToStart() {
+        boolean regularWorkerFree = (mActiveCount - (mReservedWorkerBusy ? 1 : 0) < mMaxTransfers);
+        if (!regularWorkerFree && mReservedWorkerBusy) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        QueuedTransfer best = null;
+        int bestPriority = PRIORITY_CLASSES;
+        Set<String> seenOrderingKeys = null;
+        for (QueuedTransfer candidate : mQueue) {
+            if (!candidate.mOrderingKeys.isEmpty()) {
+                // only the first queued transfer with an ordering key can start
+                if (seenOrderingKeys == null) {
+                    seenOrderingKeys = new HashSet<String>();
+                }
+                boolean blocked = false;
+                for (String orderingKey : candidate.mOrderingKeys) {
+                    if (!seenOrderingKeys.add(orderingKey) ||
+                            mActiveOrderingKeys.contains(orderingKey)) {
+                        blocked = true;
+                    }
+                }
+                if (blocked) {
+                    continue;
+                }
+            }
+            int priority = candidate.effectivePriority(now);
+            boolean interactive = (priority == PRIORITY_INTERACTIVE);
+            if (priority >= bestPriority || (!regularWorkerFree && !interactive)) {
+                continue;
+            }
+            int accountLimit = mMaxTransfersPerAccount + (interactive ? 1 : 0);
+            if (activeIn(candidate.mAccountName) >= accountLimit) {
+                continue;
+            }
+            best = candidate;
+            bestPriority = priority;
+            if (bestPriority == PRIORITY_INTERACTIVE) {
+                break;      // queue is in FIFO order; nothing better later
+            }
+        }
+        if (best != null) {
+            best.mOnReservedWorker = !regularWorkerFree;
+        }
+        return best;
+    }
+
+
+    private void start(final QueuedTransfer transfer) {
+        mActiveCount++;
+        if (transfer.mOnReservedWorker) {
+            mReservedWorkerBusy = true;
+        }
+        mActivePerAccount.put(transfer.mAccountName, activeIn(transfer.mAccountName) + 1);
+        mActiveOrderingKeys.addAll(transfer.mOrderingKeys);
+        long wait = System.currentTimeMillis() - transfer.mEnqueuedAt;
+        mStartedCount[transfer.mPriority]++;
+        mTotalWait[transfer.mPriority] += wait;
+        mMaxWait[transfer.mPriority] = Math.max(mMaxWait[transfer.mPriority], wait);
+        Log_OC.d(TAG, "Starting " + PRIORITY_NAMES[transfer.mPriority] + " transfer " +
+                transfer.mKey + " after waiting " + wait + " ms");
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sRunningPriority.set(transfer.mPriority);
+                try {
+                    transfer.mTransfer.run();
+                } catch (RuntimeException e) {
+                    Log_OC.e(TAG, "Unexpected error in transfer " + transfer.mKey, e);
+                } finally {
+                    sRunningPriority.remove();
+                    finished(transfer);
+                }
+            }
+        });
+    }
+
+
+    private void finished(QueuedTransfer transfer) {
+        boolean idle = false;
+        synchronized (this) {
+            mActiveCount--;
+            if (transfer.mOnReservedWorker) {
+                mReservedWorkerBusy = false;
+            }
+            int active = activeIn(transfer.mAccountName) - 1;
+            if (active > 0) {
+                mActivePerAccount.put(transfer.mAccountName, active);
+            } else {
+                mActivePerAccount.remove(transfer.mAccountName);
+            }
+            mActiveOrderingKeys.removeAll(transfer.mOrderingKeys);
+            dispatch();
+            idle = (mActiveCount == 0 && mQueue.isEmpty());
+            if (idle) {
+                logMetrics();
+            }
+        }
+        if (idle && mOnIdleListener != null) {
+            mOnIdleListener.onIdle();
+        }
+    }
+
+
+    private void logMetrics() {
+        StringBuilder metrics = new StringBuilder("Transfers started per priority class:");
+        for (int i=0; i<PRIORITY_CLASSES; i++) {
+            if (mStartedCount[i] > 0) {
+                metrics.append(' ').append(PRIORITY_NAMES[i]).
+                    append("={count=").append(mStartedCount[i]).
+                    append(", avgWaitMs=").append(mTotalWait[i] / mStartedCount[i]).
+                    append(", maxWaitMs=").append(mMaxWait[i]).append('}');
+            }
+        }
+        Log_OC.i(TAG, metrics.toString());
+    }
+
+
+    private static int checkPriority(int priority) {
+        if (priority < PRIORITY_INTERACTIVE || priority >= PRIORITY_CLASSES) {
+            throw new IllegalArgumentException("Unknown priority class " + priority);
+        }
+        return priority;
+    }
+
+
+    private int activeIn(String accountName) {
+        Integer active = mActivePerAccount.get(accountName);
+        return (active == null) ? 0 : active.intValue();
+    }
+
+}
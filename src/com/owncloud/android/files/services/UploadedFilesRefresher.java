@@ -0,0 +1,252 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.FileUtils;
+import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
+import com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation;
+import com.owncloud.android.lib.resources.files.RemoteFile;
+
+/**
+ * Refreshes the properties of uploaded files with the values assigned by the server, like
+ * modification time and remote id.
+ *
+ * Uploaded files are grouped by parent folder, and every group is saved in the database in a
+ * single transaction. A group is refreshed at most {@link #MAX_DELAY} milliseconds after its
+ * first file was added, or as soon as it contains {@link #MAX_BATCH} files.
+ *
+ * A group is refreshed with a single request reading its folder when the folder, as known in
+ * the database, has no more than {@link #FOLDER_READ_ENTRIES_PER_FILE} entries per file in the
+ * group; otherwise, reading every file, on the same connection, costs less than listing a big
+ * folder.
+ *
+ * Files that could not be refreshed are scheduled again, up to {@link #MAX_ATTEMPTS} times.
+ */
+public class UploadedFilesRefresher {
+
+    private static final String TAG = UploadedFilesRefresher.class.getSimpleName();
+
+    /** Maximum time, in milliseconds, an uploaded file waits for its refresh */
+    public static final long MAX_DELAY = 2000;
+
+    /** Maximum number of uploaded files waiting for refresh in the same folder */
+    public static final int MAX_BATCH = 100;
+
+    /**
+     * Number of entries of a folder listing that cost about the same as a request reading a
+     * single file
+     */
+    public static final int FOLDER_READ_ENTRIES_PER_FILE = 20;
+
+    /** Maximum number of attempts to refresh an uploaded file */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static class Batch {
+        final Account mAccount;
+        final String mFolderPath;
+        OwnCloudClient mClient;
+        final Set<String> mRemotePaths = new LinkedHashSet<String>();
+        int mAttempts = 0;
+
+        Batch(Account account, String folderPath) {
+            mAccount = account;
+            mFolderPath = folderPath;
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Batch> mPendingBatches = new HashMap<String, Batch>();
+
+
+    /**
+     * @param contentResolver   Access to the local database.
+     */
+    public UploadedFilesRefresher(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+
+    /**
+     * Schedules the refresh of an uploaded file.
+     *
+     * @param account       ownCloud account the file was uploaded to.
+     * @param client        Client object to send requests to the server of the account.
+     * @param remotePath    Remote path of the uploaded file.
+     */
+    public void add(Account account, OwnCloudClient client, String remotePath) {
+        String folderPath =
+                remotePath.substring(0, remotePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
+        add(account, client, folderPath, Collections.singleton(remotePath), 0);
+    }
+
+
+    private void add(Account account, OwnCloudClient client, String folderPath,
+            Collection<String> remotePaths, int attempts) {
+        final String key = account.name + folderPath;
+        synchronized (mPendingBatches) {
+            if (mExecutor.isShutdown()) {
+                if (attempts > 0) {
+                    Log_OC.w(TAG, "Refresh of " + remotePaths.size() + " uploaded files in " +
+                            folderPath + " not retried; shutting down");
+                }
+                return;
+            }
+            Batch batch = mPendingBatches.get(key);
+            if (batch == null) {
+                batch = new Batch(account, folderPath);
+                mPendingBatches.put(key, batch);
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(key);
+                    }
+                }, MAX_DELAY * (attempts + 1), TimeUnit.MILLISECONDS);
+            }
+            batch.mClient = client;
+            batch.mRemotePaths.addAll(remotePaths);
+            batch.mAttempts = Math.max(batch.mAttempts, attempts);
+            if (batch.mRemotePaths.size() >= MAX_BATCH) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(key);
+                    }
+                });
+            }
+        }
+    }
+
+
+    /**
+     * Stops accepting new files; refreshes already scheduled are completed.
+     */
+    public void shutdown() {
+        synchronized (mPendingBatches) {
+            mExecutor.shutdown();
+        }
+    }
+
+
+    private void refresh(String key) {
+        Batch batch = null;
+        synchronized (mPendingBatches) {
+            batch = mPendingBatches.remove(key);
+        }
+        if (batch == null) {
+            return;     // already refreshed
+        }
+
+        FileDataStorageManager storageManager =
+                new FileDataStorageManager(batch.mAccount, mContentResolver);
+        OCFile folder = storageManager.getFileByPath(batch.mFolderPath);
+        if (folder == null) {
+            return;     // removed meanwhile
+        }
+
+        Map<String, RemoteFile> remoteFiles = new HashMap<String, RemoteFile>();
+        List<String> failedPaths = new ArrayList<String>();
+        int filesCount = batch.mRemotePaths.size();
+        if (filesCount > 1 && storageManager.getFolderContentCount(folder) <=
+                filesCount * FOLDER_READ_ENTRIES_PER_FILE) {
+            ReadRemoteFolderOperation operation = new ReadRemoteFolderOperation(batch.mFolderPath);
+            RemoteOperationResult result = operation.execute(batch.mClient);
+            if (result.isSuccess()) {
+                ArrayList<Object> folderAndFiles = result.getData();
+                for (int i=1; i<folderAndFiles.size(); i++) {
+                    RemoteFile remoteFile = (RemoteFile) folderAndFiles.get(i);
+                    remoteFiles.put(remoteFile.getRemotePath(), remoteFile);
+                }
+            } else if (result.getCode() != ResultCode.FILE_NOT_FOUND) {
+                failedPaths.addAll(batch.mRemotePaths);
+            }
+        } else {
+            for (String remotePath : batch.mRemotePaths) {
+                ReadRemoteFileOperation operation = new ReadRemoteFileOperation(remotePath);
+                RemoteOperationResult result = operation.execute(batch.mClient);
+                if (result.isSuccess()) {
+                    remoteFiles.put(remotePath, (RemoteFile) result.getData().get(0));
+                } else if (result.getCode() != ResultCode.FILE_NOT_FOUND) {
+                    failedPaths.add(remotePath);
+                }
+            }
+        }
+        if (!failedPaths.isEmpty()) {
+            if (batch.mAttempts + 1 < MAX_ATTEMPTS) {
+                Log_OC.d(TAG, "Refresh of " + failedPaths.size() + " uploaded files in " +
+                        batch.mFolderPath + " failed; scheduled again");
+                add(batch.mAccount, batch.mClient, batch.mFolderPath, failedPaths,
+                        batch.mAttempts + 1);
+            } else {
+                Log_OC.w(TAG, "Could not refresh " + failedPaths.size() + " uploaded files in " +
+                        batch.mFolderPath + " after " + MAX_ATTEMPTS + " attempts");
+            }
+        }
+
+        long syncDate = System.currentTimeMillis();
+        List<OCFile> updatedFiles = new ArrayList<OCFile>(batch.mRemotePaths.size());
+        for (String remotePath : batch.mRemotePaths) {
+            OCFile file = storageManager.getFileByPath(remotePath);
+            RemoteFile remoteFile = remoteFiles.get(remotePath);
+            if (file != null && remoteFile != null) {
+                updateOCFile(file, remoteFile);
+                file.setLastSyncDateForProperties(syncDate);
+                updatedFiles.add(file);
+            }
+        }
+        if (!updatedFiles.isEmpty()) {
+            storageManager.saveFolder(folder, updatedFiles, Collections.<OCFile>emptyList());
+        }
+        Log_OC.d(TAG, "Refreshed " + updatedFiles.size() + " uploaded files in " +
+                batch.mFolderPath);
+    }
+
+
+    private void updateOCFile(OCFile file, RemoteFile remoteFile) {
+        file.setCreationTimestamp(remoteFile.getCreationTimestamp());
+        file.setFileLength(remoteFile.getLength());
+        file.setMimetype(remoteFile.getMimeType());
+        file.setModificationTimestamp(remoteFile.getModifiedTimestamp());
+        file.setModificationTimestampAtLastSyncForData(remoteFile.getModifiedTimestamp());
+        // file.setEtag(remoteFile.getEtag());    // TODO Etag, where available
+        file.setRemoteId(remoteFile.getRemoteId());
+    }
+
+}
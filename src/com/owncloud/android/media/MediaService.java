@@ -115,6 +115,9 @@ public class MediaService extends Service implements OnCompletionListener, OnPre
     /** 'True' when the current song is streaming from the network */
     private boolean mIsStreaming = false;
 
+    /** Local server streaming the current song while it is downloaded, when not downloaded before */
+    private MediaStreamProxy mStreamProxy = null;
+
     /** Wifi lock kept to prevents the device from shutting off the radio when streaming a file. */
     private WifiLock mWifiLock;
     
@@ -357,6 +360,9 @@ public class MediaService extends Service implements OnCompletionListener, OnPre
             mPlayer.release();
             mPlayer = null;
         }
+        if (releaseMediaPlayer) {
+            stopStreamProxy();
+        }
 
         // release the Wifi lock, if holding it
         if (mWifiLock.isHeld()) {
@@ -365,6 +371,14 @@ public class MediaService extends Service implements OnCompletionListener, OnPre
     }
 
     
+    private void stopStreamProxy() {
+        if (mStreamProxy != null) {
+            mStreamProxy.release();
+            mStreamProxy = null;
+        }
+    }
+
+    
     /**
      * Fully releases the audio focus.
      */
@@ -443,13 +457,14 @@ public class MediaService extends Service implements OnCompletionListener, OnPre
             createMediaPlayerIfNeeded();
             mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
             String url = mFile.getStoragePath();
-            /* Streaming is not possible right now
-            if (url == null || url.length() <= 0) {
-                url = AccountUtils.constructFullURLForAccount(this, mAccount) + mFile.getRemotePath();
+            stopStreamProxy();
+            mIsStreaming = !mFile.isDown();
+            if (mIsStreaming) {
+                // played while downloaded, from a local copy in progress; the preview starting
+                // the service already checked the file is not being downloaded
+                mStreamProxy = MediaStreamProxy.acquire(this, mAccount, mFile, null);
+                url = mStreamProxy.getUrl();
             }
-            mIsStreaming = url.startsWith("http:") || url.startsWith("https:");
-            */
-            mIsStreaming = false;
             
             mPlayer.setDataSource(url);
 
@@ -0,0 +1,717 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.media;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.accounts.Account;
+import android.accounts.AccountsException;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.files.services.BandwidthShaper;
+import com.owncloud.android.files.services.FileDownloader;
+import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
+import com.owncloud.android.files.services.TransferWorkerPool;
+import com.owncloud.android.lib.common.OwnCloudAccount;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.operations.DownloadFileOperation;
+import com.owncloud.android.operations.RangeDownloadRemoteOperation;
+import com.owncloud.android.services.OwnCloudClientPool;
+
+/**
+ * Local HTTP server feeding a media player with a remote file while it is downloaded.
+ *
+ * The player is given a loopback URL; its requests, ranges included, are served from the
+ * temporal file of the download, the same one {@link DownloadFileOperation} uses. Contents not
+ * received yet are requested to the server in a single connection, starting at the position
+ * the player waits for, and only up to the next range already received; when the player waits
+ * for nothing, the missing parts of the file keep on being downloaded in order.
+ *
+ * When all the contents are received, the file is moved to its final location and registered
+ * as downloaded, as if {@link FileDownloader} had done it. If the proxy is stopped before, the
+ * contents received at the beginning of the temporal file are kept for the next download to
+ * resume from them.
+ *
+ * The server listens only in the loopback interface, and requests must include a random token
+ * in the path.
+ *
+ * A single proxy exists per file, shared by all the players of the file; it is the only writer
+ * of the temporal file while it runs. Files being downloaded by {@link FileDownloader} are not
+ * streamed, and {@link FileDownloader} does not download files being streamed.
+ *
+ * Requests to the server are not queued in the {@link TransferWorkerPool} of the downloads: the
+ * player is waiting for them. They are shaped as interactive transfers by
+ * {@link BandwidthShaper}, so that background transfers yield to them.
+ */
+public class MediaStreamProxy {
+
+    private static final String TAG = MediaStreamProxy.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /** Distance, in bytes, ahead of the current request to the server within which the
+     *  player waits for it instead of requesting a new range */
+    private static final long MAX_WAIT_AHEAD = 512 * 1024;
+
+    /** Time, in milliseconds, the player is kept waiting for contents before its connection
+     *  is closed */
+    private static final long READ_TIMEOUT = 30 * 1000;
+
+    /** Number of requests to the server failing in a row before giving up */
+    private static final int MAX_FAILURES = 3;
+
+    private static final String HEADER_RANGE = "range:";
+
+    /** Time, in milliseconds, to wait for a stopping proxy of a file before starting a new one */
+    private static final long STOP_TIMEOUT = 5 * 1000;
+
+    /** Proxies running, by account and remote path of the file; guarded by the map */
+    private static final Map<String, MediaStreamProxy> sProxies =
+            new HashMap<String, MediaStreamProxy>();
+
+    private final Context mContext;
+    private final Account mAccount;
+    private final OCFile mFile;
+    private final DownloadFileOperation mDownload;
+    private final String mToken;
+    private final String mKey;
+    private String mUrl;
+    private int mUsers = 0;
+    private boolean mFetchFinished = false;
+
+    private final ExecutorService mExecutor;
+    private ServerSocket mServerSocket;
+    private final Set<Socket> mConnections = new HashSet<Socket>();
+
+    /** File the player is served from; the temporal file, until the download completes */
+    private volatile File mDataFile;
+
+    /// state of the download; guarded by mLock
+    private final Object mLock = new Object();
+    private final ReceivedRanges mReceived = new ReceivedRanges();
+    private long mLength;
+    private String mEtag;
+    private long mModificationTimestamp = 0;
+    private RangeDownloadRemoteOperation mFetch = null;
+    private long mFetchStart = -1;
+    private long mFetchEnd = -1;
+    private long mFetchPosition = -1;
+    private long mWanted = -1;
+    private long mNextPosition = 0;
+    private boolean mStopped = false;
+    private boolean mFailed = false;
+
+
+    /**
+     * Ranges of the file received in the temporal file, as a map from first position to the
+     * position after the last one; ranges never overlap nor touch each other.
+     */
+    static class ReceivedRanges {
+
+        private final TreeMap<Long, Long> mRanges = new TreeMap<Long, Long>();
+
+        void add(long start, long end) {
+            if (start >= end) {
+                return;
+            }
+            Map.Entry<Long, Long> previous = mRanges.floorEntry(start);
+            if (previous != null && previous.getValue() >= start) {
+                start = previous.getKey();
+                end = Math.max(end, previous.getValue());
+            }
+            Map.Entry<Long, Long> next = mRanges.ceilingEntry(start);
+            while (next != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                mRanges.remove(next.getKey());
+                next = mRanges.ceilingEntry(start);
+            }
+            mRanges.put(start, end);
+        }
+
+        /**
+         * @return      Position after the received contents starting at 'position', that is,
+         *              the first position not received from it; 'position' itself if it was
+         *              not received.
+         */
+        long availableFrom(long position) {
+            Map.Entry<Long, Long> range = mRanges.floorEntry(position);
+            return (range != null && range.getValue() > position) ? range.getValue() : position;
+        }
+
+        /**
+         * @return      First position received after 'position', or 'length' if none.
+         */
+        long nextReceived(long position, long length) {
+            Long start = mRanges.higherKey(position);
+            return (start != null) ? Math.min(start, length) : length;
+        }
+
+        void clear() {
+            mRanges.clear();
+        }
+    }
+
+
+    /**
+     * Returns the proxy streaming a file, starting it if there is none.
+     *
+     * Every call must be paired with a call to {@link #release()}.
+     *
+     * @param context           Android context.
+     * @param account           ownCloud account holding the file.
+     * @param file              File to stream.
+     * @param downloaderBinder  Access to the downloads in progress, or null if not available.
+     * @return                  Proxy streaming the file.
+     * @throws IOException      If the file is being downloaded, or the proxy could not start.
+     */
+    public static MediaStreamProxy acquire(Context context, Account account, OCFile file,
+            FileDownloaderBinder downloaderBinder) throws IOException {
+        synchronized (sProxies) {
+            String key = buildKey(account, file);
+            MediaStreamProxy proxy = sProxies.get(key);
+            long deadline = SystemClock.uptimeMillis() + STOP_TIMEOUT;
+            while (proxy != null && proxy.mUsers == 0) {
+                // stopping; its writes to the temporal file must finish before a new one starts
+                long wait = deadline - SystemClock.uptimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("Former streaming of " + file.getRemotePath() +
+                            " not stopped yet");
+                }
+                try {
+                    sProxies.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the former streaming");
+                }
+                proxy = sProxies.get(key);
+            }
+            if (proxy == null) {
+                if (downloaderBinder != null && downloaderBinder.isDownloading(account, file)) {
+                    throw new IOException(file.getRemotePath() + " is being downloaded");
+                }
+                proxy = new MediaStreamProxy(context, account, file, key);
+                proxy.start();
+                sProxies.put(key, proxy);
+            }
+            proxy.mUsers++;
+            return proxy;
+        }
+    }
+
+
+    /**
+     * @return      'True' if a proxy is streaming the file, and so writing its temporal file.
+     */
+    public static boolean isStreaming(Account account, OCFile file) {
+        synchronized (sProxies) {
+            return sProxies.containsKey(buildKey(account, file));
+        }
+    }
+
+
+    private static String buildKey(Account account, OCFile file) {
+        return account.name + file.getRemotePath();
+    }
+
+
+    /**
+     * @param context       Android context.
+     * @param account       ownCloud account holding the file.
+     * @param file          File to stream.
+     * @param key           Key of the proxy in {@link #sProxies}.
+     */
+    private MediaStreamProxy(Context context, Account account, OCFile file, String key) {
+        mContext = context.getApplicationContext();
+        mAccount = account;
+        mFile = file;
+        mDownload = new DownloadFileOperation(account, file);
+        mDataFile = new File(mDownload.getTmpPath());
+        mLength = file.getFileLength();
+        mToken = Long.toHexString(new SecureRandom().nextLong());
+        mKey = key;
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MediaStreamProxyThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * @return      URL to give to the player.
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+
+    /**
+     * Releases the proxy for a player; it is stopped when no player uses it anymore.
+     */
+    public void release() {
+        synchronized (sProxies) {
+            if (--mUsers > 0) {
+                return;
+            }
+            if (mFetchFinished) {
+                sProxies.remove(mKey);
+                sProxies.notifyAll();
+            }   // else removed when the download stops
+        }
+        stop();
+    }
+
+
+    /**
+     * Starts listening for the requests of the player, and downloading the file.
+     */
+    private void start() throws IOException {
+        // contents of a former partial download are reused
+        long resumable = mDownload.getResumableLength();
+        if (resumable > 0) {
+            synchronized (mLock) {
+                mEtag = mDownload.getResumableEtag();
+                mReceived.add(0, resumable);
+                mNextPosition = resumable;
+            }
+            Log_OC.d(TAG, "Streaming of " + mFile.getRemotePath() + " reuses " + resumable +
+                    " bytes of a former download");
+        }
+
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                fetchContents();
+            }
+        });
+        mUrl = "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + mToken + "/" +
+                Uri.encode(mFile.getFileName());
+    }
+
+
+    /**
+     * Stops serving the player and downloading the file.
+     */
+    private void stop() {
+        synchronized (mLock) {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            if (mFetch != null) {
+                mFetch.cancel();
+            }
+            mLock.notifyAll();
+        }
+        try {
+            if (mServerSocket != null) {
+                mServerSocket.close();
+            }
+        } catch (IOException e) {
+            Log_OC.d(TAG, "Weird exception while closing server socket (ignoring)", e);
+        }
+        synchronized (mConnections) {
+            for (Socket socket : mConnections) {
+                closeQuietly(socket);
+            }
+            mConnections.clear();
+        }
+        mExecutor.shutdown();
+    }
+
+
+    private void acceptConnections() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // closed in stop()
+                return;
+            }
+            synchronized (mConnections) {
+                mConnections.add(socket);
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            Log_OC.d(TAG, "Connection of the player closed: " + e.getMessage());
+                        } finally {
+                            synchronized (mConnections) {
+                                mConnections.remove(socket);
+                            }
+                            closeQuietly(socket);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                // rejected after stop()
+                closeQuietly(socket);
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Serves a single request of the player.
+     */
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        String range = null;
+        String header;
+        while ((header = in.readLine()) != null && header.length() > 0) {
+            if (header.regionMatches(true, 0, HEADER_RANGE, 0, HEADER_RANGE.length())) {
+                range = header.substring(HEADER_RANGE.length()).trim();
+            }
+        }
+        String[] request = requestLine.split(" ");
+        boolean headOnly = request.length > 0 && "HEAD".equals(request[0]);
+        if (request.length < 2 || !(headOnly || "GET".equals(request[0])) ||
+                !request[1].startsWith("/" + mToken + "/")) {
+            writeHeaders(out, "404 Not Found", 0, null);
+            out.flush();
+            return;
+        }
+
+        long length;
+        synchronized (mLock) {
+            length = mLength;
+        }
+        long start = 0;
+        long end = length - 1;
+        String status = "200 OK";
+        String contentRange = null;
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            try {
+                if (bounds[0].length() > 0) {
+                    start = Long.parseLong(bounds[0].trim());
+                    if (bounds[1].length() > 0) {
+                        end = Math.min(end, Long.parseLong(bounds[1].trim()));
+                    }
+                } else {
+                    start = Math.max(0, length - Long.parseLong(bounds[1].trim()));
+                }
+            } catch (NumberFormatException e) {
+                start = 0;
+                end = length - 1;
+            }
+            if (start > end || start >= length) {
+                writeHeaders(out, "416 Requested Range Not Satisfiable", 0,
+                        "bytes */" + length);
+                out.flush();
+                return;
+            }
+            status = "206 Partial Content";
+            contentRange = "bytes " + start + "-" + end + "/" + length;
+        }
+        writeHeaders(out, status, end - start + 1, contentRange);
+        if (headOnly) {
+            out.flush();
+            return;
+        }
+
+        RandomAccessFile data = null;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (position <= end) {
+                long available = waitFor(position);
+                if (available <= position) {
+                    Log_OC.w(TAG, "Contents at " + position + " of " + mFile.getRemotePath() +
+                            " not available; closing connection of the player");
+                    break;
+                }
+                if (data == null) {
+                    data = new RandomAccessFile(mDataFile, "r");
+                }
+                data.seek(position);
+                long limit = Math.min(available, end + 1);
+                while (position < limit) {
+                    int read = data.read(buffer, 0, (int) Math.min(buffer.length, limit - position));
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of " + mDataFile);
+                    }
+                    out.write(buffer, 0, read);
+                    position += read;
+                }
+                out.flush();
+            }
+        } finally {
+            if (data != null) {
+                data.close();
+            }
+        }
+    }
+
+
+    private void writeHeaders(OutputStream out, String status, long contentLength,
+            String contentRange) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append("\r\n");
+        headers.append("Content-Type: ").append(mDownload.getMimeType()).append("\r\n");
+        headers.append("Content-Length: ").append(contentLength).append("\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        if (contentRange != null) {
+            headers.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+    }
+
+
+    /**
+     * Waits until the contents at a position are received, requesting them to the server if
+     * they are not coming soon.
+     *
+     * @param position      Position in the file.
+     * @return              Position after the contents received from 'position'; 'position'
+     *                      itself if they could not be received.
+     */
+    private long waitFor(long position) {
+        synchronized (mLock) {
+            long deadline = SystemClock.uptimeMillis() + READ_TIMEOUT;
+            while (!mStopped && !mFailed) {
+                long available = mReceived.availableFrom(position);
+                if (available > position) {
+                    return available;
+                }
+                boolean coming = (mFetch != null && position >= mFetchStart &&
+                        position <= mFetchEnd &&
+                        position <= Math.max(mFetchPosition, mFetchStart) + MAX_WAIT_AHEAD);
+                if (!coming && mWanted != position) {
+                    // seek; the current request is replaced by a new one
+                    mWanted = position;
+                    if (mFetch != null) {
+                        mFetch.cancel();
+                    }
+                    mLock.notifyAll();
+                }
+                long wait = deadline - SystemClock.uptimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                try {
+                    mLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return position;
+        }
+    }
+
+
+    /**
+     * Requests the missing contents to the server, one range at a time, until all of them are
+     * received or the proxy is stopped.
+     */
+    private void fetchContents() {
+        OwnCloudClient client = null;
+        try {
+            client = OwnCloudClientPool.getInstance().getClientFor(
+                    new OwnCloudAccount(mAccount, mContext), mContext);
+        } catch (AccountsException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + mAccount.name, e);
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Error while trying to get autorization for " + mAccount.name, e);
+        }
+        if (client == null) {
+            synchronized (mLock) {
+                mFailed = true;
+                mLock.notifyAll();
+            }
+            fetchFinished();
+            return;
+        }
+
+        BandwidthShaper.Session shaping = BandwidthShaper.startTransfer(mContext,
+                BandwidthShaper.DIRECTION_DOWNLOAD, TransferWorkerPool.PRIORITY_INTERACTIVE);
+        boolean completed = false;
+        int failures = 0;
+        while (true) {
+            RangeDownloadRemoteOperation fetch;
+            synchronized (mLock) {
+                if (mStopped) {
+                    break;
+                }
+                long from = (mWanted >= 0) ? mWanted : mNextPosition;
+                mWanted = -1;
+                long start = mReceived.availableFrom(from);
+                if (start >= mLength) {
+                    start = mReceived.availableFrom(0);
+                }
+                if (start >= mLength) {
+                    completed = true;
+                    break;
+                }
+                mFetchStart = start;
+                mFetchEnd = mReceived.nextReceived(start, mLength) - 1;
+                mFetchPosition = -1;
+                fetch = new RangeDownloadRemoteOperation(mFile.getRemotePath(),
+                        new File(mDownload.getTmpPath()), mFetchStart, mFetchEnd, mEtag);
+                fetch.addDatatransferProgressListener(new FetchProgressListener());
+                fetch.addDatatransferProgressListener(shaping);
+                mFetch = fetch;
+            }
+
+            RemoteOperationResult result = fetch.execute(client);
+
+            synchronized (mLock) {
+                mFetch = null;
+                if (fetch.getEtag() != null) {
+                    if (mEtag != null && !mEtag.equals(fetch.getEtag())) {
+                        Log_OC.w(TAG, "Contents of " + mFile.getRemotePath() +
+                                " changed in the server while streaming");
+                    }
+                    mEtag = fetch.getEtag();
+                }
+                if (fetch.getTotalLength() >= 0) {
+                    mLength = fetch.getTotalLength();
+                }
+                if (fetch.getModificationTimestamp() > 0) {
+                    mModificationTimestamp = fetch.getModificationTimestamp();
+                }
+                if (result.isSuccess() || result.isCancelled()) {
+                    failures = 0;
+                } else if (++failures >= MAX_FAILURES) {
+                    Log_OC.e(TAG, "Streaming of " + mFile.getRemotePath() + " failed: " +
+                            result.getLogMessage());
+                    mFailed = true;
+                    mLock.notifyAll();
+                    break;
+                }
+            }
+        }
+        shaping.finish();
+
+        if (completed) {
+            RemoteOperationResult result = mDownload.completeDownload(mModificationTimestamp);
+            if (result.isSuccess()) {
+                mDataFile = new File(mDownload.getSavePath());
+            }
+            FileDownloader.registerDownload(mContext, mDownload, result);
+
+        } else {
+            // keep the contents at the beginning for the next download
+            synchronized (mLock) {
+                long received = mReceived.availableFrom(0);
+                if (mEtag != null && received > 0 && received < mLength) {
+                    mDownload.saveResumeInfo(mEtag, mLength, received);
+                }
+            }
+        }
+        fetchFinished();
+    }
+
+
+    /**
+     * Lets a new proxy for the file start once this one does not write the temporal file
+     * anymore.
+     */
+    private void fetchFinished() {
+        synchronized (sProxies) {
+            mFetchFinished = true;
+            if (mUsers == 0) {
+                sProxies.remove(mKey);
+                sProxies.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Records the contents received from the server and wakes up the connections of the
+     * player waiting for them.
+     */
+    private class FetchProgressListener implements OnDatatransferProgressListener {
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                long totalToTransfer, String fileName) {
+            synchronized (mLock) {
+                long from = totalTransferredSoFar - progressRate;
+                if (mFetchPosition < 0 && from != mFetchStart) {
+                    // full contents sent instead of the range; the file changed in the server
+                    mReceived.clear();
+                }
+                mReceived.add(from, totalTransferredSoFar);
+                mFetchPosition = totalTransferredSoFar;
+                mNextPosition = totalTransferredSoFar;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log_OC.d(TAG, "Weird exception while closing socket (ignoring)", e);
+        }
+    }
+
+}
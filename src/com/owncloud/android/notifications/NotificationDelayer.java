@@ -1,33 +1,57 @@
 package com.owncloud.android.notifications;
 
-import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import android.app.NotificationManager;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Process;
 
+/**
+ * Runs delayed work on notifications in a single background thread shared by the whole app.
+ */
 public class NotificationDelayer {
-    
+
+    private static final ScheduledExecutorService sScheduler =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "NotificationDelayerThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+
     public static void cancelWithDelay(
             final NotificationManager notificationManager,
             final int notificationId,
             long delayInMillis) {
-    
-        HandlerThread thread = new HandlerThread(
-                "NotificationDelayerThread_" + (new Random(System.currentTimeMillis())).nextInt(),
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        
-        Handler handler = new Handler(thread.getLooper()); 
-        handler.postDelayed(new Runnable() { 
-             public void run() { 
+
+        postDelayed(new Runnable() {
+             public void run() {
                  notificationManager.cancel(notificationId);
-                 ((HandlerThread)Thread.currentThread()).getLooper().quit();
-             } 
-        }, delayInMillis); 
-    
+             }
+        }, delayInMillis);
+
+    }
+
+
+    /**
+     * Runs a task in the shared notifications thread after a delay.
+     *
+     * @param task              Work to do.
+     * @param delayInMillis     Delay before the task is run, in milliseconds.
+     */
+    public static void postDelayed(Runnable task, long delayInMillis) {
+        sScheduler.schedule(task, delayInMillis, TimeUnit.MILLISECONDS);
     }
-    
 
 }
@@ -0,0 +1,254 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.notifications;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.owncloud.android.R;
+import com.owncloud.android.utils.DisplayUtils;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.support.v4.app.NotificationCompat;
+import android.text.format.DateUtils;
+
+/**
+ * Shows the progress of a batch of transfers in a single status notification.
+ *
+ * A batch starts with the first transfer added when no other is pending, and ends when all its
+ * transfers finished. The notification shows the files finished out of the total, the bytes
+ * transferred and the estimated time left for the whole batch.
+ *
+ * Progress reported by the transfers is only accumulated; the notification is rebuilt at most
+ * once every {@link #UPDATE_INTERVAL} milliseconds, in the thread of {@link NotificationDelayer}.
+ */
+public class TransferProgressNotifier {
+
+    /** Minimum time, in milliseconds, between updates of the notification */
+    public static final long UPDATE_INTERVAL = 1000;
+
+    private static class Entry {
+        final String mFileName;
+        long mSize;
+        long mTransferred = 0;
+
+        Entry(String fileName, long size) {
+            mFileName = fileName;
+            mSize = size;
+        }
+    }
+
+    private final Context mContext;
+    private final NotificationManager mNotificationManager;
+    private final int mTickerId;
+    private final int mSingleContentId;
+
+    private final Map<Object, Entry> mPending = new HashMap<Object, Entry>();
+    private int mFinishedCount = 0;
+    private long mFinishedBytes = 0;
+    private long mBatchStartedAt = 0;
+    private Entry mCurrent = null;
+    private PendingIntent mContentIntent = null;
+
+    private NotificationCompat.Builder mBuilder = null;
+    private long mLastUpdate = 0;
+    private boolean mUpdateScheduled = false;
+
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+
+    /**
+     * @param context           Context of the service running the transfers.
+     * @param tickerId          Resource id of the ticker and title of the notification; also
+     *                          used as id of the notification.
+     * @param singleContentId   Resource id of the text shown when the batch is a single file;
+     *                          receives the percentage and the name of the file.
+     */
+    public TransferProgressNotifier(Context context, int tickerId, int singleContentId) {
+        mContext = context;
+        mNotificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        mTickerId = tickerId;
+        mSingleContentId = singleContentId;
+    }
+
+
+    /**
+     * Adds a transfer waiting to start to the current batch.
+     *
+     * @param transfer      Object identifying the transfer.
+     * @param fileName      Name of the file transferred.
+     * @param size          Size of the file, in bytes; negative if unknown.
+     */
+    public synchronized void addTransfer(Object transfer, String fileName, long size) {
+        if (mPending.isEmpty()) {
+            mFinishedCount = 0;
+            mFinishedBytes = 0;
+            mBatchStartedAt = System.currentTimeMillis();
+            mBuilder = null;
+        }
+        if (!mPending.containsKey(transfer)) {
+            mPending.put(transfer, new Entry(fileName, size));
+        }
+    }
+
+
+    /**
+     * Notifies the start of a transfer; the notification opens the given intent when clicked.
+     *
+     * @param transfer          Object identifying the transfer.
+     * @param contentIntent     Intent to launch when the notification is clicked.
+     */
+    public synchronized void startTransfer(Object transfer, PendingIntent contentIntent) {
+        Entry entry = mPending.get(transfer);
+        if (entry != null) {
+            mCurrent = entry;
+            mContentIntent = contentIntent;
+            scheduleUpdate();
+        }
+    }
+
+
+    /**
+     * Accounts the progress of a transfer; the notification is updated later.
+     *
+     * @param transfer      Object identifying the transfer.
+     * @param transferred   Bytes of the file transferred so far.
+     * @param total         Total bytes to transfer, if known; negative otherwise.
+     */
+    public synchronized void updateProgress(Object transfer, long transferred, long total) {
+        Entry entry = mPending.get(transfer);
+        if (entry != null) {
+            entry.mTransferred = transferred;
+            if (total >= 0) {
+                entry.mSize = total;
+            }
+            if (!mUpdateScheduled) {
+                scheduleUpdate();
+            }
+        }
+    }
+
+
+    /**
+     * Removes a transfer from the batch, finished or cancelled. The notification is removed
+     * when no transfer is left.
+     *
+     * @param transfer      Object identifying the transfer.
+     */
+    public synchronized void finishTransfer(Object transfer) {
+        Entry entry = mPending.remove(transfer);
+        if (entry == null) {
+            return;
+        }
+        mFinishedCount++;
+        mFinishedBytes += Math.max(entry.mSize, entry.mTransferred);
+        if (entry == mCurrent) {
+            mCurrent = null;
+        }
+        if (mPending.isEmpty()) {
+            mNotificationManager.cancel(mTickerId);
+            mBuilder = null;
+            mContentIntent = null;
+        } else {
+            scheduleUpdate();
+        }
+    }
+
+
+    /**
+     * Forgets all the transfers and removes the notification.
+     */
+    public synchronized void cancelAll() {
+        mPending.clear();
+        mCurrent = null;
+        mContentIntent = null;
+        mBuilder = null;
+        mNotificationManager.cancel(mTickerId);
+    }
+
+
+    private void scheduleUpdate() {
+        if (!mUpdateScheduled) {
+            mUpdateScheduled = true;
+            long delay = Math.max(0, mLastUpdate + UPDATE_INTERVAL - System.currentTimeMillis());
+            NotificationDelayer.postDelayed(mUpdate, delay);
+        }
+    }
+
+
+    private synchronized void update() {
+        mUpdateScheduled = false;
+        if (mPending.isEmpty()) {
+            return;     // batch finished meanwhile
+        }
+        if (mBuilder == null) {
+            mBuilder = NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(mContext);
+            mBuilder.setSmallIcon(R.drawable.notification_icon)
+                    .setTicker(mContext.getString(mTickerId))
+                    .setContentTitle(mContext.getString(mTickerId))
+                    .setOngoing(true);
+        }
+
+        long transferred = mFinishedBytes;
+        long total = mFinishedBytes;
+        boolean sizeUnknown = false;
+        for (Entry entry : mPending.values()) {
+            transferred += entry.mTransferred;
+            if (entry.mSize >= 0) {
+                total += entry.mSize;
+            } else {
+                sizeUnknown = true;
+            }
+        }
+        int percent = (total > 0) ? (int) (100.0 * transferred / total) : 0;
+        int filesCount = mFinishedCount + mPending.size();
+
+        String text = null;
+        if (filesCount == 1 && mCurrent != null) {
+            text = String.format(mContext.getString(mSingleContentId), percent, mCurrent.mFileName);
+        } else {
+            long elapsed = System.currentTimeMillis() - mBatchStartedAt;
+            String eta = "--:--";
+            if (!sizeUnknown && transferred > 0 && elapsed > 0) {
+                long left = (long) ((total - transferred) * ((double) elapsed / transferred));
+                eta = DateUtils.formatElapsedTime(left / 1000);
+            }
+            text = String.format(mContext.getString(R.string.transfer_batch_in_progress_content),
+                    mFinishedCount, filesCount,
+                    DisplayUtils.bytesToHumanReadable(transferred),
+                    DisplayUtils.bytesToHumanReadable(total),
+                    eta);
+        }
+        mBuilder.setProgress(100, percent, sizeUnknown)
+                .setContentText(text);
+        if (mContentIntent != null) {
+            mBuilder.setContentIntent(mContentIntent);
+        }
+        mNotificationManager.notify(mTickerId, mBuilder.build());
+        mLastUpdate = System.currentTimeMillis();
+    }
+
+}
@@ -0,0 +1,131 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Chooses the size of the chunks of chunked uploads from the throughput and the error rate
+ * measured in the chunks sent before through the same kind of network.
+ *
+ * The size aims to keep every chunk around {@link #TARGET_CHUNK_TIME} milliseconds, so that fast
+ * networks don't pay the overhead of too many requests, and is reduced when chunks fail, so that
+ * lossy networks lose less work in every failed chunk.
+ *
+ * Estimates are kept in memory for the life of the process.
+ */
+public class ChunkSizePolicy {
+
+    private static final String TAG = ChunkSizePolicy.class.getSimpleName();
+
+    public static final long MIN_CHUNK_SIZE = 256 * 1024;
+    public static final long MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final long CHUNK_SIZE_STEP = 64 * 1024;
+    private static final long TARGET_CHUNK_TIME = 5000;     // ms
+    private static final int MIN_SAMPLES = 3;
+    private static final double SMOOTHING = 0.25;
+
+    private static final String UNKNOWN_NETWORK = "unknown";
+
+    /**
+     * Rolling estimate for a kind of network; exponentially weighted, so recent chunks
+     * count more.
+     */
+    private static class NetworkEstimate {
+        double mThroughput = 0;     // bytes per second
+        double mErrorRate = 0;
+        int mSamples = 0;
+    }
+
+    private static final Map<String, NetworkEstimate> sEstimates =
+            new HashMap<String, NetworkEstimate>();
+
+
+    /**
+     * @return      Key identifying the kind of network currently in use; type, subtype and
+     *              roaming state are considered.
+     */
+    public static String getNetworkKey(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = (cm != null) ? cm.getActiveNetworkInfo() : null;
+        if (info == null) {
+            return UNKNOWN_NETWORK;
+        }
+        return info.getTypeName() + "/" + info.getSubtypeName() +
+                (info.isRoaming() ? "/roaming" : "");
+    }
+
+
+    /**
+     * Chooses the chunk size for a new chunked upload.
+     *
+     * @param networkKey    Kind of network, as returned by {@link #getNetworkKey(Context)}.
+     * @return              Chunk size in bytes.
+     */
+    public static synchronized long chooseChunkSize(String networkKey) {
+        NetworkEstimate estimate = sEstimates.get(networkKey);
+        if (estimate == null || estimate.mSamples < MIN_SAMPLES) {
+            return ChunkedUploadRemoteFileOperation.CHUNK_SIZE;
+        }
+        double size = estimate.mThroughput * TARGET_CHUNK_TIME / 1000;
+        // every failed chunk is sent again; keep them smaller as failures get more frequent
+        size *= Math.max(0.1, 1 - 2 * estimate.mErrorRate);
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, (long) size));
+        chunkSize -= chunkSize % CHUNK_SIZE_STEP;
+        Log_OC.d(TAG, "Chunk size for " + networkKey + ": " + chunkSize + " bytes (throughput " +
+                (long) estimate.mThroughput + " B/s, error rate " + estimate.mErrorRate + ")");
+        return chunkSize;
+    }
+
+
+    /**
+     * Records the transfer of a chunk to refine the estimate of its kind of network.
+     *
+     * @param networkKey    Kind of network, as returned by {@link #getNetworkKey(Context)}.
+     * @param length        Length of the chunk in bytes.
+     * @param elapsed       Time spent sending the chunk and receiving the response, in ms.
+     * @param success       'True' if the server received the chunk.
+     */
+    public static synchronized void recordChunk(String networkKey, long length, long elapsed,
+            boolean success) {
+        NetworkEstimate estimate = sEstimates.get(networkKey);
+        if (estimate == null) {
+            estimate = new NetworkEstimate();
+            sEstimates.put(networkKey, estimate);
+        }
+        estimate.mErrorRate = (1 - SMOOTHING) * estimate.mErrorRate + SMOOTHING * (success ? 0 : 1);
+        if (success && elapsed > 0) {
+            double throughput = length * 1000.0 / elapsed;
+            estimate.mThroughput = (estimate.mSamples == 0) ?
+                    throughput :
+                    (1 - SMOOTHING) * estimate.mThroughput + SMOOTHING * throughput;
+            estimate.mSamples++;
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.Random;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+/**
+ * State of a chunked upload, kept in a local file so that an interrupted upload can be
+ * continued later sending only the chunks that the server didn't receive.
+ *
+ * A state is bound to the transfer ID used to name the chunks in the server, to the size of
+ * the chunks, and to the length and modification time of the local file being uploaded; if any
+ * of the last ones changes, the state is not valid anymore and a new transfer must be started.
+ */
+public class ChunkedUploadState {
+
+    private static final String TAG = ChunkedUploadState.class.getSimpleName();
+
+    /** Suffix appended to the temporal path of an upload to name the file keeping its state */
+    public static final String STATE_FILE_SUFFIX = ".chunks";
+
+    /** The server discards the chunks of incomplete transfers after one day */
+    private static final long MAX_AGE = 23 * 60 * 60 * 1000;
+
+    private static final String KEY_TRANSFER_ID = "transfer_id";
+    private static final String KEY_CHUNK_SIZE = "chunk_size";
+    private static final String KEY_FILE_LENGTH = "file_length";
+    private static final String KEY_FILE_MODIFIED = "file_modified";
+    private static final String KEY_CREATED = "created";
+    private static final String KEY_DONE_CHUNKS = "done_chunks";
+
+    private final File mStateFile;
+    private final String mTransferId;
+    private final long mChunkSize;
+    private final long mFileLength;
+    private final long mFileModified;
+    private final long mCreated;
+    private final BitSet mDoneChunks;
+
+
+    private ChunkedUploadState(File stateFile, String transferId, long chunkSize,
+            long fileLength, long fileModified, long created, BitSet doneChunks) {
+        mStateFile = stateFile;
+        mTransferId = transferId;
+        mChunkSize = chunkSize;
+        mFileLength = fileLength;
+        mFileModified = fileModified;
+        mCreated = created;
+        mDoneChunks = doneChunks;
+    }
+
+
+    /**
+     * Returns the state saved for the upload of a local file, or a new one if there is no
+     * saved state, or it was saved for different contents, or it is too old.
+     *
+     * @param stateFile     File keeping the state of the upload.
+     * @param chunkSize     Size of the chunks to use if a new transfer is started.
+     * @param fileLength    Current length of the local file.
+     * @param fileModified  Current modification time of the local file.
+     * @return              State of the upload; check {@link #getDoneChunksCount()} to know if
+     *                      it continues a former transfer.
+     */
+    public static ChunkedUploadState loadOrCreate(File stateFile, long chunkSize,
+            long fileLength, long fileModified) {
+        long now = System.currentTimeMillis();
+        ChunkedUploadState state = load(stateFile);
+        if (state != null) {
+            if (state.mFileLength == fileLength && state.mFileModified == fileModified &&
+                    now - state.mCreated < MAX_AGE && state.mCreated <= now) {
+                return state;
+            }
+            Log_OC.d(TAG, "Discarding outdated state of chunked upload in " + stateFile);
+            stateFile.delete();
+        }
+        String transferId = String.valueOf(new Random().nextInt(Integer.MAX_VALUE));
+        return new ChunkedUploadState(stateFile, transferId, chunkSize, fileLength,
+                fileModified, now, new BitSet());
+    }
+
+
+    private static ChunkedUploadState load(File stateFile) {
+        if (!stateFile.exists()) {
+            return null;
+        }
+        Properties info = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(stateFile);
+            info.load(in);
+            BitSet doneChunks = new BitSet();
+            String done = info.getProperty(KEY_DONE_CHUNKS, "").trim();
+            if (done.length() > 0) {
+                for (String index : done.split(",")) {
+                    doneChunks.set(Integer.parseInt(index));
+                }
+            }
+            String transferId = info.getProperty(KEY_TRANSFER_ID);
+            long chunkSize = Long.parseLong(info.getProperty(KEY_CHUNK_SIZE, "0"));
+            if (transferId == null || chunkSize <= 0) {
+                return null;
+            }
+            return new ChunkedUploadState(
+                    stateFile,
+                    transferId,
+                    chunkSize,
+                    Long.parseLong(info.getProperty(KEY_FILE_LENGTH, "-1")),
+                    Long.parseLong(info.getProperty(KEY_FILE_MODIFIED, "-1")),
+                    Long.parseLong(info.getProperty(KEY_CREATED, "0")),
+                    doneChunks
+            );
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not read state of chunked upload in " + stateFile + ": " +
+                    e.getMessage());
+            return null;
+
+        } catch (NumberFormatException e) {
+            Log_OC.w(TAG, "Malformed state of chunked upload in " + stateFile);
+            return null;
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + stateFile + " (ignoring)", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Saves the state in its file, so that it survives to the process.
+     */
+    public synchronized void save() {
+        Properties info = new Properties();
+        info.setProperty(KEY_TRANSFER_ID, mTransferId);
+        info.setProperty(KEY_CHUNK_SIZE, String.valueOf(mChunkSize));
+        info.setProperty(KEY_FILE_LENGTH, String.valueOf(mFileLength));
+        info.setProperty(KEY_FILE_MODIFIED, String.valueOf(mFileModified));
+        info.setProperty(KEY_CREATED, String.valueOf(mCreated));
+        StringBuilder done = new StringBuilder();
+        for (int i = mDoneChunks.nextSetBit(0); i >= 0; i = mDoneChunks.nextSetBit(i + 1)) {
+            if (done.length() > 0) {
+                done.append(',');
+            }
+            done.append(i);
+        }
+        info.setProperty(KEY_DONE_CHUNKS, done.toString());
+
+        File parent = mStateFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(mStateFile);
+            info.store(out, null);
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not save state of chunked upload in " + mStateFile + ": " +
+                    e.getMessage());
+
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + mStateFile + " (ignoring)", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Removes the saved state, once the upload is finished.
+     */
+    public synchronized void delete() {
+        mStateFile.delete();
+    }
+
+
+    public String getTransferId() {
+        return mTransferId;
+    }
+
+    public long getChunkSize() {
+        return mChunkSize;
+    }
+
+    public int getChunksCount() {
+        return (int) ((mFileLength + mChunkSize - 1) / mChunkSize);
+    }
+
+    public synchronized boolean isChunkDone(int index) {
+        return mDoneChunks.get(index);
+    }
+
+    public synchronized void setChunkDone(int index) {
+        mDoneChunks.set(index);
+    }
+
+    public synchronized int getDoneChunksCount() {
+        return mDoneChunks.cardinality();
+    }
+
+}
@@ -28,6 +28,7 @@ import android.content.Intent;
 
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.SharesCacheManager;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.resources.shares.OCShare;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
@@ -123,6 +124,7 @@ public class CreateShareOperation extends SyncOperation {
         share.setPermissions(mPermissions);
         
         getStorageManager().saveShare(share);
+        SharesCacheManager.invalidate(getStorageManager().getAccount().name);
         
         // Update OCFile with data from share: ShareByLink  and publicLink
         OCFile file = getStorageManager().getFileByPath(mPath);
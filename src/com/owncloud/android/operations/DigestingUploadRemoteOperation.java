@@ -0,0 +1,163 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PutMethod;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+import com.owncloud.android.operations.common.ProgressListenerSet;
+import com.owncloud.android.utils.IncrementalDigest;
+
+/**
+ * Remote operation uploading a file in a single request, computing the digest of its contents
+ * from the same buffers sent to the server, so that the file is not read again to know it.
+ */
+public class DigestingUploadRemoteOperation extends UploadRemoteFileOperation {
+
+    private static final String TAG = DigestingUploadRemoteOperation.class.getSimpleName();
+
+    protected final String mLocalPath;
+    protected final String mTargetPath;
+    protected final String mContentType;
+
+    protected final ProgressListenerSet mTransferListeners = new ProgressListenerSet();
+    protected final IncrementalDigest mDigest = new IncrementalDigest();
+    protected final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+
+    /** Request in progress, aborted on cancellation */
+    protected PutMethod mPutMethod = null;
+
+    /** Length of the contents uploaded, set when the upload succeeds */
+    protected long mUploadedLength = -1;
+
+
+    /**
+     * @param localPath         Path to the local file to upload.
+     * @param remotePath        Remote path where the file will be uploaded.
+     * @param mimeType          MIME type of the file.
+     */
+    public DigestingUploadRemoteOperation(String localPath, String remotePath, String mimeType) {
+        super(localPath, remotePath, mimeType);
+        mLocalPath = localPath;
+        mTargetPath = remotePath;
+        mContentType = mimeType;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        File file = new File(mLocalPath);
+        RandomAccessFile raf = null;
+        PutMethod put = null;
+        try {
+            long fileLength = file.length();
+            raf = new RandomAccessFile(file, "r");
+            put = new PutMethod(client.getWebdavUri() + WebdavUtils.encodePath(mTargetPath));
+            synchronized (mCancellationRequested) {
+                if (mCancellationRequested.get()) {
+                    throw new OperationCancelledException();
+                }
+                mPutMethod = put;
+            }
+            put.setRequestEntity(new FileChunkRequestEntity(raf.getChannel(), mContentType,
+                    0, fileLength, fileLength, file.getName(), mTransferListeners, mDigest));
+            int status = client.executeMethod(put);
+            client.exhaustResponse(put.getResponseBodyAsStream());
+            result = new RemoteOperationResult(isSuccessfulStatus(status), status,
+                    put.getResponseHeaders());
+            if (result.isSuccess()) {
+                mUploadedLength = fileLength;
+            }
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+
+        } finally {
+            if (put != null) {
+                put.releaseConnection();
+            }
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + mLocalPath + " (ignoring)", e);
+                }
+            }
+        }
+
+        Log_OC.i(TAG, "Upload of " + mLocalPath + " to " + mTargetPath + ": " +
+                result.getLogMessage());
+        return result;
+    }
+
+
+    protected static boolean isSuccessfulStatus(int status) {
+        return (status == HttpStatus.SC_OK ||
+                status == HttpStatus.SC_CREATED ||
+                status == HttpStatus.SC_NO_CONTENT);
+    }
+
+
+    /**
+     * @return      Digest of the contents uploaded in the last execution, in the format
+     *              "ALGORITHM:hex", or null if the upload failed or the digest is not known.
+     */
+    public String getContentDigest() {
+        return (mUploadedLength < 0) ? null : mDigest.getDigest(mUploadedLength);
+    }
+
+
+    @Override
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        mTransferListeners.add(listener);
+    }
+
+    @Override
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        mTransferListeners.remove(listener);
+    }
+
+
+    @Override
+    public void cancel() {
+        synchronized (mCancellationRequested) {
+            mCancellationRequested.set(true);
+            if (mPutMethod != null) {
+                mPutMethod.abort();
+            }
+        }
+    }
+
+}
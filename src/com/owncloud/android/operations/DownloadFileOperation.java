@@ -18,11 +18,30 @@
 package com.owncloud.android.operations;
 
 import java.io.File;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.httpclient.HttpStatus;
+
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.OwnCloudClient;
@@ -30,10 +49,14 @@ import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.DownloadRemoteFileOperation;
+import com.owncloud.android.operations.common.ProgressListenerSet;
+import com.owncloud.android.services.OwnCloudClientPool;
+import com.owncloud.android.utils.ContentDigestUtils;
 import com.owncloud.android.utils.FileStorageUtils;
+import com.owncloud.android.utils.IncrementalDigest;
 
 import android.accounts.Account;
+import android.os.Process;
 import android.webkit.MimeTypeMap;
 
 /**
@@ -46,13 +69,59 @@ public class DownloadFileOperation extends RemoteOperation {
     
     private static final String TAG = DownloadFileOperation.class.getSimpleName();
 
+    /** Suffix of the file keeping the state of a partial download, next to the temporal file */
+    private static final String RESUME_INFO_SUFFIX = ".resume";
+    private static final String RESUME_KEY_ETAG = "etag";
+    private static final String RESUME_KEY_LENGTH = "length";
+    private static final String RESUME_KEY_RECEIVED = "received";
+
+    /** Minimum length of a file, in bytes, to download it in several segments at the same time */
+    public static final long MIN_SEGMENTED_LENGTH = 32 * 1024 * 1024;
+
+    /** Minimum length of every segment, in bytes */
+    private static final long MIN_SEGMENT_LENGTH = 8 * 1024 * 1024;
+
+    /**
+     * Maximum number of segments, counting those of all the downloads of an account in
+     * progress; leaves connections of the account to other transfers
+     */
+    public static final int MAX_SEGMENTS = OwnCloudClientPool.MAX_CONNECTIONS_PER_ACCOUNT / 2;
+
+    /** Segments still allowed to every account, by account name */
+    private static final Map<String, Semaphore> sSegmentPermits = new HashMap<String, Semaphore>();
+
+    /** Period, in milliseconds, to add to the digest the contents received by the segments */
+    private static final long SEGMENTS_DIGEST_PERIOD = 500;
+
+    /** Threads running the segments of the downloads, shared by all of them */
+    private static final ExecutorService sSegmentsExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "DownloadSegmentThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private Account mAccount;
     private OCFile mFile;
-    private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
+    private ProgressListenerSet mDataTransferListeners = new ProgressListenerSet();
     private long mModificationTimestamp = 0;
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     
-    private DownloadRemoteFileOperation mDownloadOperation;
+    private volatile RangeDownloadRemoteOperation mDownloadOperation;
+    private final List<RangeDownloadRemoteOperation> mSegmentOperations =
+            new ArrayList<RangeDownloadRemoteOperation>();
+    private long mResumedBytes = 0;
+    private int mSegments = 1;
+    private String mContentDigest = null;
 
     
     public DownloadFileOperation(Account account, OCFile file) {
@@ -120,6 +189,26 @@ public class DownloadFileOperation extends RemoteOperation {
         return (mModificationTimestamp > 0) ? mModificationTimestamp : mFile.getModificationTimestamp();
     }
 
+    /**
+     * Enables the download in several segments at the same time, for files of at least
+     * {@link #MIN_SEGMENTED_LENGTH} bytes; the download is done in a single stream when the
+     * server does not support ranges.
+     *
+     * @param segments      Maximum number of segments, up to {@link #MAX_SEGMENTS}; 1 downloads
+     *                      in a single stream, the default.
+     */
+    public void setSegments(int segments) {
+        mSegments = Math.max(1, Math.min(segments, MAX_SEGMENTS));
+    }
+
+    /**
+     * @return      Digest of the downloaded contents, computed while they were received, or null
+     *              if unknown.
+     */
+    public String getContentDigest() {
+        return mContentDigest;
+    }
+
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
         RemoteOperationResult result = null;
@@ -128,8 +217,7 @@ public class DownloadFileOperation extends RemoteOperation {
         
         /// download will be performed to a temporal file, then moved to the final location
         File tmpFile = new File(getTmpPath());
-        
-        String tmpFolder =  getTmpFolder();
+        File resumeInfoFile = new File(getTmpPath() + RESUME_INFO_SUFFIX);
         
         /// perform the download
         synchronized(mCancellationRequested) {
@@ -138,14 +226,34 @@ public class DownloadFileOperation extends RemoteOperation {
             }
         }
         
-        mDownloadOperation = new DownloadRemoteFileOperation(mFile.getRemotePath(), tmpFolder);
-        Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
-        while (listener.hasNext()) {
-            mDownloadOperation.addDatatransferProgressListener(listener.next());
+        mContentDigest = null;
+
+        /// continue a former partial download, if possible
+        String etag = null;
+        Properties resumeInfo = readResumeInfo(resumeInfoFile);
+        long offset = getResumeOffset(resumeInfo, tmpFile);
+        if (offset > 0) {
+            etag = resumeInfo.getProperty(RESUME_KEY_ETAG);
+        } else {
+            resumeInfoFile.delete();
+        }
+        
+        if (offset == 0 && mSegments > 1 && mFile.getFileLength() >= MIN_SEGMENTED_LENGTH) {
+            result = downloadInSegments(client, tmpFile);
+        }
+        if (result == null) {
+            // single stream; also when the download in segments was not possible
+            result = download(client, tmpFile, resumeInfoFile, offset, etag);
+            if (!result.isSuccess() && offset > 0 &&
+                    result.getHttpCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // partial file not valid anymore; start from scratch
+                resumeInfoFile.delete();
+                result = download(client, tmpFile, resumeInfoFile, 0, null);
+            }
         }
-        result = mDownloadOperation.execute(client);
         
         if (result.isSuccess()) {
+            resumeInfoFile.delete();
             mModificationTimestamp = mDownloadOperation.getModificationTimestamp();
             newFile = new File(getSavePath());
             newFile.getParentFile().mkdirs();
@@ -153,6 +261,11 @@ public class DownloadFileOperation extends RemoteOperation {
         
             if (!moved)
                 result = new RemoteOperationResult(RemoteOperationResult.ResultCode.LOCAL_STORAGE_NOT_MOVED);
+            
+        } else if (result.isCancelled()) {
+            // explicit cancellation; don't keep the partial contents around
+            tmpFile.delete();
+            resumeInfoFile.delete();
         }
         Log_OC.i(TAG, "Download of " + mFile.getRemotePath() + " to " + getSavePath() + ": " + result.getLogMessage());
         
@@ -160,24 +273,511 @@ public class DownloadFileOperation extends RemoteOperation {
         return result;
     }
 
+
+    /**
+     * Downloads the contents of the file into the temporal file, from a given position, and 
+     * keeps the state of the download to resume it later if interrupted.
+     * 
+     * @param client            Client object to communicate with the server.
+     * @param tmpFile           Temporal file receiving the contents.
+     * @param resumeInfoFile    File keeping the state of the partial download.
+     * @param offset            Position where the download starts.
+     * @param etag              ETag of the partial contents in tmpFile; null if offset is 0.
+     * @return                  Result of the download.
+     */
+    private RemoteOperationResult download(OwnCloudClient client, File tmpFile, 
+            File resumeInfoFile, long offset, String etag) {
+        
+        RangeDownloadRemoteOperation downloadOperation = new RangeDownloadRemoteOperation(
+                mFile.getRemotePath(), tmpFile, offset, -1, etag);
+        // listeners added later are reached through the set
+        downloadOperation.addDatatransferProgressListener(mDataTransferListeners);
+        IncrementalDigest digest = new IncrementalDigest();
+        if (offset > 0) {
+            digest.update(tmpFile, offset);
+        }
+        downloadOperation.setContentDigest(digest);
+        synchronized (mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                return new RemoteOperationResult(new OperationCancelledException());
+            }
+            mDownloadOperation = downloadOperation;
+        }
+        RemoteOperationResult result = downloadOperation.execute(client);
+        
+        if (offset > 0) {
+            if (downloadOperation.isPartialContent()) {
+                mResumedBytes = offset;
+                Log_OC.i(TAG, "Download of " + mFile.getRemotePath() + " resumed at byte " + 
+                        offset + "; " + offset + " bytes were not downloaded again");
+            } else if (result.isSuccess() || downloadOperation.getTransferredBytes() > 0) {
+                Log_OC.i(TAG, "Contents of " + mFile.getRemotePath() + 
+                        " changed in the server; downloaded from the beginning");
+            }
+        }
+        
+        if (!result.isSuccess() && downloadOperation.getEtag() != null) {
+            writeResumeInfo(resumeInfoFile, downloadOperation.getEtag(), 
+                    downloadOperation.getTotalLength(), tmpFile.length());
+        }
+
+        if (result.isSuccess() && !checkDigest(downloadOperation, digest, tmpFile)) {
+            // corrupted; nothing worth resuming from
+            tmpFile.delete();
+            resumeInfoFile.delete();
+            result = new RemoteOperationResult(new IOException("Contents of " +
+                    mFile.getRemotePath() + " received do not match the checksum in the server"));
+        }
+        return result;
+    }
+
+
+    /**
+     * Keeps the digest computed while the contents were received, and checks it against the
+     * checksum sent by the server with them, if any.
+     *
+     * @param operation     Operation that received the contents.
+     * @param digest        Digest updated with the contents.
+     * @param tmpFile       Temporal file with the contents.
+     * @return              'False' if the contents do not match the checksum in the server.
+     */
+    private boolean checkDigest(RangeDownloadRemoteOperation operation, IncrementalDigest digest,
+            File tmpFile) {
+        mContentDigest = digest.getDigest(tmpFile.length());
+        String serverDigest = operation.getServerDigest();
+        if (mContentDigest != null && serverDigest != null &&
+                !ContentDigestUtils.sameContents(mContentDigest, serverDigest)) {
+            Log_OC.e(TAG, "Contents of " + mFile.getRemotePath() +
+                    " received do not match the checksum in the server");
+            mContentDigest = null;
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Downloads the contents of the file into the temporal file in several ranges at the same
+     * time, every one on its own connection.
+     *
+     * A first request for the first byte tells if the server supports ranges, and the current
+     * length and ETag of the file. If ranges are not supported, the server sends the full
+     * contents in answer to that request, and the download is done. Otherwise, the temporal
+     * file is allocated with the full length, and the segments are requested with the ETag as
+     * validator. The segments of all the downloads of the account in progress together stay
+     * within {@link #MAX_SEGMENTS}; if fewer than two are left, the download is done in a
+     * single stream.
+     *
+     * The assembled file is accepted when every segment was received as partial contents with
+     * the same ETag, and its digest matches the checksum in the server, if the server has one.
+     * The digest is computed in order while the segments are received: the first segment adds
+     * its contents from its own buffers, and the contents of every following one are added
+     * from the temporal file as soon as all the contents before them are complete.
+     *
+     * @param client            Client object to communicate with the server.
+     * @param tmpFile           Temporal file receiving the contents.
+     * @return                  Result of the download, or null if it could not be done in
+     *                          segments and must be done again in a single stream.
+     */
+    private RemoteOperationResult downloadInSegments(final OwnCloudClient client, File tmpFile) {
+
+        RangeDownloadRemoteOperation probe = new RangeDownloadRemoteOperation(
+                mFile.getRemotePath(), tmpFile, 0, 0, null);
+        probe.addDatatransferProgressListener(mDataTransferListeners);
+        IncrementalDigest digest = new IncrementalDigest();
+        probe.setContentDigest(digest);
+        synchronized (mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                return new RemoteOperationResult(new OperationCancelledException());
+            }
+            mDownloadOperation = probe;
+        }
+        RemoteOperationResult result = probe.execute(client);
+        if (result.isCancelled()) {
+            return result;
+        }
+        if (!result.isSuccess()) {
+            return null;
+        }
+        if (!probe.isPartialContent()) {
+            Log_OC.d(TAG, "Server does not support ranges; " + mFile.getRemotePath() +
+                    " received in a single stream");
+            return checkDigest(probe, digest, tmpFile) ? result : null;
+        }
+        String etag = probe.getEtag();
+        long length = probe.getTotalLength();
+        if (etag == null || length < 0) {
+            // segments could not be validated
+            return null;
+        }
+        int segments = (int) Math.min(mSegments, length / MIN_SEGMENT_LENGTH);
+        if (segments < 2) {
+            return null;
+        }
+
+        /// other downloads of the account may be using segments already
+        Semaphore permits = getSegmentPermits(mAccount.name);
+        int granted = 0;
+        while (granted < segments && permits.tryAcquire()) {
+            granted++;
+        }
+        try {
+            if (granted < 2) {
+                Log_OC.d(TAG, "No connections left to download " + mFile.getRemotePath() +
+                        " in segments; received in a single stream");
+                return null;
+            }
+            return downloadSegments(client, tmpFile, etag, length, granted);
+
+        } finally {
+            permits.release(granted);
+        }
+    }
+
+
+    /**
+     * Requests the segments of the file at the same time, and waits for all of them.
+     *
+     * @param client            Client object to communicate with the server.
+     * @param tmpFile           Temporal file receiving the contents.
+     * @param etag              ETag of the contents, as received in the first request.
+     * @param length            Length of the contents, as received in the first request.
+     * @param segments          Number of segments to request.
+     * @return                  Result of the download, or null if it could not be done in
+     *                          segments and must be done again in a single stream.
+     */
+    private RemoteOperationResult downloadSegments(final OwnCloudClient client, File tmpFile,
+            String etag, long length, int segments) {
+
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(tmpFile, "rw");
+            out.setLength(length);
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not allocate " + length + " bytes for " + mFile.getRemotePath() +
+                    ": " + e.getMessage());
+            return null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + tmpFile + " (ignoring)", e);
+                }
+            }
+        }
+
+        /// request all the segments at the same time
+        SegmentsProgressListener progressListener = new SegmentsProgressListener(length);
+        List<RangeDownloadRemoteOperation> operations =
+                new ArrayList<RangeDownloadRemoteOperation>(segments);
+        long segmentLength = length / segments;
+        IncrementalDigest digest = new IncrementalDigest();
+        for (int i=0; i<segments; i++) {
+            long start = i * segmentLength;
+            long end = (i == segments - 1) ? length - 1 : start + segmentLength - 1;
+            RangeDownloadRemoteOperation operation = new RangeDownloadRemoteOperation(
+                    mFile.getRemotePath(), tmpFile, start, end, etag);
+            operation.addDatatransferProgressListener(progressListener);
+            if (i == 0) {
+                // owned by the thread of the first segment until it finishes
+                operation.setContentDigest(digest);
+            }
+            operations.add(operation);
+        }
+        List<Future<RemoteOperationResult>> results =
+                new ArrayList<Future<RemoteOperationResult>>(segments);
+        synchronized (mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                return new RemoteOperationResult(new OperationCancelledException());
+            }
+            mSegmentOperations.addAll(operations);
+            for (final RangeDownloadRemoteOperation operation : operations) {
+                results.add(sSegmentsExecutor.submit(new Callable<RemoteOperationResult>() {
+                    @Override
+                    public RemoteOperationResult call() {
+                        return operation.execute(client);
+                    }
+                }));
+            }
+        }
+
+        /// wait for all of them in order, adding their contents to the digest meanwhile;
+        /// on the first failure, the rest are cancelled
+        boolean complete = true;
+        for (int i=0; i<segments; i++) {
+            RangeDownloadRemoteOperation operation = operations.get(i);
+            long start = i * segmentLength;
+            RemoteOperationResult segmentResult = null;
+            try {
+                while (segmentResult == null) {
+                    try {
+                        segmentResult = results.get(i).get(
+                                SEGMENTS_DIGEST_PERIOD, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        if (complete && i > 0) {
+                            // all the contents before this segment are in place
+                            digest.update(tmpFile, start + operation.getTransferredBytes());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                segmentResult = new RemoteOperationResult(e);
+            } catch (ExecutionException e) {
+                segmentResult = new RemoteOperationResult(e);
+            }
+            if (complete && (!segmentResult.isSuccess() || !operation.isPartialContent() ||
+                    !etag.equals(operation.getEtag()))) {
+                // failed, or the file changed in the server meanwhile
+                Log_OC.w(TAG, "Segment " + i + " of " + mFile.getRemotePath() + " not valid: " +
+                        segmentResult.getLogMessage());
+                complete = false;
+                cancelSegments();
+            }
+            if (complete && i > 0) {
+                digest.update(tmpFile, start + operation.getTransferredBytes());
+            }
+        }
+        synchronized (mCancellationRequested) {
+            mSegmentOperations.clear();
+            if (mCancellationRequested.get()) {
+                return new RemoteOperationResult(new OperationCancelledException());
+            }
+        }
+        if (!complete) {
+            return null;
+        }
+
+        /// verify the assembled contents against the checksum in the server, if any
+        String localDigest = digest.getDigest(length);
+        ReadRemoteChecksumOperation checksumOperation =
+                new ReadRemoteChecksumOperation(mFile.getRemotePath());
+        RemoteOperationResult checksumResult = checksumOperation.execute(client);
+        if (localDigest != null && checksumResult.isSuccess() &&
+                checksumOperation.getDigest() != null &&
+                !ContentDigestUtils.sameContents(localDigest, checksumOperation.getDigest())) {
+            Log_OC.w(TAG, "Contents of " + mFile.getRemotePath() +
+                    " assembled from segments do not match the checksum in the server");
+            return null;
+        }
+        mContentDigest = localDigest;
+
+        Log_OC.i(TAG, "Download of " + mFile.getRemotePath() + " completed in " + segments +
+                " segments");
+        return new RemoteOperationResult(RemoteOperationResult.ResultCode.OK);
+    }
+
+
+    private static Semaphore getSegmentPermits(String accountName) {
+        synchronized (sSegmentPermits) {
+            Semaphore permits = sSegmentPermits.get(accountName);
+            if (permits == null) {
+                permits = new Semaphore(MAX_SEGMENTS);
+                sSegmentPermits.put(accountName, permits);
+            }
+            return permits;
+        }
+    }
+
+
+    private void cancelSegments() {
+        synchronized (mCancellationRequested) {
+            for (RangeDownloadRemoteOperation segment : mSegmentOperations) {
+                segment.cancel();
+            }
+        }
+    }
+
+
+    /**
+     * Adds up the progress of the segments of a download and forwards it to the listeners of
+     * the operation as the progress of a single stream, one callback at a time.
+     */
+    private class SegmentsProgressListener implements OnDatatransferProgressListener {
+
+        private final long mLength;
+        private long mTransferred = 0;
+
+        SegmentsProgressListener(long length) {
+            mLength = length;
+        }
+
+        @Override
+        public synchronized void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                long totalToTransfer, String fileName) {
+            if (progressRate <= 0) {
+                return;
+            }
+            mTransferred += progressRate;
+            mDataTransferListeners.onTransferProgress(
+                    progressRate, mTransferred, mLength, fileName);
+        }
+    }
+
+
+    /**
+     * @return      ETag of the contents kept in the temporal file from a former partial
+     *              download, or null if there are none to resume from.
+     */
+    public String getResumableEtag() {
+        Properties resumeInfo = readResumeInfo(new File(getTmpPath() + RESUME_INFO_SUFFIX));
+        if (getResumeOffset(resumeInfo, new File(getTmpPath())) > 0) {
+            return resumeInfo.getProperty(RESUME_KEY_ETAG);
+        }
+        return null;
+    }
+
+
+    /**
+     * @return      Number of bytes at the beginning of the temporal file kept from a former
+     *              partial download, or 0 if there are none to resume from.
+     */
+    public long getResumableLength() {
+        return getResumeOffset(
+                readResumeInfo(new File(getTmpPath() + RESUME_INFO_SUFFIX)), new File(getTmpPath()));
+    }
+
+
+    /**
+     * Keeps the state of contents written into the temporal file out of this operation, so
+     * that the next execution resumes after them.
+     *
+     * @param etag          ETag of the contents.
+     * @param length        Full length of the file.
+     * @param received      Number of bytes at the beginning of the temporal file.
+     */
+    public void saveResumeInfo(String etag, long length, long received) {
+        writeResumeInfo(new File(getTmpPath() + RESUME_INFO_SUFFIX), etag, length, received);
+    }
+
+
+    /**
+     * Finishes a download which contents were fully written into the temporal file out of
+     * this operation, moving them to the final location as an execution would do.
+     *
+     * @param modificationTimestamp     Modification time of the contents in the server, or 0
+     *                                  if unknown.
+     * @return                          Result of the download.
+     */
+    public RemoteOperationResult completeDownload(long modificationTimestamp) {
+        RemoteOperationResult result = new RemoteOperationResult(RemoteOperationResult.ResultCode.OK);
+        File tmpFile = new File(getTmpPath());
+        new File(getTmpPath() + RESUME_INFO_SUFFIX).delete();
+        mModificationTimestamp = modificationTimestamp;
+        File newFile = new File(getSavePath());
+        newFile.getParentFile().mkdirs();
+        if (!tmpFile.renameTo(newFile)) {
+            result = new RemoteOperationResult(RemoteOperationResult.ResultCode.LOCAL_STORAGE_NOT_MOVED);
+        }
+        Log_OC.i(TAG, "Download of " + mFile.getRemotePath() + " to " + getSavePath() + 
+                " completed out of the operation: " + result.getLogMessage());
+        return result;
+    }
+
+
+    /**
+     * @return      Position where a former partial download can be resumed, according to its
+     *              saved state, or 0 if it can't.
+     */
+    private long getResumeOffset(Properties resumeInfo, File tmpFile) {
+        if (resumeInfo != null && tmpFile.exists()) {
+            try {
+                String etag = resumeInfo.getProperty(RESUME_KEY_ETAG);
+                long length = Long.parseLong(resumeInfo.getProperty(RESUME_KEY_LENGTH, "-1"));
+                long received = Long.parseLong(resumeInfo.getProperty(RESUME_KEY_RECEIVED, "0"));
+                if (etag != null && received > 0 && received < length &&
+                        tmpFile.length() >= received) {
+                    return received;
+                }
+            } catch (NumberFormatException e) {
+                Log_OC.w(TAG, "Ignoring corrupt state of partial download of " + mFile.getRemotePath());
+            }
+        }
+        return 0;
+    }
+
+
+    private Properties readResumeInfo(File resumeInfoFile) {
+        if (!resumeInfoFile.exists()) {
+            return null;
+        }
+        Properties info = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(resumeInfoFile);
+            info.load(in);
+            return info;
+            
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not read state of partial download of " + mFile.getRemotePath() + 
+                    ": " + e.getMessage());
+            return null;
+            
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + resumeInfoFile + " (ignoring)", e);
+                }
+            }
+        }
+    }
+    
+    
+    private void writeResumeInfo(File resumeInfoFile, String etag, long length, long received) {
+        Properties info = new Properties();
+        info.setProperty(RESUME_KEY_ETAG, etag);
+        info.setProperty(RESUME_KEY_LENGTH, String.valueOf(length));
+        info.setProperty(RESUME_KEY_RECEIVED, String.valueOf(received));
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(resumeInfoFile);
+            info.store(out, null);
+            
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not save state of partial download of " + mFile.getRemotePath() + 
+                    ": " + e.getMessage());
+            
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + resumeInfoFile + " (ignoring)", e);
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * @return      Number of bytes of the last execution that were kept from a former partial 
+     *              download instead of being downloaded again.
+     */
+    public long getResumedBytes() {
+        return mResumedBytes;
+    }
+
+
     public void cancel() {
-        mCancellationRequested.set(true);   // atomic set; there is no need of synchronizing it
-        if (mDownloadOperation != null) {
-            mDownloadOperation.cancel();
+        synchronized (mCancellationRequested) {
+            mCancellationRequested.set(true);
+            if (mDownloadOperation != null) {
+                mDownloadOperation.cancel();
+            }
+            cancelSegments();
         }
     }
 
 
     public void addDatatransferProgressListener (OnDatatransferProgressListener listener) {
-        synchronized (mDataTransferListeners) {
-            mDataTransferListeners.add(listener);
-        }
+        mDataTransferListeners.add(listener);
     }
     
     public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
-        synchronized (mDataTransferListeners) {
-            mDataTransferListeners.remove(listener);
-        }
+        mDataTransferListeners.remove(listener);
     }
     
 }
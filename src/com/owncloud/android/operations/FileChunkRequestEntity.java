@@ -0,0 +1,119 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.operations.common.ProgressListenerSet;
+import com.owncloud.android.utils.IncrementalDigest;
+
+/**
+ * Request entity sending a range of bytes of a local file, as a chunk of a chunked upload, or
+ * the full file.
+ *
+ * Progress is reported to the listeners in absolute terms: the amount of bytes transferred
+ * so far is the position in the file, so that chunks skipped or sent in previous executions
+ * are accounted as transferred.
+ *
+ * The bytes sent are added to an {@link IncrementalDigest}, if given; when the entity is sent
+ * again, as after an authentication challenge, they are not added twice.
+ */
+class FileChunkRequestEntity implements RequestEntity {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final FileChannel mChannel;
+    private final String mContentType;
+    private final long mOffset;
+    private final long mLength;
+    private final long mFileLength;
+    private final String mFileName;
+    private final OnDatatransferProgressListener mDataTransferListener;
+    private final IncrementalDigest mDigest;
+
+
+    /**
+     * @param channel       Channel open on the local file.
+     * @param contentType   MIME type of the file.
+     * @param offset        Position of the first byte of the chunk in the file.
+     * @param length        Length of the chunk.
+     * @param fileLength    Full length of the file.
+     * @param fileName      Name of the file, for the progress listeners.
+     * @param listener      Progress listener; usually a {@link ProgressListenerSet}.
+     * @param digest        Digest of the file where the bytes sent are added, or null.
+     */
+    FileChunkRequestEntity(FileChannel channel, String contentType, long offset, long length,
+            long fileLength, String fileName, OnDatatransferProgressListener listener,
+            IncrementalDigest digest) {
+        mChannel = channel;
+        mContentType = contentType;
+        mOffset = offset;
+        mLength = length;
+        mFileLength = fileLength;
+        mFileName = fileName;
+        mDataTransferListener = listener;
+        mDigest = digest;
+    }
+
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mLength;
+    }
+
+    @Override
+    public String getContentType() {
+        return mContentType;
+    }
+
+
+    @Override
+    public void writeRequest(OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = mOffset;
+        long end = mOffset + mLength;
+        while (position < end) {
+            buffer.clear();
+            if (end - position < BUFFER_SIZE) {
+                buffer.limit((int) (end - position));
+            }
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file " + mFileName + " at byte " + position);
+            }
+            out.write(buffer.array(), 0, read);
+            if (mDigest != null) {
+                mDigest.update(position, buffer.array(), 0, read);
+            }
+            position += read;
+            mDataTransferListener.onTransferProgress(read, position, mFileLength, mFileName);
+        }
+    }
+
+}
@@ -19,6 +19,7 @@ package com.owncloud.android.operations;
 
 import java.util.ArrayList;
 
+import com.owncloud.android.datamodel.SharesCacheManager;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.utils.Log_OC;
@@ -28,7 +29,7 @@ import com.owncloud.android.operations.common.SyncOperation;
 
 /**
  * Access to remote operation to get the share files/folders
- * Save the data in Database
+ * Save the data in Database, and keep it as the current snapshot of shares in the account
  * 
  * @author masensio
  * @author David A. Velasco
@@ -53,6 +54,7 @@ public class GetSharesOperation extends SyncOperation {
             }
 
             getStorageManager().saveSharesDB(shares);
+            SharesCacheManager.putShares(getStorageManager().getAccount().name, shares);
         }
 
         return result;
@@ -0,0 +1,329 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.operations.common.ProgressListenerSet;
+import com.owncloud.android.utils.ContentDigestUtils;
+import com.owncloud.android.utils.IncrementalDigest;
+
+/**
+ * Remote operation downloading the contents of a remote file, or a range of them, into a
+ * given position of a local file.
+ *
+ * When a range is requested with a validator ETag and the contents in the server changed,
+ * the server answers with the full new contents; they are written from the beginning of the
+ * local file, and {@link #isPartialContent()} returns false.
+ *
+ * Received contents can be added to an {@link IncrementalDigest} while they are written.
+ */
+public class RangeDownloadRemoteOperation extends RemoteOperation {
+
+    private static final String TAG = RangeDownloadRemoteOperation.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_OC_CHECKSUM = "OC-Checksum";
+
+    private String mRemotePath;
+    private File mTargetFile;
+    private long mOffset;
+    private long mEnd;
+    private String mIfRangeEtag;
+    private IncrementalDigest mDigest = null;
+
+    private final ProgressListenerSet mDataTransferListeners = new ProgressListenerSet();
+    private final String mFileName;
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private GetMethod mGetMethod = null;
+
+    private boolean mPartialContent = false;
+    private volatile long mTransferred = 0;
+    private long mTotalLength = -1;
+    private long mExpectedLength = -1;
+    private String mEtag = null;
+    private long mModificationTimestamp = 0;
+    private String mServerDigest = null;
+
+
+    /**
+     * @param remotePath    Remote path of the file to download.
+     * @param targetFile    Local file where contents will be written; created if needed.
+     * @param offset        First byte of the range to download.
+     * @param end           Last byte of the range to download, inclusive, or -1 to download
+     *                      up to the end of the file. When -1, the local file is truncated
+     *                      at the end of the downloaded contents.
+     * @param ifRangeEtag   ETag the contents must match to receive just the range, or null.
+     */
+    public RangeDownloadRemoteOperation(String remotePath, File targetFile, long offset, long end,
+            String ifRangeEtag) {
+        mRemotePath = remotePath;
+        mTargetFile = targetFile;
+        mFileName = targetFile.getName();
+        mOffset = offset;
+        mEnd = end;
+        mIfRangeEtag = ifRangeEtag;
+    }
+
+
+    /**
+     * @param digest        Digest where the received contents will be added; reset when the
+     *                      contents are received from the beginning of the file.
+     */
+    public void setContentDigest(IncrementalDigest digest) {
+        mDigest = digest;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        GetMethod get = null;
+        try {
+            get = new GetMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+            synchronized (mCancellationRequested) {
+                if (mCancellationRequested.get()) {
+                    throw new OperationCancelledException();
+                }
+                mGetMethod = get;
+            }
+            boolean rangeRequested = (mOffset > 0 || mEnd >= 0);
+            if (rangeRequested) {
+                get.setRequestHeader(HEADER_RANGE,
+                        "bytes=" + mOffset + "-" + (mEnd >= 0 ? String.valueOf(mEnd) : ""));
+                if (mIfRangeEtag != null) {
+                    get.setRequestHeader(HEADER_IF_RANGE, mIfRangeEtag);
+                }
+            }
+            int status = client.executeMethod(get);
+
+            if (status == HttpStatus.SC_PARTIAL_CONTENT || status == HttpStatus.SC_OK) {
+                mPartialContent = (status == HttpStatus.SC_PARTIAL_CONTENT);
+                readHeaders(get);
+                long position = mPartialContent ? mOffset : 0;
+                writeContents(get.getResponseBodyAsStream(), position, !mPartialContent || mEnd < 0);
+                result = new RemoteOperationResult(ResultCode.OK);
+
+            } else {
+                client.exhaustResponse(get.getResponseBodyAsStream());
+                result = new RemoteOperationResult(false, status, get.getResponseHeaders());
+            }
+            Log_OC.i(TAG, "Download of " + mRemotePath + " from byte " + mOffset +
+                    (mPartialContent ? " (partial)" : " (full)") + ", " + mTransferred +
+                    " bytes: " + result.getLogMessage());
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+            Log_OC.e(TAG, "Download of " + mRemotePath + " from byte " + mOffset + ": " +
+                    result.getLogMessage(), e);
+
+        } finally {
+            if (get != null) {
+                if (mCancellationRequested.get()) {
+                    // else releaseConnection() reads the rest of the response
+                    get.abort();
+                }
+                get.releaseConnection();
+            }
+        }
+        return result;
+    }
+
+
+    private void readHeaders(GetMethod get) {
+        Header etag = get.getResponseHeader(HEADER_ETAG);
+        if (etag != null) {
+            mEtag = etag.getValue();
+        }
+        Header lastModified = get.getResponseHeader(HEADER_LAST_MODIFIED);
+        if (lastModified != null) {
+            Date date = WebdavUtils.parseResponseDate(lastModified.getValue());
+            if (date != null) {
+                mModificationTimestamp = date.getTime();
+            }
+        }
+        Header checksum = get.getResponseHeader(HEADER_OC_CHECKSUM);
+        if (checksum != null) {
+            mServerDigest = ContentDigestUtils.findDigest(checksum.getValue());
+        }
+        Header contentRange = get.getResponseHeader(HEADER_CONTENT_RANGE);
+        mExpectedLength = get.getResponseContentLength();
+        if (mPartialContent && contentRange != null) {
+            // "bytes first-last/total"
+            String value = contentRange.getValue();
+            int slash = value.lastIndexOf('/');
+            int dash = value.indexOf('-');
+            int space = value.indexOf(' ');
+            try {
+                if (slash >= 0 && !value.endsWith("*")) {
+                    mTotalLength = Long.parseLong(value.substring(slash + 1).trim());
+                }
+                if (space >= 0 && dash > space && slash > dash) {
+                    long first = Long.parseLong(value.substring(space + 1, dash).trim());
+                    long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+                    mExpectedLength = last - first + 1;
+                }
+            } catch (NumberFormatException e) {
+                Log_OC.w(TAG, "Unexpected Content-Range " + value);
+            }
+        } else if (!mPartialContent) {
+            mTotalLength = mExpectedLength;
+        }
+    }
+
+
+    private void writeContents(InputStream in, long position, boolean truncate)
+            throws IOException, OperationCancelledException {
+        File parent = mTargetFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(mTargetFile, "rw");
+            out.seek(position);
+            if (position > 0) {
+                // tell the listeners about the contents already in place
+                notifyProgress(0, position);
+            }
+            if (mDigest != null && position == 0) {
+                mDigest.reset();
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                synchronized (mCancellationRequested) {
+                    if (mCancellationRequested.get()) {
+                        throw new OperationCancelledException();
+                    }
+                }
+                out.write(buffer, 0, read);
+                if (mDigest != null) {
+                    mDigest.update(position + mTransferred, buffer, 0, read);
+                }
+                mTransferred += read;
+                notifyProgress(read, position + mTransferred);
+            }
+            if (truncate) {
+                // also when the body was cut short; the contents received are kept to resume
+                out.setLength(position + mTransferred);
+            }
+            if (mExpectedLength >= 0 && mTransferred != mExpectedLength) {
+                throw new IOException("Response body of " + mRemotePath + " ended after " +
+                        mTransferred + " bytes of " + mExpectedLength);
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+
+    private void notifyProgress(long progressRate, long transferredSoFar) {
+        mDataTransferListeners.onTransferProgress(
+                progressRate, transferredSoFar, mTotalLength, mFileName);
+    }
+
+
+    public void cancel() {
+        synchronized (mCancellationRequested) {
+            mCancellationRequested.set(true);
+            if (mGetMethod != null) {
+                mGetMethod.abort();
+            }
+        }
+    }
+
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        mDataTransferListeners.add(listener);
+    }
+
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        mDataTransferListeners.remove(listener);
+    }
+
+
+    /**
+     * @return      'True' if the server sent only the requested range; 'false' if it sent the
+     *              full contents of the file.
+     */
+    public boolean isPartialContent() {
+        return mPartialContent;
+    }
+
+    /**
+     * @return      Number of bytes received in the last execution; may be read from other
+     *              threads while the contents are written, once they are in the local file.
+     */
+    public long getTransferredBytes() {
+        return mTransferred;
+    }
+
+    /**
+     * @return      Full length of the remote file, or -1 if unknown.
+     */
+    public long getTotalLength() {
+        return mTotalLength;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+    /**
+     * @return      Digest of the full contents of the remote file sent by the server in the
+     *              response, in the format "ALGORITHM:hex", or null if not sent.
+     */
+    public String getServerDigest() {
+        return mServerDigest;
+    }
+
+}
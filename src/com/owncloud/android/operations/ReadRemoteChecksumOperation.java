@@ -0,0 +1,213 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.jackrabbit.webdav.DavConstants;
+import org.apache.jackrabbit.webdav.MultiStatus;
+import org.apache.jackrabbit.webdav.MultiStatusResponse;
+import org.apache.jackrabbit.webdav.client.methods.PropFindMethod;
+import org.apache.jackrabbit.webdav.property.DavProperty;
+import org.apache.jackrabbit.webdav.property.DavPropertyName;
+import org.apache.jackrabbit.webdav.property.DavPropertyNameSet;
+import org.apache.jackrabbit.webdav.property.DavPropertySet;
+import org.apache.jackrabbit.webdav.xml.Namespace;
+import org.w3c.dom.Node;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.utils.ContentDigestUtils;
+
+/**
+ * Remote operation reading the checksums that the server keeps for the contents of a file,
+ * together with its length, modification time, content type and remote id, so that the same
+ * request refreshes the properties of an uploaded file.
+ *
+ * Servers not supporting checksums answer the request without the property; in that case
+ * the operation succeeds, but {@link #getDigest()} returns null.
+ */
+public class ReadRemoteChecksumOperation extends RemoteOperation {
+
+    private static final String TAG = ReadRemoteChecksumOperation.class.getSimpleName();
+
+    private static final Namespace OC_NAMESPACE = Namespace.getNamespace("oc", "http://owncloud.org/ns");
+    private static final DavPropertyName CHECKSUMS_PROPERTY =
+            DavPropertyName.create("checksums", OC_NAMESPACE);
+    private static final DavPropertyName ID_PROPERTY = DavPropertyName.create("id", OC_NAMESPACE);
+
+    private String mRemotePath;
+    private String mDigest;
+    private long mLength = -1;
+    private long mModificationTimestamp = 0;
+    private String mMimeType = null;
+    private String mRemoteId = null;
+
+
+    /**
+     * @param remotePath    Remote path of the file which checksums will be read.
+     */
+    public ReadRemoteChecksumOperation(String remotePath) {
+        mRemotePath = remotePath;
+        mDigest = null;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        PropFindMethod propfind = null;
+        try {
+            DavPropertyNameSet properties = new DavPropertyNameSet();
+            properties.add(CHECKSUMS_PROPERTY);
+            properties.add(DavPropertyName.GETCONTENTLENGTH);
+            properties.add(DavPropertyName.GETLASTMODIFIED);
+            properties.add(DavPropertyName.GETCONTENTTYPE);
+            properties.add(ID_PROPERTY);
+            propfind = new PropFindMethod(
+                    client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath),
+                    properties,
+                    DavConstants.DEPTH_0
+            );
+            int status = client.executeMethod(propfind);
+            if (status == HttpStatus.SC_MULTI_STATUS) {
+                MultiStatus multiStatus = propfind.getResponseBodyAsMultiStatus();
+                MultiStatusResponse[] responses = multiStatus.getResponses();
+                if (responses.length > 0) {
+                    DavPropertySet found = responses[0].getProperties(HttpStatus.SC_OK);
+                    DavProperty<?> checksums = found.get(CHECKSUMS_PROPERTY);
+                    if (checksums != null) {
+                        mDigest = ContentDigestUtils.findDigest(textOf(checksums.getValue()));
+                    }
+                    DavProperty<?> length = found.get(DavPropertyName.GETCONTENTLENGTH);
+                    if (length != null && length.getValue() != null) {
+                        try {
+                            mLength = Long.parseLong(textOf(length.getValue()).trim());
+                        } catch (NumberFormatException e) {
+                            Log_OC.w(TAG, "Unexpected length of " + mRemotePath + ": " + length.getValue());
+                        }
+                    }
+                    DavProperty<?> modified = found.get(DavPropertyName.GETLASTMODIFIED);
+                    if (modified != null && modified.getValue() != null) {
+                        Date date = WebdavUtils.parseResponseDate(textOf(modified.getValue()).trim());
+                        if (date != null) {
+                            mModificationTimestamp = date.getTime();
+                        }
+                    }
+                    DavProperty<?> contentType = found.get(DavPropertyName.GETCONTENTTYPE);
+                    if (contentType != null && contentType.getValue() != null) {
+                        mMimeType = textOf(contentType.getValue()).trim();
+                    }
+                    DavProperty<?> id = found.get(ID_PROPERTY);
+                    if (id != null && id.getValue() != null) {
+                        mRemoteId = textOf(id.getValue()).trim();
+                    }
+                }
+                result = new RemoteOperationResult(ResultCode.OK);
+
+            } else {
+                client.exhaustResponse(propfind.getResponseBodyAsStream());
+                result = new RemoteOperationResult(false, status, propfind.getResponseHeaders());
+            }
+            Log_OC.d(TAG, "Read checksum of " + mRemotePath + ": " +
+                    (mDigest != null ? mDigest : "not available"));
+
+        } catch (Exception e) {
+            result = new RemoteOperationResult(e);
+            Log_OC.e(TAG, "Read checksum of " + mRemotePath + ": " + result.getLogMessage(), e);
+
+        } finally {
+            if (propfind != null) {
+                propfind.releaseConnection();
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Flattens the value of a WebDAV property to its text contents; checksums are reported
+     * as plain text or inside nested oc:checksum elements.
+     */
+    private static String textOf(Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof Node) {
+            return ((Node) value).getTextContent();
+        } else if (value instanceof List) {
+            StringBuilder text = new StringBuilder();
+            for (Object item : (List<?>) value) {
+                String itemText = textOf(item);
+                if (itemText != null) {
+                    text.append(itemText).append(' ');
+                }
+            }
+            return text.toString();
+        }
+        return value.toString();
+    }
+
+
+    /**
+     * @return      Digest of the remote contents in the format "ALGORITHM:hex", as defined in
+     *              {@link ContentDigestUtils}, or null if the server didn't report it.
+     */
+    public String getDigest() {
+        return mDigest;
+    }
+
+
+    /**
+     * @return      Length of the remote file in bytes, or -1 if the server didn't report it.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+
+    /**
+     * @return      Modification time of the remote file, in milliseconds, or 0 if the server
+     *              didn't report it.
+     */
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+
+    /**
+     * @return      Content type of the remote file, or null if the server didn't report it.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+
+    /**
+     * @return      Remote id of the file, or null if the server didn't report it.
+     */
+    public String getRemoteId() {
+        return mRemoteId;
+    }
+
+}
@@ -0,0 +1,198 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
+import com.owncloud.android.lib.resources.files.FileUtils;
+import com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation;
+import com.owncloud.android.lib.resources.files.RemoteFile;
+
+import android.content.Context;
+
+/**
+ * Keeps in memory the names of the files in the remote folders where files are being uploaded,
+ * to find free names for new uploads without asking the server about every candidate name.
+ *
+ * When the name requested for an upload is taken, the names in the target folder are read with
+ * a single request and every candidate name is checked against them. Names given to uploads in
+ * progress are reserved until the upload finishes, so that simultaneous uploads to the same
+ * folder don't get the same name.
+ */
+public class RemoteFolderNamesCache {
+
+    private static final String TAG = RemoteFolderNamesCache.class.getSimpleName();
+
+    /** Time, in milliseconds, a listing of a remote folder is considered fresh */
+    public static final long LISTING_TTL = 30 * 1000;
+
+    private static final Map<String, Listing> mListings = new HashMap<String, Listing>();
+
+
+    private static class Listing {
+        Set<String> mNames = null;
+        long mTakenAt = 0;
+        final Set<String> mReserved = new HashSet<String>();
+
+        boolean isFresh() {
+            return (mNames != null && System.currentTimeMillis() - mTakenAt < LISTING_TTL);
+        }
+
+        boolean isTaken(String remotePath) {
+            return mReserved.contains(remotePath) || (mNames != null && mNames.contains(remotePath));
+        }
+    }
+
+
+    /**
+     * Finds a remote path not used in the server nor by other uploads in progress, and reserves
+     * it until {@link #release(String, String, boolean)} is called.
+     *
+     * When remotePath is taken, a suffix " (2)", " (3)", ... is added to the name of the file,
+     * before the extension.
+     *
+     * @param client        Client to the server where the file will be uploaded.
+     * @param accountName   Name of the ownCloud account.
+     * @param remotePath    Remote path requested for the upload.
+     * @param context       Android context.
+     * @return              Free remote path, or null if the contents of the target folder could
+     *                      not be read.
+     */
+    public static String reserveAvailablePath(OwnCloudClient client, String accountName,
+            String remotePath, Context context) {
+        String folderPath = getParentPath(remotePath);
+        Listing listing = getListing(accountName, folderPath);
+        synchronized (listing) {
+            if (!listing.isFresh()) {
+                // usual case: the requested name is free; no need to read the full folder
+                if (!listing.mReserved.contains(remotePath) &&
+                        !existsFile(client, remotePath, context)) {
+                    listing.mReserved.add(remotePath);
+                    return remotePath;
+                }
+                if (!readListing(client, folderPath, listing)) {
+                    return null;
+                }
+            }
+
+            String availablePath = remotePath;
+            if (listing.isTaken(availablePath)) {
+                String fileName = remotePath.substring(folderPath.length());
+                int pos = fileName.lastIndexOf(".");
+                String name = (pos >= 0) ? fileName.substring(0, pos) : fileName;
+                String extension = (pos >= 0) ? fileName.substring(pos) : "";
+                int count = 2;
+                do {
+                    availablePath = folderPath + name + " (" + count + ")" + extension;
+                    count++;
+                } while (listing.isTaken(availablePath));
+            }
+            listing.mReserved.add(availablePath);
+            return availablePath;
+        }
+    }
+
+
+    /**
+     * Frees a remote path reserved with {@link #reserveAvailablePath}, once the upload finished.
+     *
+     * @param accountName   Name of the ownCloud account.
+     * @param remotePath    Remote path of the upload.
+     * @param uploaded      'True' if the file was uploaded, and the path is taken in the server.
+     */
+    public static void release(String accountName, String remotePath, boolean uploaded) {
+        Listing listing = null;
+        synchronized (mListings) {
+            listing = mListings.get(accountName + getParentPath(remotePath));
+        }
+        if (listing == null) {
+            return;
+        }
+        synchronized (listing) {
+            listing.mReserved.remove(remotePath);
+            if (uploaded && listing.mNames != null) {
+                listing.mNames.add(remotePath);
+            }
+            if (listing.mReserved.isEmpty() && !listing.isFresh()) {
+                // nothing else to do with the folder; free the names
+                listing.mNames = null;
+            }
+        }
+    }
+
+
+    private static Listing getListing(String accountName, String folderPath) {
+        String key = accountName + folderPath;
+        synchronized (mListings) {
+            Listing listing = mListings.get(key);
+            if (listing == null) {
+                listing = new Listing();
+                mListings.put(key, listing);
+            }
+            return listing;
+        }
+    }
+
+
+    private static boolean readListing(OwnCloudClient client, String folderPath, Listing listing) {
+        ReadRemoteFolderOperation operation = new ReadRemoteFolderOperation(folderPath);
+        RemoteOperationResult result = operation.execute(client);
+        Set<String> names = new HashSet<String>();
+        if (result.isSuccess()) {
+            ArrayList<Object> folderAndFiles = result.getData();
+            for (int i=1; i<folderAndFiles.size(); i++) {
+                String path = ((RemoteFile) folderAndFiles.get(i)).getRemotePath();
+                if (path.endsWith(FileUtils.PATH_SEPARATOR)) {
+                    path = path.substring(0, path.length() - 1);
+                }
+                names.add(path);
+            }
+        } else if (result.getCode() != ResultCode.FILE_NOT_FOUND) {
+            Log_OC.w(TAG, "Could not read contents of " + folderPath + ": " +
+                    result.getLogMessage());
+            return false;
+        }
+        listing.mNames = names;
+        listing.mTakenAt = System.currentTimeMillis();
+        Log_OC.d(TAG, "Listing of " + folderPath + " read: " + names.size() + " names");
+        return true;
+    }
+
+
+    private static boolean existsFile(OwnCloudClient client, String remotePath, Context context) {
+        ExistenceCheckRemoteOperation existsOperation =
+                new ExistenceCheckRemoteOperation(remotePath, context, false);
+        RemoteOperationResult result = existsOperation.execute(client);
+        return result.isSuccess();
+    }
+
+
+    private static String getParentPath(String remotePath) {
+        return remotePath.substring(0, remotePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
+    }
+
+}
@@ -0,0 +1,256 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.httpclient.methods.PutMethod;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.utils.ContentDigestUtils;
+
+/**
+ * Remote operation uploading a file in chunks, able to continue an interrupted upload.
+ *
+ * The transfer ID naming the chunks in the server and the chunks already received by the
+ * server are saved in a {@link ChunkedUploadState} after every chunk. When the operation is
+ * executed again for the same contents, the saved transfer is continued and only the chunks
+ * not received before are sent. When nothing or only a part of the chunks was sent, the remote
+ * file is checked at the end; if the server does not have it, the saved state is dropped and
+ * the upload is done again from the first chunk.
+ *
+ * The digest of the contents is computed from the chunks sent; chunks received by the server in
+ * a former execution are read from the local file to complete it.
+ */
+public class ResumableChunkedUploadRemoteOperation extends DigestingUploadRemoteOperation {
+
+    private static final String TAG = ResumableChunkedUploadRemoteOperation.class.getSimpleName();
+
+    private static final String OC_CHUNKED_HEADER = "OC-Chunked";
+
+    /**
+     * Callback to know the size and timing of every chunk sent.
+     */
+    public interface OnChunkTransferListener {
+        /**
+         * @param chunkIndex    Index of the chunk in the transfer.
+         * @param length        Length of the chunk in bytes.
+         * @param elapsed       Time spent sending the chunk and receiving the response, in ms.
+         * @param success       'True' if the server received the chunk.
+         */
+        public void onChunkTransfer(int chunkIndex, long length, long elapsed, boolean success);
+    }
+
+    private File mStateFile;
+    private long mChunkSize;
+    private long mSourceLength;
+    private long mSourceModified;
+
+    private OnChunkTransferListener mChunkListener = null;
+
+    private long mSkippedBytes = 0;
+    private boolean mStateRejected = false;
+
+
+    /**
+     * @param localPath         Path to the local file to upload.
+     * @param remotePath        Remote path where the file will be uploaded.
+     * @param mimeType          MIME type of the file.
+     * @param stateFile         Local file where the state of the upload is kept.
+     * @param chunkSize         Size of the chunks, if a new transfer is started; a continued
+     *                          transfer keeps the size of its first execution.
+     * @param sourceLength      Length of the contents to upload, to validate saved states.
+     * @param sourceModified    Modification time of the contents to upload, to validate saved
+     *                          states; when the file in localPath is a temporal copy, the time
+     *                          of the original file must be used.
+     */
+    public ResumableChunkedUploadRemoteOperation(String localPath, String remotePath,
+            String mimeType, File stateFile, long chunkSize, long sourceLength,
+            long sourceModified) {
+        super(localPath, remotePath, mimeType);
+        mStateFile = stateFile;
+        mChunkSize = chunkSize;
+        mSourceLength = sourceLength;
+        mSourceModified = sourceModified;
+    }
+
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = uploadChunks(client);
+        if (!result.isSuccess() && mStateRejected && !mCancellationRequested.get()) {
+            // the saved state was not valid anymore; a new transfer is started
+            mSkippedBytes = 0;
+            mDigest.reset();
+            result = uploadChunks(client);
+        }
+        return result;
+    }
+
+
+    private RemoteOperationResult uploadChunks(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        File file = new File(mLocalPath);
+        long fileLength = file.length();
+        ChunkedUploadState state = null;
+        int chunksCount = 0;
+        int sentChunks = 0;
+        RandomAccessFile raf = null;
+        try {
+            if (fileLength != mSourceLength) {
+                throw new IOException("Length of " + mLocalPath + " changed before upload");
+            }
+            state = ChunkedUploadState.loadOrCreate(mStateFile, mChunkSize, mSourceLength,
+                    mSourceModified);
+            chunksCount = state.getChunksCount();
+            long chunkSize = state.getChunkSize();
+            String uriPrefix = client.getWebdavUri() + WebdavUtils.encodePath(mTargetPath) +
+                    "-chunking-" + state.getTransferId() + "-" + chunksCount + "-";
+
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            int status = -1;
+            for (int chunkIndex = 0; chunkIndex < chunksCount; chunkIndex++) {
+                long offset = chunkIndex * chunkSize;
+                long length = Math.min(chunkSize, fileLength - offset);
+                if (state.isChunkDone(chunkIndex)) {
+                    mSkippedBytes += length;
+                    mDigest.update(file, offset + length);
+                    continue;
+                }
+                PutMethod put = new PutMethod(uriPrefix + chunkIndex);
+                synchronized (mCancellationRequested) {
+                    if (mCancellationRequested.get()) {
+                        throw new OperationCancelledException();
+                    }
+                    mPutMethod = put;
+                }
+                long start = System.currentTimeMillis();
+                boolean chunkDone = false;
+                try {
+                    put.addRequestHeader(OC_CHUNKED_HEADER, OC_CHUNKED_HEADER);
+                    put.setRequestEntity(new FileChunkRequestEntity(channel, mContentType,
+                            offset, length, fileLength, file.getName(), mTransferListeners,
+                            mDigest));
+                    status = client.executeMethod(put);
+                    client.exhaustResponse(put.getResponseBodyAsStream());
+                    chunkDone = isSuccessfulStatus(status);
+                    Log_OC.d(TAG, "Upload of " + mLocalPath + " to " + mTargetPath +
+                            ", chunk index " + chunkIndex + ", count " + chunksCount +
+                            ", size " + length + ", " + (System.currentTimeMillis() - start) +
+                            " ms, HTTP result status " + status);
+                    if (!chunkDone) {
+                        result = new RemoteOperationResult(false, status, put.getResponseHeaders());
+                        break;
+                    }
+                    state.setChunkDone(chunkIndex);
+                    state.save();
+                    sentChunks++;
+
+                } finally {
+                    put.releaseConnection();
+                    if (mChunkListener != null && !mCancellationRequested.get()) {
+                        mChunkListener.onChunkTransfer(chunkIndex, length,
+                                System.currentTimeMillis() - start, chunkDone);
+                    }
+                }
+            }
+            if (result == null && sentChunks < chunksCount &&
+                    !isUploadInServer(client, fileLength)) {
+                // chunks received in former executions were lost, or never assembled
+                Log_OC.w(TAG, "Saved state of upload of " + mLocalPath + " to " + mTargetPath +
+                        " not valid in the server; discarded");
+                state.delete();
+                mStateRejected = true;
+                result = new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
+            }
+            if (result == null) {
+                // all the chunks are in the server; the last response tells the result
+                result = (status < 0) ? new RemoteOperationResult(ResultCode.OK) :
+                        new RemoteOperationResult(true, status, null);
+                state.delete();
+                mUploadedLength = fileLength;
+            }
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + mLocalPath + " (ignoring)", e);
+                }
+            }
+        }
+
+        Log_OC.i(TAG, "Chunked upload of " + mLocalPath + " to " + mTargetPath + ": " +
+                sentChunks + " chunks sent of " + chunksCount + ", " + mSkippedBytes +
+                " bytes not sent again; " + result.getLogMessage());
+        return result;
+    }
+
+
+    /**
+     * Checks that the server has the uploaded file, after an execution that did not send all
+     * the chunks.
+     *
+     * @param client        Client to the server.
+     * @param fileLength    Length of the uploaded file.
+     * @return              'True' if the remote file has the length of the uploaded one and, if
+     *                      both digests are known, the same digest.
+     */
+    private boolean isUploadInServer(OwnCloudClient client, long fileLength) {
+        ReadRemoteChecksumOperation checkOperation = new ReadRemoteChecksumOperation(mTargetPath);
+        RemoteOperationResult checkResult = checkOperation.execute(client);
+        if (!checkResult.isSuccess() || checkOperation.getLength() != fileLength) {
+            return false;
+        }
+        String digest = mDigest.getDigest(fileLength);
+        return (digest == null || checkOperation.getDigest() == null ||
+                ContentDigestUtils.sameContents(digest, checkOperation.getDigest()));
+    }
+
+
+    /**
+     * @return      Number of bytes of the last execution that were not sent because the server
+     *              received them in a former execution.
+     */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+
+    public void setOnChunkTransferListener(OnChunkTransferListener listener) {
+        mChunkListener = listener;
+    }
+
+}
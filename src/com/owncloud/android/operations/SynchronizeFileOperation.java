@@ -21,6 +21,7 @@ package com.owncloud.android.operations;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.files.services.FileUploader;
+import com.owncloud.android.files.services.TransferWorkerPool;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
@@ -28,6 +29,7 @@ import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCo
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
 import com.owncloud.android.operations.common.SyncOperation;
+import com.owncloud.android.utils.ContentDigestUtils;
 import com.owncloud.android.utils.FileStorageUtils;
 
 import android.accounts.Account;
@@ -153,6 +155,36 @@ public class SynchronizeFileOperation extends SyncOperation {
                 boolean localChanged = (mLocalFile.getLocalModificationTimestamp() > mLocalFile.getLastSyncDateForData());
                 // TODO this will be always true after the app is upgraded to database version 2; will result in unnecessary uploads
 
+                /// local timestamps are just a hint; contents are compared before deciding
+                if (localChanged) {
+                    String localDigest = ContentDigestUtils.getLocalDigest(mLocalFile);
+                    String syncedDigest = mLocalFile.getContentDigest();
+                    if (localDigest != null && (syncedDigest == null || serverChanged)) {
+                        String serverDigest = readServerDigest(client);
+                        if (ContentDigestUtils.sameContents(localDigest, serverDigest)) {
+                            // same contents in both sides, whatever the timestamps say
+                            localChanged = false;
+                            serverChanged = false;
+                            syncedDigest = serverDigest;
+                            mLocalFile.setModificationTimestampAtLastSyncForData(
+                                    mServerFile.getModificationTimestamp()
+                            );
+                        }
+                    }
+                    if (localChanged && ContentDigestUtils.sameContents(localDigest, syncedDigest)) {
+                        // local file was touched, but its contents were not modified
+                        localChanged = false;
+                    }
+                    if (!localChanged) {
+                        mLocalFile.setContentDigest(syncedDigest);
+                        mLocalFile.setLastSyncDateForData(mLocalFile.getLocalModificationTimestamp());
+                        Log_OC.d(TAG, "No changes in contents of " + mLocalFile.getStoragePath());
+                    }
+                    if (localDigest != null) {
+                        getStorageManager().updateContentDigests(mLocalFile);
+                    }
+                }
+
                 /// decide action to perform depending upon changes
                 //if (!mLocalFile.getEtag().isEmpty() && localChanged && serverChanged) {
                 if (localChanged && serverChanged) {
@@ -181,6 +213,12 @@ public class SynchronizeFileOperation extends SyncOperation {
                         mServerFile.setLastSyncDateForData(mLocalFile.getLastSyncDateForData());
                         mServerFile.setStoragePath(mLocalFile.getStoragePath());
                         mServerFile.setParentId(mLocalFile.getParentId());
+                        mServerFile.setContentDigest(mLocalFile.getContentDigest());
+                        mServerFile.setLocalDigest(
+                                mLocalFile.getLocalDigest(),
+                                mLocalFile.getLocalDigestLength(),
+                                mLocalFile.getLocalDigestModified()
+                        );
                         getStorageManager().saveFile(mServerFile);
 
                     }
@@ -201,6 +239,19 @@ public class SynchronizeFileOperation extends SyncOperation {
     }
 
     
+    /**
+     * Reads the digest of the contents of the file in the server, where supported.
+     * 
+     * @param client    Client object to communicate with the server.
+     * @return          Digest of the remote contents, or null if not available.
+     */
+    private String readServerDigest(OwnCloudClient client) {
+        ReadRemoteChecksumOperation operation = new ReadRemoteChecksumOperation(mRemotePath);
+        RemoteOperationResult result = operation.execute(client);
+        return (result.isSuccess() ? operation.getDigest() : null);
+    }
+
+
     /**
      * Requests for an upload to the FileUploader service
      * 
@@ -214,6 +265,7 @@ public class SynchronizeFileOperation extends SyncOperation {
         i.putExtra(FileUploader.KEY_LOCAL_FILE, localFile.getStoragePath());*/
         i.putExtra(FileUploader.KEY_UPLOAD_TYPE, FileUploader.UPLOAD_SINGLE_FILE);
         i.putExtra(FileUploader.KEY_FORCE_OVERWRITE, true);
+        i.putExtra(FileUploader.KEY_PRIORITY, TransferWorkerPool.PRIORITY_SYNC);
         mContext.startService(i);
         mTransferWasRequested = true;
     }
@@ -228,6 +280,7 @@ public class SynchronizeFileOperation extends SyncOperation {
         Intent i = new Intent(mContext, FileDownloader.class);
         i.putExtra(FileDownloader.EXTRA_ACCOUNT, mAccount);
         i.putExtra(FileDownloader.EXTRA_FILE, file);
+        i.putExtra(FileDownloader.EXTRA_PRIORITY, TransferWorkerPool.PRIORITY_SYNC);
         mContext.startService(i);
         mTransferWasRequested = true;
     }
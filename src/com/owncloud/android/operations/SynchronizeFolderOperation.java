@@ -18,25 +18,28 @@
 package com.owncloud.android.operations;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.http.HttpStatus;
 import android.accounts.Account;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Process;
 //import android.support.v4.content.LocalBroadcastManager;
 
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.SharesCacheManager;
 
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.resources.shares.OCShare;
@@ -44,13 +47,13 @@ import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.shares.GetRemoteSharesForFileOperation;
 import com.owncloud.android.lib.resources.files.FileUtils;
 import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 
 import com.owncloud.android.syncadapter.FileSyncAdapter;
+import com.owncloud.android.utils.FileStagingUtils;
 import com.owncloud.android.utils.FileStorageUtils;
 
 
@@ -70,6 +73,16 @@ public class SynchronizeFolderOperation extends RemoteOperation {
 
     private static final String TAG = SynchronizeFolderOperation.class.getSimpleName();
 
+    private static final String STAGING_SUFFIX = ".staging";
+
+    /** Single background thread copying foreign local files into the ownCloud folder */
+    private static final ExecutorService sForeignFilesExecutor = 
+            Executors.newSingleThreadExecutor();
+
+    /** Target paths of the copies of foreign local files scheduled and not finished yet */
+    private static final Set<String> sForeignFilesInProgress = 
+            Collections.synchronizedSet(new HashSet<String>());
+
     public static final String EVENT_SINGLE_FOLDER_CONTENTS_SYNCED  = 
             SynchronizeFolderOperation.class.getName() + ".EVENT_SINGLE_FOLDER_CONTENTS_SYNCED";
     public static final String EVENT_SINGLE_FOLDER_SHARES_SYNCED    = 
@@ -336,6 +349,7 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         
         List<OCFile> updatedFiles = new Vector<OCFile>(folderAndFiles.size() - 1);
         List<SynchronizeFileOperation> filesToSyncContents = new Vector<SynchronizeFileOperation>();
+        List<OCFile> foreignFiles = new ArrayList<OCFile>();
 
         // get current data about local contents of the folder to synchronize
         List<OCFile> localFiles = mStorageManager.getFolderContent(mLocalFolder);
@@ -366,6 +380,12 @@ public class SynchronizeFolderOperation extends RemoteOperation {
                         localFile.getModificationTimestampAtLastSyncForData()
                 );
                 remoteFile.setStoragePath(localFile.getStoragePath());
+                remoteFile.setContentDigest(localFile.getContentDigest());
+                remoteFile.setLocalDigest(
+                        localFile.getLocalDigest(),
+                        localFile.getLocalDigestLength(),
+                        localFile.getLocalDigestModified()
+                );
                 // eTag will not be updated unless contents are synchronized 
                 //  (Synchronize[File|Folder]Operation with remoteFile as parameter)
                 remoteFile.setEtag(localFile.getEtag());    
@@ -382,8 +402,9 @@ public class SynchronizeFolderOperation extends RemoteOperation {
             }
 
             /// check and fix, if needed, local storage path
-            checkAndFixForeignStoragePath(remoteFile);      // policy - local files are COPIED 
-                                                            // into the ownCloud local folder;
+            checkAndFixForeignStoragePath(remoteFile, foreignFiles);  // policy - local files are 
+                                                                      // COPIED into the ownCloud 
+                                                                      // local folder;
             searchForLocalFileInDefaultPath(remoteFile);    // legacy   
 
             /// prepare content synchronization for kept-in-sync files
@@ -404,6 +425,9 @@ public class SynchronizeFolderOperation extends RemoteOperation {
         // save updated contents in local database
         mStorageManager.saveFolder(remoteFolder, updatedFiles, localFilesMap.values());
 
+        // copy foreign local files into the ownCloud folder out of the synchronization
+        stageForeignFiles(foreignFiles);
+
         // request for the synchronization of file contents AFTER saving current remote properties
         startContentSynchronizations(filesToSyncContents, client);
 
@@ -469,14 +493,15 @@ public class SynchronizeFolderOperation extends RemoteOperation {
 
     /**
      * Checks the storage path of the OCFile received as parameter. 
-     * If it's out of the local ownCloud folder, tries to copy the file inside it. 
+     * If it's out of the local ownCloud folder, adds it to the list of files to copy inside it. 
+     * 
+     * If there is not space enough for the copy, the link to the local file is nullified. The 
+     * account of forgotten files is kept in {@link #mForgottenLocalFiles}
      * 
-     * If the copy fails, the link to the local file is nullified. The account of forgotten 
-     * files is kept in {@link #mForgottenLocalFiles}
-     *) 
-     * @param file      File to check and fix.
+     * @param file          File to check and fix.
+     * @param foreignFiles  List of files to copy into the local ownCloud folder.
      */
-    private void checkAndFixForeignStoragePath(OCFile file) {
+    private void checkAndFixForeignStoragePath(OCFile file, List<OCFile> foreignFiles) {
         String storagePath = file.getStoragePath();
         String expectedPath = FileStorageUtils.getDefaultSavePathFor(mAccount.name, file);
         if (storagePath != null && !storagePath.equals(expectedPath)) {
@@ -487,74 +512,106 @@ public class SynchronizeFolderOperation extends RemoteOperation {
                 file.setStoragePath(null);
                     
             } else {
-                InputStream in = null;
-                OutputStream out = null;
-                try {
-                    File expectedFile = new File(expectedPath);
-                    File expectedParent = expectedFile.getParentFile();
-                    expectedParent.mkdirs();
-                    if (!expectedParent.isDirectory()) {
-                        throw new IOException(
-                                "Unexpected error: parent directory could not be created"
-                        );
-                    }
-                    expectedFile.createNewFile();
-                    if (!expectedFile.isFile()) {
-                        throw new IOException("Unexpected error: target file could not be created");
-                    }                    
-                    in = new FileInputStream(originalFile);
-                    out = new FileOutputStream(expectedFile);
-                    byte[] buf = new byte[1024];
-                    int len;
-                    while ((len = in.read(buf)) > 0){
-                        out.write(buf, 0, len);
-                    }
-                    file.setStoragePath(expectedPath);
-                    
-                } catch (Exception e) {
-                    Log_OC.e(TAG, "Exception while copying foreign file " + expectedPath, e);
-                    mForgottenLocalFiles.put(file.getRemotePath(), storagePath);
-                    file.setStoragePath(null);
-                    
-                } finally {
-                    try {
-                        if (in != null) in.close();
-                    } catch (Exception e) {
-                        Log_OC.d(TAG, "Weird exception while closing input stream for " 
-                                + storagePath + " (ignoring)", e);
-                    }
-                    try {
-                        if (out != null) out.close();
-                    } catch (Exception e) {
-                        Log_OC.d(TAG, "Weird exception while closing output stream for " 
-                                + expectedPath + " (ignoring)", e);
-                    }
-                }
+                foreignFiles.add(file);
             }
         }
     }
-    
-    
+
+
+    /**
+     * Updates the shares bound to the files and folders in the synchronized folder.
+     *
+     * The share state of the folder is derived from the snapshot of shares in the account kept
+     * in {@link SharesCacheManager}. The snapshot is only refreshed from the server, with a single
+     * request for all the shares in the account, when it is missing or stale.
+     *
+     * @param client        Client instance to the remote server.
+     * @return              Result of the refresh of the snapshot, or OK if it was not needed.
+     */
     private RemoteOperationResult refreshSharesForFolder(OwnCloudClient client) {
         RemoteOperationResult result = null;
-        
-        // remote request 
-        GetRemoteSharesForFileOperation operation = 
-                new GetRemoteSharesForFileOperation(mLocalFolder.getRemotePath(), false, true);
-        result = operation.execute(client);
-        
-        if (result.isSuccess()) {
-            // update local database
-            ArrayList<OCShare> shares = new ArrayList<OCShare>();
-            for(Object obj: result.getData()) {
-                shares.add((OCShare) obj);
-            }
-            mStorageManager.saveSharesInFolder(shares, mLocalFolder);
+
+        List<OCShare> shares = SharesCacheManager.getFreshShares(mAccount.name);
+        if (shares == null) {
+            // remote request; updates the local database for the full account
+            GetSharesOperation operation = new GetSharesOperation();
+            result = operation.execute(client, mStorageManager);
+
+        } else {
+            // update local database from the snapshot, without requests to the server
+            Log_OC.d(TAG, "Shares in " + mAccount.name + mLocalFolder.getRemotePath() +
+                    " taken from cached snapshot");
+            mStorageManager.saveSharesInFolder(
+                    SharesCacheManager.getSharesInFolder(shares, mLocalFolder),
+                    mLocalFolder
+            );
+            result = new RemoteOperationResult(ResultCode.OK);
         }
 
         return result;
     }
-    
+
+
+    /**
+     * Copies into the local ownCloud folder, in a background thread, files stored out of it.
+     * 
+     * Copies are done out of the synchronization; the files keep the link to their foreign 
+     * location until the copy is complete. If a copy fails, the link is kept, and a new copy 
+     * will be tried in the next synchronization.
+     * 
+     * @param foreignFiles  Files to copy, already saved in the database.
+     */
+    private void stageForeignFiles(List<OCFile> foreignFiles) {
+        for (OCFile file : foreignFiles) {
+            final String remotePath = file.getRemotePath();
+            final String foreignPath = file.getStoragePath();
+            final String expectedPath = FileStorageUtils.getDefaultSavePathFor(mAccount.name, file);
+            if (!sForeignFilesInProgress.add(expectedPath)) {
+                continue;   // copy already scheduled by a former synchronization
+            }
+            final Account account = mAccount;
+            final ContentResolver contentResolver = mContext.getContentResolver();
+            sForeignFilesExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stageForeignFile(remotePath, foreignPath, expectedPath, account, 
+                                contentResolver);
+                    } finally {
+                        sForeignFilesInProgress.remove(expectedPath);
+                    }
+                }
+            });
+        }
+    }
+
+
+    private static void stageForeignFile(String remotePath, String foreignPath, 
+            String expectedPath, Account account, ContentResolver contentResolver) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        File stagingFile = new File(expectedPath + STAGING_SUFFIX);
+        try {
+            FileStagingUtils.copyFile(new File(foreignPath), stagingFile);
+            FileStagingUtils.moveFile(stagingFile, new File(expectedPath));
+            
+            OCFile file = new OCFile(remotePath);
+            file.setStoragePath(expectedPath);
+            FileDataStorageManager storageManager = 
+                    new FileDataStorageManager(account, contentResolver);
+            if (storageManager.updateStoragePath(file, foreignPath)) {
+                Log_OC.d(TAG, "Foreign file " + foreignPath + " copied to " + expectedPath);
+            } else {
+                // the file changed or was removed meanwhile; the copy is left in place
+                Log_OC.w(TAG, "Foreign file " + foreignPath + " copied to " + expectedPath + 
+                        ", but not linked to " + remotePath);
+            }
+            
+        } catch (Exception e) {
+            Log_OC.e(TAG, "Exception while copying foreign file " + expectedPath, e);
+            stagingFile.delete();
+        }
+    }
+
 
     /**
      * Scans the default location for saving local copies of files searching for
@@ -20,6 +20,7 @@ package com.owncloud.android.operations;
 import android.content.Context;
 
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.SharesCacheManager;
 
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
@@ -70,6 +71,7 @@ public class UnshareLinkOperation extends SyncOperation {
                 file.setPublicLink("");
                 getStorageManager().saveFile(file);
                 getStorageManager().removeShare(share);
+                SharesCacheManager.invalidate(getStorageManager().getAccount().name);
                 
                 if (result.getCode() == ResultCode.SHARE_NOT_FOUND) {
                     if (existsFile(client, file.getRemotePath())) {
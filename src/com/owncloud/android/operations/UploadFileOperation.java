@@ -18,22 +18,12 @@
 package com.owncloud.android.operations;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.commons.httpclient.methods.PutMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
-
+import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.services.FileUploader;
-import com.owncloud.android.lib.common.network.ProgressiveDataTransferer;
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.OperationCancelledException;
@@ -44,6 +34,9 @@ import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
 import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+import com.owncloud.android.operations.common.ProgressListenerSet;
+import com.owncloud.android.utils.ContentDigestUtils;
+import com.owncloud.android.utils.FileStagingUtils;
 import com.owncloud.android.utils.FileStorageUtils;
 
 import android.accounts.Account;
@@ -59,6 +52,12 @@ public class UploadFileOperation extends RemoteOperation {
 
     private static final String TAG = UploadFileOperation.class.getSimpleName();
 
+    /**
+     * Minimum length of an uploaded file, in bytes, to verify its contents against the checksum
+     * in the server; the request to read it would cost more than the upload of smaller files.
+     */
+    private static final long MIN_VERIFIED_LENGTH = 1024 * 1024;
+
     private Account mAccount;
     private OCFile mFile;
     private OCFile mOldFile;
@@ -71,14 +70,15 @@ public class UploadFileOperation extends RemoteOperation {
     private boolean mWasRenamed = false;
     private String mOriginalFileName = null;
     private String mOriginalStoragePath = null;
-    PutMethod mPutMethod = null;
-    private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
+    private String mReservedRemotePath = null;
+    private long mSavedBytes = 0;
+    private String mContentDigest = null;
+    private ReadRemoteChecksumOperation mServerProperties = null;
+    private ProgressListenerSet mDataTransferListeners = new ProgressListenerSet();
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     private Context mContext;
     
-    private UploadRemoteFileOperation mUploadOperation;
-
-    protected RequestEntity mEntity = null;
+    private volatile UploadRemoteFileOperation mUploadOperation;
 
     
     public UploadFileOperation( Account account,
@@ -163,26 +163,16 @@ public class UploadFileOperation extends RemoteOperation {
         return mWasRenamed;
     }
 
-    public Set<OnDatatransferProgressListener> getDataTransferListeners() {
+    public ProgressListenerSet getDataTransferListeners() {
         return mDataTransferListeners;
     }
     
     public void addDatatransferProgressListener (OnDatatransferProgressListener listener) {
-        synchronized (mDataTransferListeners) {
-            mDataTransferListeners.add(listener);
-        }
-        if (mEntity != null) {
-            ((ProgressiveDataTransferer)mEntity).addDatatransferProgressListener(listener);
-        }
+        mDataTransferListeners.add(listener);
     }
     
     public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
-        synchronized (mDataTransferListeners) {
-            mDataTransferListeners.remove(listener);
-        }
-        if (mEntity != null) {
-            ((ProgressiveDataTransferer)mEntity).removeDatatransferProgressListener(listener);
-        }
+        mDataTransferListeners.remove(listener);
     }
 
     @Override
@@ -191,8 +181,13 @@ public class UploadFileOperation extends RemoteOperation {
         boolean localCopyPassed = false, nameCheckPassed = false;
         File temporalFile = null, originalFile = new File(mOriginalStoragePath), expectedFile = null;
         try {
+            /// the same contents could be in the server already when a picture is uploaded 
+            // again, or a kept-in-sync file is uploaded without changes
+            boolean contentInServer = 
+                    (mIsInstant || mForceOverwrite) && isContentInServer(client, originalFile);
+
             // / rename the file to upload, if necessary
-            if (!mForceOverwrite) {
+            if (!mForceOverwrite && !contentInServer) {
                 String remotePath = getAvailableRemotePath(client, mRemotePath);
                 mWasRenamed = !remotePath.equals(mRemotePath);
                 if (mWasRenamed) {
@@ -226,73 +221,105 @@ public class UploadFileOperation extends RemoteOperation {
                                                                       // but
                                                                       // possible
                                                                       // situation
-                        InputStream in = null;
-                        OutputStream out = null;
                         try {
-                            File temporalParent = temporalFile.getParentFile();
-                            temporalParent.mkdirs();
-                            if (!temporalParent.isDirectory()) {
-                                throw new IOException("Unexpected error: parent directory could not be created");
-                            }
-                            temporalFile.createNewFile();
-                            if (!temporalFile.isFile()) {
-                                throw new IOException("Unexpected error: target file could not be created");
-                            }
-                            in = new FileInputStream(originalFile);
-                            out = new FileOutputStream(temporalFile);
-                            byte[] buf = new byte[1024];
-                            int len;
-                            while ((len = in.read(buf)) > 0) {
-                                out.write(buf, 0, len);
-                            }
+                            FileStagingUtils.copyFile(originalFile, temporalFile);
 
                         } catch (Exception e) {
                             result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_COPIED);
                             return result;
-
-                        } finally {
-                            try {
-                                if (in != null)
-                                    in.close();
-                            } catch (Exception e) {
-                                Log_OC.d(TAG, "Weird exception while closing input stream for " + mOriginalStoragePath + " (ignoring)", e);
-                            }
-                            try {
-                                if (out != null)
-                                    out.close();
-                            } catch (Exception e) {
-                                Log_OC.d(TAG, "Weird exception while closing output stream for " + expectedPath + " (ignoring)", e);
-                            }
                         }
                     }
                 }
             }
             localCopyPassed = true;
 
-            /// perform the upload
-            if ( mChunked && (new File(mFile.getStoragePath())).length() > ChunkedUploadRemoteFileOperation.CHUNK_SIZE ) {
-                mUploadOperation = new ChunkedUploadRemoteFileOperation(mFile.getStoragePath(), mFile.getRemotePath(), 
-                        mFile.getMimetype());
+            // the source is uploaded directly and copied later; remember its state to detect 
+            // changes meanwhile
+            boolean copyAfterUpload = 
+                    (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY_AFTER_UPLOAD && 
+                    !mOriginalStoragePath.equals(expectedPath));
+            long sourceLength = originalFile.length();
+            long sourceModified = originalFile.lastModified();
+
+            /// perform the upload, unless the contents are already in the server
+            if (contentInServer) {
+                mSavedBytes = sourceLength;
+                result = new RemoteOperationResult(ResultCode.OK);
+                Log_OC.i(TAG, "Contents of " + mOriginalStoragePath + " already in " + 
+                        mRemotePath + "; " + mSavedBytes + " bytes not uploaded");
             } else {
-                mUploadOperation = new UploadRemoteFileOperation(mFile.getStoragePath(), mFile.getRemotePath(), 
-                        mFile.getMimetype());
+                DigestingUploadRemoteOperation uploadOperation = null;
+                synchronized (mCancellationRequested) {
+                    // the upload could be cancelled while waiting for a free worker in FileUploader
+                    if (mCancellationRequested.get()) {
+                        throw new OperationCancelledException();
+                    }
+                    if ( mChunked && (new File(mFile.getStoragePath())).length() > ChunkedUploadRemoteFileOperation.CHUNK_SIZE ) {
+                        // the state of the upload is bound to the original file; a temporal copy is
+                        // created again in every attempt
+                        File stateFile = new File(FileStorageUtils.getTemporalPath(mAccount.name) + 
+                                mFile.getRemotePath() + ChunkedUploadState.STATE_FILE_SUFFIX);
+                        final String networkKey = ChunkSizePolicy.getNetworkKey(mContext);
+                        ResumableChunkedUploadRemoteOperation chunkedOperation = 
+                                new ResumableChunkedUploadRemoteOperation(mFile.getStoragePath(), 
+                                        mFile.getRemotePath(), mFile.getMimetype(), stateFile, 
+                                        ChunkSizePolicy.chooseChunkSize(networkKey), originalFile.length(), 
+                                        originalFile.lastModified());
+                        chunkedOperation.setOnChunkTransferListener(
+                                new ResumableChunkedUploadRemoteOperation.OnChunkTransferListener() {
+                                    @Override
+                                    public void onChunkTransfer(int chunkIndex, long length, long elapsed, 
+                                            boolean success) {
+                                        ChunkSizePolicy.recordChunk(networkKey, length, elapsed, success);
+                                    }
+                                });
+                        uploadOperation = chunkedOperation;
+                    } else {
+                        uploadOperation = new DigestingUploadRemoteOperation(mFile.getStoragePath(), 
+                                mFile.getRemotePath(), mFile.getMimetype());
+                    }
+                    mUploadOperation = uploadOperation;
+                }
+                // listeners added later are reached through the set
+                uploadOperation.addDatatransferProgressListener(mDataTransferListeners);
+                File uploadedFile = new File(mFile.getStoragePath());
+                long uploadedLength = uploadedFile.length();
+                long uploadedModified = uploadedFile.lastModified();
+                result = uploadOperation.execute(client);
+
+                if (result.isSuccess() && uploadedFile.length() == uploadedLength && 
+                        uploadedFile.lastModified() == uploadedModified) {
+                    // else the local file changed during the upload; the digest is not its own
+                    mContentDigest = uploadOperation.getContentDigest();
+                    if (mContentDigest != null && uploadedLength >= MIN_VERIFIED_LENGTH && 
+                            !isContentVerified(client)) {
+                        mContentDigest = null;
+                        throw new IOException("Contents of " + mFile.getRemotePath() + 
+                                " in the server do not match the uploaded ones");
+                    }
+                }
             }
-            Iterator <OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
-            while (listener.hasNext()) {
-                mUploadOperation.addDatatransferProgressListener(listener.next());
+
+            if (result.isSuccess() && copyAfterUpload) {
+                if (originalFile.length() != sourceLength || 
+                        originalFile.lastModified() != sourceModified) {
+                    throw new IOException(mOriginalStoragePath + " changed during the upload");
+                }
+                temporalFile = stageCopyAfterUpload(originalFile, sourceLength, sourceModified);
             }
-            result = mUploadOperation.execute(client);
 
             /// move local temporal file or original file to its corresponding
             // location in the ownCloud local folder
             if (result.isSuccess()) {
-                if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_FORGET) {
+                if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_FORGET || 
+                        (copyAfterUpload && temporalFile == null)) {
                     mFile.setStoragePath(null);
 
                 } else {
                     mFile.setStoragePath(expectedPath);
                     File fileToMove = null;
                     if (temporalFile != null) { // FileUploader.LOCAL_BEHAVIOUR_COPY
+                                                // or LOCAL_BEHAVIOUR_COPY_AFTER_UPLOAD
                                                 // ; see where temporalFile was
                                                 // set
                         fileToMove = temporalFile;
@@ -300,9 +327,11 @@ public class UploadFileOperation extends RemoteOperation {
                         fileToMove = originalFile;
                     }
                     if (!expectedFile.equals(fileToMove)) {
-                        File expectedFolder = expectedFile.getParentFile();
-                        expectedFolder.mkdirs();
-                        if (!expectedFolder.isDirectory() || !fileToMove.renameTo(expectedFile)) {
+                        try {
+                            FileStagingUtils.moveFile(fileToMove, expectedFile);
+                        } catch (IOException e) {
+                            Log_OC.w(TAG, "Could not move " + fileToMove + " to " + expectedFile + 
+                                    ": " + e.getMessage());
                             mFile.setStoragePath(null); // forget the local file
                             // by now, treat this as a success; the file was
                             // uploaded; the user won't like that the local file
@@ -330,6 +359,11 @@ public class UploadFileOperation extends RemoteOperation {
             if (temporalFile != null && !originalFile.equals(temporalFile)) {
                 temporalFile.delete();
             }
+            if (mReservedRemotePath != null) {
+                RemoteFolderNamesCache.release(mAccount.name, mReservedRemotePath, 
+                        result != null && result.isSuccess());
+                mReservedRemotePath = null;
+            }
             if (result.isSuccess()) {
                 Log_OC.i(TAG, "Upload of " + mOriginalStoragePath + " to " + mRemotePath + ": " + result.getLogMessage());
             } else {
@@ -351,6 +385,153 @@ public class UploadFileOperation extends RemoteOperation {
         return result;
     }
 
+    /**
+     * Checks if the server already has the contents of the file to upload in the target path.
+     * 
+     * Only files known in the local database in the target path, with the length of the source
+     * and a digest from their last synchronization, are checked in the server; for the rest, as
+     * new pictures, the request would be wasted.
+     * 
+     * The server checksums are used when available. Otherwise, the contents are the same if the
+     * file in the target path was synchronized with the same digest, and the server copy didn't
+     * change since then. The source file is only read when the remote file has its same length,
+     * and its digest is cached in mFile for later uses.
+     * 
+     * @param client        Client to the server.
+     * @param originalFile  Source file of the upload.
+     * @return              'True' if the upload is not needed.
+     */
+    private boolean isContentInServer(OwnCloudClient client, File originalFile) {
+        FileDataStorageManager storageManager = 
+                new FileDataStorageManager(mAccount, mContext.getContentResolver());
+        OCFile knownFile = storageManager.getFileByPath(mRemotePath);
+        if (knownFile == null || knownFile.getContentDigest() == null || 
+                knownFile.getFileLength() != originalFile.length()) {
+            return false;   // not known in the server with the same contents
+        }
+        ReadRemoteChecksumOperation checkOperation = new ReadRemoteChecksumOperation(mRemotePath);
+        RemoteOperationResult checkResult = checkOperation.execute(client);
+        if (!checkResult.isSuccess() || checkOperation.getLength() != originalFile.length()) {
+            return false;   // not in the server, or certainly different
+        }
+        String remoteDigest = checkOperation.getDigest();
+        if (remoteDigest == null && 
+                knownFile.getModificationTimestampAtLastSyncForData() == 
+                checkOperation.getModificationTimestamp()) {
+            // no checksums in the server; trust the digest of the last synchronization
+            remoteDigest = knownFile.getContentDigest();
+        }
+        if (remoteDigest == null) {
+            return false;
+        }
+        String localDigest = ContentDigestUtils.getLocalDigest(mFile);
+        return ContentDigestUtils.sameContents(localDigest, remoteDigest);
+    }
+
+
+    /**
+     * Checks the digest of the contents sent against the checksum in the server, if the server
+     * has one.
+     *
+     * @param client        Client to the server.
+     * @return              'False' if the server has a checksum different to the uploaded
+     *                      contents.
+     */
+    private boolean isContentVerified(OwnCloudClient client) {
+        ReadRemoteChecksumOperation checkOperation = 
+                new ReadRemoteChecksumOperation(mFile.getRemotePath());
+        RemoteOperationResult checkResult = checkOperation.execute(client);
+        if (!checkResult.isSuccess()) {
+            return true;    // nothing to compare with
+        }
+        // kept to save the properties of the uploaded file without reading them again
+        mServerProperties = checkOperation;
+        if (checkOperation.getDigest() == null) {
+            return true;
+        }
+        return ContentDigestUtils.sameContents(mContentDigest, checkOperation.getDigest());
+    }
+
+
+    /**
+     * Copies to a file the properties assigned by the server to the uploaded contents, when they
+     * were read to verify them.
+     *
+     * @param file      File to update.
+     * @return          'True' if the properties were copied; 'false' if they are unknown, and
+     *                  must be read from the server.
+     */
+    public boolean copyServerProperties(OCFile file) {
+        ReadRemoteChecksumOperation properties = mServerProperties;
+        if (properties == null || properties.getRemoteId() == null ||
+                properties.getModificationTimestamp() == 0) {
+            return false;
+        }
+        if (properties.getLength() >= 0) {
+            file.setFileLength(properties.getLength());
+        }
+        if (properties.getMimeType() != null) {
+            file.setMimetype(properties.getMimeType());
+        }
+        file.setModificationTimestamp(properties.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(properties.getModificationTimestamp());
+        file.setRemoteId(properties.getRemoteId());
+        return true;
+    }
+
+
+    /**
+     * @return      Digest of the uploaded contents, computed while they were sent, or null if
+     *              unknown or not uploaded.
+     */
+    public String getContentDigest() {
+        return mContentDigest;
+    }
+
+
+    /**
+     * @return      Bytes not sent because the server already had the contents to upload.
+     */
+    public long getSavedBytes() {
+        return mSavedBytes;
+    }
+
+
+    /**
+     * Copies the source file of an upload to the temporal folder, once uploaded, checking that 
+     * the contents of the copy are the ones uploaded.
+     * 
+     * @param originalFile      Source file of the upload.
+     * @param sourceLength      Length of the source file when the upload started.
+     * @param sourceModified    Modification time of the source file when the upload started.
+     * @return                  Copy of the source file, or null if the copy was not possible or
+     *                          the source changed.
+     */
+    private File stageCopyAfterUpload(File originalFile, long sourceLength, long sourceModified) {
+        if (FileStorageUtils.getUsableSpace(mAccount.name) < sourceLength) {
+            Log_OC.w(TAG, "No space to copy " + mOriginalStoragePath + " after upload");
+            return null;
+        }
+        File temporalFile = new File(FileStorageUtils.getTemporalPath(mAccount.name) + 
+                mFile.getRemotePath());
+        try {
+            FileStagingUtils.copyFile(originalFile, temporalFile);
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not copy " + mOriginalStoragePath + " after upload: " + 
+                    e.getMessage());
+            temporalFile.delete();
+            return null;
+        }
+        if (temporalFile.length() != sourceLength || originalFile.length() != sourceLength ||
+                originalFile.lastModified() != sourceModified) {
+            Log_OC.w(TAG, mOriginalStoragePath + " changed while copied after upload; " +
+                    "the copy is discarded");
+            temporalFile.delete();
+            return null;
+        }
+        return temporalFile;
+    }
+
     private void createNewOCFile(String newRemotePath) {
         // a new OCFile instance must be created for a new remote path
         OCFile newFile = new OCFile(newRemotePath);
@@ -373,10 +554,20 @@ public class UploadFileOperation extends RemoteOperation {
      * Checks if remotePath does not exist in the server and returns it, or adds
      * a suffix to it in order to avoid the server file is overwritten.
      * 
+     * The returned path is reserved in {@link RemoteFolderNamesCache} until the upload finishes.
+     * 
      * @param string
      * @return
      */
     private String getAvailableRemotePath(OwnCloudClient wc, String remotePath) throws Exception {
+        String availablePath = 
+                RemoteFolderNamesCache.reserveAvailablePath(wc, mAccount.name, remotePath, mContext);
+        if (availablePath != null) {
+            mReservedRemotePath = availablePath;
+            return availablePath;
+        }
+        
+        // contents of the target folder not available; check names one by one
         boolean check = existsFile(wc, remotePath);
         if (!check) {
             return remotePath;
@@ -415,7 +606,12 @@ public class UploadFileOperation extends RemoteOperation {
     }
     
     public void cancel() {
-        mUploadOperation.cancel();
+        synchronized (mCancellationRequested) {
+            mCancellationRequested.set(true);
+            if (mUploadOperation != null) {
+                mUploadOperation.cancel();
+            }
+        }
     }
 
 }
@@ -0,0 +1,91 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations.common;
+
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+
+/**
+ * Set of progress listeners that is itself a progress listener, forwarding every callback to
+ * all its members.
+ *
+ * Listeners are kept in an array replaced on every change, so that the transferring thread
+ * reads the current members without locks and without allocating anything per callback.
+ * Changes are expected to be much less frequent than callbacks.
+ *
+ * Listeners added while a transfer is in progress receive its next callbacks.
+ */
+public class ProgressListenerSet implements OnDatatransferProgressListener {
+
+    private static final OnDatatransferProgressListener[] EMPTY =
+            new OnDatatransferProgressListener[0];
+
+    private volatile OnDatatransferProgressListener[] mListeners = EMPTY;
+
+
+    /**
+     * @param listener      Listener to add; nothing is done if already in the set.
+     */
+    public synchronized void add(OnDatatransferProgressListener listener) {
+        OnDatatransferProgressListener[] current = mListeners;
+        for (OnDatatransferProgressListener member : current) {
+            if (member == listener) {
+                return;
+            }
+        }
+        OnDatatransferProgressListener[] updated =
+                new OnDatatransferProgressListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        mListeners = updated;
+    }
+
+
+    /**
+     * @param listener      Listener to remove; nothing is done if not in the set.
+     */
+    public synchronized void remove(OnDatatransferProgressListener listener) {
+        OnDatatransferProgressListener[] current = mListeners;
+        for (int i=0; i<current.length; i++) {
+            if (current[i] == listener) {
+                OnDatatransferProgressListener[] updated =
+                        new OnDatatransferProgressListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                mListeners = (updated.length > 0) ? updated : EMPTY;
+                return;
+            }
+        }
+    }
+
+
+    public boolean isEmpty() {
+        return mListeners.length == 0;
+    }
+
+
+    @Override
+    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+            long totalToTransfer, String fileName) {
+        OnDatatransferProgressListener[] listeners = mListeners;
+        for (int i=0; i<listeners.length; i++) {
+            listeners[i].onTransferProgress(
+                    progressRate, totalTransferredSoFar, totalToTransfer, fileName);
+        }
+    }
+
+}
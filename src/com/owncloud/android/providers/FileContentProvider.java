@@ -98,6 +98,16 @@ public class FileContentProvider extends ContentProvider {
                 ProviderTableMeta.FILE_REMOTE_ID);
         mFileProjectionMap.put(ProviderTableMeta.FILE_UPDATE_THUMBNAIL,
                 ProviderTableMeta.FILE_UPDATE_THUMBNAIL);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_CONTENT_DIGEST,
+                ProviderTableMeta.FILE_CONTENT_DIGEST);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_LOCAL_DIGEST,
+                ProviderTableMeta.FILE_LOCAL_DIGEST);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_LOCAL_DIGEST_LENGTH,
+                ProviderTableMeta.FILE_LOCAL_DIGEST_LENGTH);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_LOCAL_DIGEST_MODIFIED,
+                ProviderTableMeta.FILE_LOCAL_DIGEST_MODIFIED);
+        mFileProjectionMap.put(ProviderTableMeta.FILE_LAST_ACCESS,
+                ProviderTableMeta.FILE_LAST_ACCESS);
     }
 
     private static final int SINGLE_FILE = 1;
@@ -625,7 +635,16 @@ public class FileContentProvider extends ContentProvider {
                     + ProviderTableMeta.FILE_PUBLIC_LINK  + " TEXT, "
                     + ProviderTableMeta.FILE_PERMISSIONS  + " TEXT null,"
                     + ProviderTableMeta.FILE_REMOTE_ID  + " TEXT null,"
-                    + ProviderTableMeta.FILE_UPDATE_THUMBNAIL  + " INTEGER);" //boolean
+                    + ProviderTableMeta.FILE_UPDATE_THUMBNAIL  + " INTEGER," //boolean
+                    + ProviderTableMeta.FILE_CONTENT_DIGEST + " TEXT null,"
+                    + ProviderTableMeta.FILE_LOCAL_DIGEST + " TEXT null,"
+                    + ProviderTableMeta.FILE_LOCAL_DIGEST_LENGTH + " INTEGER,"
+                    + ProviderTableMeta.FILE_LOCAL_DIGEST_MODIFIED + " INTEGER,"
+                    + ProviderTableMeta.FILE_LAST_ACCESS + " INTEGER DEFAULT 0);"
+                    );
+            db.execSQL("CREATE INDEX " + ProviderTableMeta.FILE_LAST_ACCESS + "_index ON "
+                    + ProviderTableMeta.FILE_TABLE_NAME + "("
+                    + ProviderTableMeta.FILE_LAST_ACCESS + ");"
                     );
             
             // Create table ocshares
@@ -798,6 +817,64 @@ public class FileContentProvider extends ContentProvider {
             if (!upgraded)
                 Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + 
                         ", newVersion == " + newVersion);
+
+            if (oldVersion < 9 && newVersion >= 9) {
+                Log_OC.i("SQL", "Entering in the #9 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    db .execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_CONTENT_DIGEST + " TEXT " +
+                            " DEFAULT NULL");
+
+                    db .execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_LOCAL_DIGEST + " TEXT " +
+                            " DEFAULT NULL");
+
+                    db .execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_LOCAL_DIGEST_LENGTH + " INTEGER " +
+                            " DEFAULT 0");
+
+                    db .execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_LOCAL_DIGEST_MODIFIED + " INTEGER " +
+                            " DEFAULT 0");
+
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + 
+                        ", newVersion == " + newVersion);
+
+            if (oldVersion < 10 && newVersion >= 10) {
+                Log_OC.i("SQL", "Entering in the #10 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    db .execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_LAST_ACCESS + " INTEGER " +
+                            " DEFAULT 0");
+
+                    // files downloaded before were last used, at least, when downloaded
+                    db .execSQL("UPDATE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " SET " + ProviderTableMeta.FILE_LAST_ACCESS + " = " +
+                            ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA +
+                            " WHERE " + ProviderTableMeta.FILE_STORAGE_PATH + " IS NOT NULL");
+
+                    db .execSQL("CREATE INDEX " + ProviderTableMeta.FILE_LAST_ACCESS + "_index ON " +
+                            ProviderTableMeta.FILE_TABLE_NAME + "(" +
+                            ProviderTableMeta.FILE_LAST_ACCESS + ")");
+
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion + 
+                        ", newVersion == " + newVersion);
         }
     }
 
@@ -28,7 +28,6 @@ import com.owncloud.android.R;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
-import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
 import com.owncloud.android.lib.common.OwnCloudCredentials;
 import com.owncloud.android.lib.common.OwnCloudCredentialsFactory;
 import com.owncloud.android.lib.common.accounts.AccountUtils.AccountNotFoundException;
@@ -177,7 +176,7 @@ public class OperationsService extends Service {
         //Log_OC.wtf(TAG, "onDestroy init" );
         // Saving cookies
         try {
-            OwnCloudClientManagerFactory.getDefaultSingleton().
+            OwnCloudClientPool.getInstance().
                 saveAllClients(this, MainApp.getAccountType());
             
             // TODO - get rid of these exceptions
@@ -471,7 +470,7 @@ public class OperationsService extends Service {
                     mLastTarget = next.first;
                     if (mLastTarget.mAccount != null) {
                         OwnCloudAccount ocAccount = new OwnCloudAccount(mLastTarget.mAccount, this);
-                        mOwnCloudClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                        mOwnCloudClient = OwnCloudClientPool.getInstance().
                                 getClientFor(ocAccount, this);
                         mStorageManager = 
                                 new FileDataStorageManager(
@@ -497,7 +496,7 @@ public class OperationsService extends Service {
                         }
                         OwnCloudAccount ocAccount = new OwnCloudAccount(
                                 mLastTarget.mServerUrl, credentials);
-                        mOwnCloudClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                        mOwnCloudClient = OwnCloudClientPool.getInstance().
                                 getClientFor(ocAccount, this);
                         mStorageManager = null;
                     }
@@ -0,0 +1,335 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.services;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import android.accounts.Account;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.content.Context;
+
+import com.owncloud.android.lib.common.OwnCloudAccount;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.OwnCloudCredentials;
+import com.owncloud.android.lib.common.accounts.AccountUtils;
+import com.owncloud.android.lib.common.accounts.AccountUtils.AccountNotFoundException;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+/**
+ * Shares a single client object per ownCloud account among all the services of the app.
+ *
+ * Every account gets its own connection manager, so that keep-alive connections, and the TLS
+ * sessions on them, are reused by the operations, transfers and synchronizations of the
+ * account, whatever the service running them. Connections per account are limited to
+ * {@link #MAX_CONNECTIONS_PER_ACCOUNT}; connections idle for more than
+ * {@link #IDLE_CONNECTION_TIMEOUT} milliseconds are closed.
+ *
+ * Shared clients are never modified: when a client is requested with credentials or a server
+ * URI different to the current ones, a new client is created on the same connections and
+ * replaces the former one, so that requests in progress keep the state they started with.
+ * Session cookies are carried to the new client, or restored from the account when the first
+ * client of the account is created.
+ *
+ * Clients for targets without an account, like a server being checked before creating the
+ * account, are not shared.
+ *
+ * Every connection handed out is accounted as reused or new, to know how many connection and
+ * TLS handshakes are saved.
+ */
+public class OwnCloudClientPool {
+
+    private static final String TAG = OwnCloudClientPool.class.getSimpleName();
+
+    /** Maximum number of simultaneous connections to the server of an account */
+    public static final int MAX_CONNECTIONS_PER_ACCOUNT = 10;
+
+    /** Time, in milliseconds, after which an idle connection is closed */
+    public static final long IDLE_CONNECTION_TIMEOUT = 30 * 1000;
+
+    /** Period, in milliseconds, of the check for idle connections */
+    private static final long IDLE_CHECK_INTERVAL = 10 * 1000;
+
+    /** Number of connections handed out between logs of the metrics */
+    private static final long METRICS_LOG_INTERVAL = 100;
+
+    private static OwnCloudClientPool sInstance = null;
+
+
+    /**
+     * Connection manager counting the connections reused from the pool and the new ones.
+     */
+    private static class MeteredConnectionManager extends MultiThreadedHttpConnectionManager {
+
+        private final AtomicLong mReused = new AtomicLong();
+        private final AtomicLong mOpened = new AtomicLong();
+        private final AtomicLong mTlsReused = new AtomicLong();
+        private final AtomicLong mTlsOpened = new AtomicLong();
+
+        MeteredConnectionManager() {
+            getParams().setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_ACCOUNT);
+            getParams().setMaxTotalConnections(MAX_CONNECTIONS_PER_ACCOUNT);
+        }
+
+        @Override
+        public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration,
+                long timeout) throws ConnectionPoolTimeoutException {
+            HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+            boolean secure = hostConfiguration.getProtocol() != null &&
+                    hostConfiguration.getProtocol().isSecure();
+            if (connection.isOpen()) {
+                mReused.incrementAndGet();
+                if (secure) {
+                    mTlsReused.incrementAndGet();
+                }
+            } else {
+                mOpened.incrementAndGet();
+                if (secure) {
+                    mTlsOpened.incrementAndGet();
+                }
+            }
+            return connection;
+        }
+    }
+
+
+    private final Map<String, OwnCloudClient> mClients = new HashMap<String, OwnCloudClient>();
+    private final Map<String, MeteredConnectionManager> mConnectionManagers =
+            new HashMap<String, MeteredConnectionManager>();
+    private final IdleConnectionTimeoutThread mIdleConnectionsCloser;
+    private final AtomicLong mHandedOut = new AtomicLong();
+
+
+    public static synchronized OwnCloudClientPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new OwnCloudClientPool();
+        }
+        return sInstance;
+    }
+
+
+    private OwnCloudClientPool() {
+        mIdleConnectionsCloser = new IdleConnectionTimeoutThread();
+        mIdleConnectionsCloser.setName("IdleConnectionsCloser");
+        mIdleConnectionsCloser.setTimeoutInterval(IDLE_CHECK_INTERVAL);
+        mIdleConnectionsCloser.setConnectionTimeout(IDLE_CONNECTION_TIMEOUT);
+        mIdleConnectionsCloser.start();
+    }
+
+
+    /**
+     * Returns the client object to access the server of an account.
+     *
+     * @param account       ownCloud account, or server and credentials without account.
+     * @param context       Android context.
+     * @return              Client shared by all the users of the account.
+     */
+    public OwnCloudClient getClientFor(OwnCloudAccount account, Context context)
+            throws AccountNotFoundException, OperationCanceledException, AuthenticatorException,
+            IOException {
+
+        String accountName = account.getName();
+        if (accountName == null) {
+            // anonymous target; not shared, it could be modified by its user
+            OwnCloudClient client = OwnCloudClientFactory.createOwnCloudClient(
+                    account.getBaseUri(), context.getApplicationContext(), true);
+            client.setCredentials(account.getCredentials());
+            return client;
+        }
+
+        synchronized (this) {
+            OwnCloudClient client = mClients.get(accountName);
+            if (client == null) {
+                client = createSharedClient(account, context, null);
+                Log_OC.d(TAG, "New shared client for " + accountName);
+
+            } else if (!sameCredentials(client.getCredentials(), account.getCredentials()) ||
+                    !account.getBaseUri().equals(client.getBaseUri())) {
+                // the former client may be in use; it is replaced, not modified
+                client = createSharedClient(account, context, client);
+                Log_OC.d(TAG, "Replaced shared client for " + accountName +
+                        " with new credentials or server");
+            }
+            if (mHandedOut.incrementAndGet() % METRICS_LOG_INTERVAL == 0) {
+                logMetrics();
+            }
+            return client;
+        }
+    }
+
+
+    /**
+     * Creates a client for an account on the connections of the account, and shares it.
+     *
+     * The new client continues the session of the client it replaces, or else the session
+     * saved in the account by {@link #saveAllClients(Context, String)}, so that accounts
+     * authenticated with session cookies, like SAML SSO, don't need to log in again.
+     *
+     * @param account       ownCloud account.
+     * @param context       Android context.
+     * @param former        Shared client replaced by the new one, or null if none.
+     */
+    private OwnCloudClient createSharedClient(OwnCloudAccount account, Context context,
+            OwnCloudClient former) throws AccountNotFoundException, AuthenticatorException,
+            OperationCanceledException, IOException {
+        String accountName = account.getName();
+        OwnCloudClient client = OwnCloudClientFactory.createOwnCloudClient(
+                account.getBaseUri(), context.getApplicationContext(), true);
+        MeteredConnectionManager connectionManager = mConnectionManagers.get(accountName);
+        if (connectionManager == null) {
+            connectionManager = new MeteredConnectionManager();
+            mConnectionManagers.put(accountName, connectionManager);
+            mIdleConnectionsCloser.addConnectionManager(connectionManager);
+        }
+        client.setHttpConnectionManager(connectionManager);
+        if (former != null) {
+            client.getState().addCookies(former.getState().getCookies());
+        } else if (account.getSavedAccount() != null) {
+            AccountUtils.restoreCookies(account.getSavedAccount(), client, context);
+        }
+        client.setCredentials(account.getCredentials());
+        mClients.put(accountName, client);
+        return client;
+    }
+
+
+    /**
+     * Stops sharing the client of an account; the next request for it gets a new client with
+     * the current credentials of the account, on the same connections.
+     *
+     * @param account       ownCloud account.
+     * @return              Client removed, or null if there was none.
+     */
+    public synchronized OwnCloudClient removeClientFor(OwnCloudAccount account)
+            throws AccountNotFoundException, OperationCanceledException, AuthenticatorException,
+            IOException {
+        String accountName = account.getName();
+        if (accountName == null) {
+            return null;
+        }
+        return mClients.remove(accountName);
+    }
+
+
+    /**
+     * Saves the session of every shared client in its account, to be restored in the future.
+     *
+     * @param context       Android context.
+     * @param accountType   Type of the ownCloud accounts.
+     */
+    public synchronized void saveAllClients(Context context, String accountType)
+            throws AccountNotFoundException, OperationCanceledException, AuthenticatorException,
+            IOException {
+        for (Map.Entry<String, OwnCloudClient> entry : mClients.entrySet()) {
+            AccountUtils.saveClient(
+                    entry.getValue(), new Account(entry.getKey(), accountType), context);
+        }
+    }
+
+
+    /**
+     * Closes the connections of an account currently not in use, so that the next requests
+     * open new ones; for instance, after a network change.
+     *
+     * @param accountName   Name of the ownCloud account.
+     */
+    public synchronized void closeIdleConnections(String accountName) {
+        MeteredConnectionManager connectionManager = mConnectionManagers.get(accountName);
+        if (connectionManager != null) {
+            connectionManager.closeIdleConnections(0);
+        }
+    }
+
+
+    /**
+     * @return      Connections handed out, for all the accounts, that were reused from
+     *              previous requests.
+     */
+    public synchronized long getReusedConnectionsCount() {
+        long reused = 0;
+        for (MeteredConnectionManager connectionManager : mConnectionManagers.values()) {
+            reused += connectionManager.mReused.get();
+        }
+        return reused;
+    }
+
+
+    /**
+     * @return      Connections opened, for all the accounts.
+     */
+    public synchronized long getOpenedConnectionsCount() {
+        long opened = 0;
+        for (MeteredConnectionManager connectionManager : mConnectionManagers.values()) {
+            opened += connectionManager.mOpened.get();
+        }
+        return opened;
+    }
+
+
+    /**
+     * @return      TLS handshakes avoided by reusing secure connections, for all the accounts.
+     */
+    public synchronized long getAvoidedHandshakesCount() {
+        long avoided = 0;
+        for (MeteredConnectionManager connectionManager : mConnectionManagers.values()) {
+            avoided += connectionManager.mTlsReused.get();
+        }
+        return avoided;
+    }
+
+
+    private void logMetrics() {
+        for (Map.Entry<String, MeteredConnectionManager> entry : mConnectionManagers.entrySet()) {
+            MeteredConnectionManager connectionManager = entry.getValue();
+            long reused = connectionManager.mReused.get();
+            long opened = connectionManager.mOpened.get();
+            long total = reused + opened;
+            Log_OC.d(TAG, "Connections of " + entry.getKey() + ": " + reused + " reused, " +
+                    opened + " opened (" + ((total > 0) ? reused * 100 / total : 0) + "% reuse); " +
+                    "TLS handshakes " + connectionManager.mTlsOpened.get() + " done, " +
+                    connectionManager.mTlsReused.get() + " avoided; " +
+                    connectionManager.getConnectionsInPool() + " connections in pool");
+        }
+    }
+
+
+    private static boolean sameCredentials(OwnCloudCredentials current,
+            OwnCloudCredentials fresh) {
+        if (current == null || fresh == null) {
+            return current == fresh;
+        }
+        return equal(current.getUsername(), fresh.getUsername()) &&
+                equal(current.getAuthToken(), fresh.getAuthToken());
+    }
+
+
+    private static boolean equal(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+}
@@ -34,6 +34,7 @@ import com.owncloud.android.R;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.FileMenuFilter;
+import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
 import com.owncloud.android.ui.activity.MoveActivity;
@@ -210,6 +211,10 @@ public class OCFileListFragment extends ExtendedListFragment {
                         mContainerActivity.getFileOperationsHelper().openFile(file);
                     }
                     
+                } else if (PreviewMediaFragment.canBePreviewed(file) && !isDownloading(file)) {
+                    // media preview, played while downloaded
+                    ((FileDisplayActivity)mContainerActivity).startMediaPreview(file, 0, true);
+                    
                 } else {
                     // automatic download, preview on finish
                     ((FileDisplayActivity)mContainerActivity).startDownloadForPreview(file);
@@ -223,6 +228,16 @@ public class OCFileListFragment extends ExtendedListFragment {
         
     }
     
+    /**
+     * @return      'True' if the file is being downloaded by the download service; it will be
+     *              previewed when the download finishes.
+     */
+    private boolean isDownloading(OCFile file) {
+        FileDownloaderBinder downloaderBinder = mContainerActivity.getFileDownloaderBinder();
+        return (downloaderBinder != null && downloaderBinder.isDownloading(
+                mContainerActivity.getStorageManager().getAccount(), file));
+    }
+    
     /**
      * {@inheritDoc}
      */
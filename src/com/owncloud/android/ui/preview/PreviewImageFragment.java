@@ -49,6 +49,7 @@ import com.actionbarsherlock.view.MenuItem;
 import com.owncloud.android.R;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.FileMenuFilter;
+import com.owncloud.android.files.services.DownloadCache;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
 import com.owncloud.android.ui.dialog.RemoveFileDialogFragment;
@@ -192,6 +193,7 @@ public class PreviewImageFragment extends FileFragment {
         if (getFile() != null) {
            BitmapLoader bl = new BitmapLoader(mImageView, mMessageView, mProgressWheel);
            bl.execute(new String[]{getFile().getStoragePath()});
+           DownloadCache.fileAccessed(getSherlockActivity(), mAccount, getFile());
         }
     }
     
@@ -16,6 +16,8 @@
  */
 package com.owncloud.android.ui.preview;
 
+import java.io.IOException;
+
 import android.accounts.Account;
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -48,10 +50,12 @@ import com.actionbarsherlock.view.MenuItem;
 import com.owncloud.android.R;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.FileMenuFilter;
+import com.owncloud.android.files.services.DownloadCache;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.media.MediaControlView;
 import com.owncloud.android.media.MediaService;
 import com.owncloud.android.media.MediaServiceBinder;
+import com.owncloud.android.media.MediaStreamProxy;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
 import com.owncloud.android.ui.dialog.RemoveFileDialogFragment;
@@ -59,11 +63,11 @@ import com.owncloud.android.ui.fragment.FileFragment;
 
 
 /**
- * This fragment shows a preview of a downloaded media file (audio or video).
+ * This fragment shows a preview of a media file (audio or video).
  * 
  * Trying to get an instance with NULL {@link OCFile} or ownCloud {@link Account} values will produce an {@link IllegalStateException}.
  * 
- * By now, if the {@link OCFile} passed is not downloaded, an {@link IllegalStateException} is generated on instantiation too.
+ * If the {@link OCFile} passed is not downloaded, it is played while downloaded through a {@link MediaStreamProxy}.
  * 
  * @author David A. Velasco
  */
@@ -85,6 +89,7 @@ public class PreviewMediaFragment extends FileFragment implements
     private MediaControlView mMediaController = null;
     private MediaServiceConnection mMediaServiceConnection = null;
     private VideoHelper mVideoHelper;
+    private MediaStreamProxy mStreamProxy = null;
     private boolean mAutoplay;
     public boolean mPrepared;
     
@@ -177,9 +182,6 @@ public class PreviewMediaFragment extends FileFragment implements
             if (mAccount == null) {
                 throw new IllegalStateException("Instanced with a NULL ownCloud Account");
             }
-            if (!file.isDown()) {
-                throw new IllegalStateException("There is no local file to preview");
-            }
             
         } else {
             file = (OCFile)savedInstanceState.getParcelable(PreviewMediaFragment.EXTRA_FILE);
@@ -190,7 +192,7 @@ public class PreviewMediaFragment extends FileFragment implements
             mAutoplay = savedInstanceState.getBoolean(PreviewMediaFragment.EXTRA_PLAYING);
             
         }
-        if (file != null && file.isDown()) {
+        if (file != null) {
             if (file.isVideo()) {
                 mVideoPreview.setVisibility(View.VISIBLE);
                 mImagePreview.setVisibility(View.GONE);
@@ -237,7 +239,10 @@ public class PreviewMediaFragment extends FileFragment implements
         Log_OC.e(TAG, "onStart");
 
         OCFile file = getFile();
-        if (file != null && file.isDown()) {
+        if (file != null) {
+           if (file.isDown()) {
+               DownloadCache.fileAccessed(getSherlockActivity(), mAccount, file);
+           }
            if (file.isAudio()) {
                bindMediaService();
                
@@ -380,8 +385,30 @@ public class PreviewMediaFragment extends FileFragment implements
         
         // load the video file in the video player ; 
         // when done, VideoHelper#onPrepared() will be called
-        Uri uri = Uri.parse(getFile().getStoragePath());
-        mVideoPreview.setVideoPath(uri.encode(getFile().getStoragePath()));
+        stopStreamProxy();
+        if (getFile().isDown()) {
+            Uri uri = Uri.parse(getFile().getStoragePath());
+            mVideoPreview.setVideoPath(uri.encode(getFile().getStoragePath()));
+            
+        } else {
+            // played while downloaded, from a local copy in progress
+            try {
+                mStreamProxy = MediaStreamProxy.acquire(getSherlockActivity(), mAccount, getFile(),
+                        mContainerActivity.getFileDownloaderBinder());
+                mVideoPreview.setVideoURI(Uri.parse(mStreamProxy.getUrl()));
+            } catch (IOException e) {
+                Log_OC.e(TAG, "Could not stream " + getFile().getRemotePath(), e);
+                mVideoHelper.onError(null, MediaService.OC_MEDIA_ERROR, R.string.media_err_io);
+            }
+        }
+    }
+    
+    
+    private void stopStreamProxy() {
+        if (mStreamProxy != null) {
+            mStreamProxy.release();
+            mStreamProxy = null;
+        }
     }
     
 
@@ -430,7 +457,7 @@ public class PreviewMediaFragment extends FileFragment implements
                     mVideoPreview.stopPlayback();
                     mAutoplay = false;
                     mSavedPlaybackPosition = 0;
-                    mVideoPreview.setVideoPath(getFile().getStoragePath());
+                    playVideo();
                 }
             } // else : called from onError()
             mMediaController.updatePausePlay();
@@ -490,6 +517,7 @@ public class PreviewMediaFragment extends FileFragment implements
         Log_OC.e(TAG, "onStop");
 
         mPrepared = false;
+        stopStreamProxy();
         if (mMediaServiceConnection != null) {
             Log_OC.d(TAG, "Unbinding from MediaService ...");
             if (mMediaServiceBinder != null && mMediaController != null) {
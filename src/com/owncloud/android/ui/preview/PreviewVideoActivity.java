@@ -17,9 +17,12 @@
 
 package com.owncloud.android.ui.preview;
 
+import java.io.IOException;
+
 import com.owncloud.android.R;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.media.MediaService;
+import com.owncloud.android.media.MediaStreamProxy;
 import com.owncloud.android.ui.activity.FileActivity;
 
 import android.accounts.Account;
@@ -35,8 +38,6 @@ import android.os.Bundle;
 import android.widget.MediaController;
 import android.widget.VideoView;
 
-import com.owncloud.android.lib.common.accounts.AccountUtils;
-import com.owncloud.android.lib.common.accounts.AccountUtils.AccountNotFoundException;
 import com.owncloud.android.lib.common.utils.Log_OC;
 
 /**
@@ -63,6 +64,7 @@ public class PreviewVideoActivity extends FileActivity implements OnCompletionLi
     private boolean mAutoplay;                  // when 'true', the playback starts immediately with the activity
     private VideoView mVideoPlayer;             // view to play the file; both performs and show the playback
     private MediaController mMediaController;   // panel control used by the user to control the playback
+    private MediaStreamProxy mStreamProxy;      // local server streaming the file, if not downloaded
           
     /** 
      *  Called when the activity is first created.
@@ -70,7 +72,7 @@ public class PreviewVideoActivity extends FileActivity implements OnCompletionLi
      *  Searches for an {@link OCFile} and ownCloud {@link Account} holding it in the starting {@link Intent}.
      *  
      *  The {@link Account} is unnecessary if the file is downloaded; else, the {@link Account} is used to 
-     *  try to stream the remote file - TODO get the streaming works
+     *  stream the remote file through a {@link MediaStreamProxy}, downloading it meanwhile.
      * 
      *  {@inheritDoc}
      */
@@ -115,6 +117,16 @@ public class PreviewVideoActivity extends FileActivity implements OnCompletionLi
     }
 
     
+    @Override
+    public void onDestroy() {
+        if (mStreamProxy != null) {
+            mStreamProxy.release();
+            mStreamProxy = null;
+        }
+        super.onDestroy();
+    }
+
+    
     @Override
     public void onBackPressed() {
         Log_OC.e(TAG, "ACTIVTIY\t\tonBackPressed");
@@ -206,13 +218,14 @@ public class PreviewVideoActivity extends FileActivity implements OnCompletionLi
                     mVideoPlayer.setVideoPath(file.getStoragePath());
                     
                 } else {
-                    // not working yet
-                    String url;
+                    // played while downloaded, from a local copy in progress
                     try {
-                        url = AccountUtils.constructFullURLForAccount(this, getAccount()) + file.getRemotePath();
-                        mVideoPlayer.setVideoURI(Uri.parse(url));
-                    } catch (AccountNotFoundException e) {
-                        onError(null, MediaService.OC_MEDIA_ERROR, R.string.media_err_no_account);
+                        mStreamProxy = MediaStreamProxy.acquire(this, getAccount(), file,
+                                getFileDownloaderBinder());
+                        mVideoPlayer.setVideoURI(Uri.parse(mStreamProxy.getUrl()));
+                    } catch (IOException e) {
+                        Log_OC.e(TAG, "Could not stream " + file.getRemotePath(), e);
+                        onError(null, MediaService.OC_MEDIA_ERROR, R.string.media_err_io);
                     }
                 }
                 
@@ -0,0 +1,202 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+/**
+ * Static methods to compute and compare digests of the contents of files.
+ *
+ * Digests are represented as "ALGORITHM:hex", the same format used by the server to report
+ * checksums of files, so that local and remote values can be directly compared.
+ */
+public class ContentDigestUtils {
+
+    private static final String TAG = ContentDigestUtils.class.getSimpleName();
+
+    /** Name of the algorithm in the digests, as used by the server */
+    public static final String ALGORITHM = "SHA1";
+
+    private static final String JAVA_ALGORITHM = "SHA-1";
+    private static final String SEPARATOR = ":";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+    /**
+     * @return      New {@link MessageDigest} instance for the algorithm in {@link #ALGORITHM}.
+     */
+    public static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(JAVA_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException("No implementation available for " + JAVA_ALGORITHM, e);
+        }
+    }
+
+
+    /**
+     * Completes the computation in a {@link MessageDigest} and formats the result.
+     *
+     * @param messageDigest     Digest created with {@link #newMessageDigest()} and updated with
+     *                          all the contents of a file.
+     * @return                  Digest in the format "ALGORITHM:hex".
+     */
+    public static String toDigestString(MessageDigest messageDigest) {
+        byte[] digest = messageDigest.digest();
+        char[] hex = new char[digest.length * 2];
+        for (int i=0; i<digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0x0F];
+        }
+        return ALGORITHM + SEPARATOR + new String(hex);
+    }
+
+
+    /**
+     * Computes the digest of the contents of a local file, reading it in blocks.
+     *
+     * @param file          Local file.
+     * @return              Digest in the format "ALGORITHM:hex".
+     * @throws IOException  If the file can't be read.
+     */
+    public static String computeDigest(File file) throws IOException {
+        MessageDigest messageDigest = newMessageDigest();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log_OC.w(TAG, "Could not close " + file.getAbsolutePath() + ": " + e.getMessage());
+                }
+            }
+        }
+        return toDigestString(messageDigest);
+    }
+
+
+    /**
+     * Returns the digest of the current contents of the local copy of an {@link OCFile}.
+     *
+     * The digest cached in the {@link OCFile} is reused while the length and the modification
+     * time of the local copy don't change; otherwise, the contents are read again and the cache
+     * in the {@link OCFile} is updated. Callers are responsible of saving it in the database.
+     *
+     * @param file      File with a local copy.
+     * @return          Digest of the local contents, or null if there is no local copy or it
+     *                  could not be read.
+     */
+    public static String getLocalDigest(OCFile file) {
+        if (file.getStoragePath() == null) {
+            return null;
+        }
+        File localFile = new File(file.getStoragePath());
+        if (!localFile.exists()) {
+            return null;
+        }
+        long length = localFile.length();
+        long modified = localFile.lastModified();
+        if (file.getLocalDigest() != null &&
+                file.getLocalDigestLength() == length &&
+                file.getLocalDigestModified() == modified) {
+            return file.getLocalDigest();
+        }
+        try {
+            String digest = computeDigest(localFile);
+            file.setLocalDigest(digest, length, modified);
+            return digest;
+
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Could not compute digest of " + file.getStoragePath(), e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Records the digest of the contents synchronized with the server, after a successful
+     * transfer of the file.
+     *
+     * When the digest was computed during the transfer, it is also cached as the digest of the
+     * local copy, so that the contents are not read again; otherwise, it is taken from the local
+     * copy with {@link #getLocalDigest(OCFile)}.
+     *
+     * Callers are responsible of saving the {@link OCFile} in the database.
+     *
+     * @param file                  File which local copy was just downloaded or uploaded.
+     * @param transferredDigest     Digest of the contents computed while they were transferred,
+     *                              or null if unknown.
+     */
+    public static void setSynchronizedDigest(OCFile file, String transferredDigest) {
+        String digest = transferredDigest;
+        if (file.getStoragePath() != null) {
+            File localFile = new File(file.getStoragePath());
+            if (transferredDigest != null && localFile.exists()) {
+                file.setLocalDigest(transferredDigest, localFile.length(), localFile.lastModified());
+            }
+            digest = getLocalDigest(file);
+        }
+        file.setContentDigest(digest);
+    }
+
+
+    /**
+     * Extracts the digest for {@link #ALGORITHM} from a list of checksums reported by the server.
+     *
+     * @param checksums     Space separated list of checksums, in the format "ALGORITHM:hex".
+     * @return              Digest in the format "ALGORITHM:hex", or null if not found.
+     */
+    public static String findDigest(String checksums) {
+        if (checksums == null) {
+            return null;
+        }
+        String prefix = ALGORITHM + SEPARATOR;
+        for (String checksum : checksums.trim().split("\\s+")) {
+            if (checksum.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                return prefix + checksum.substring(prefix.length()).toLowerCase();
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @return      'True' when both digests are known and equal.
+     */
+    public static boolean sameContents(String digest1, String digest2) {
+        return (digest1 != null && digest2 != null && digest1.equalsIgnoreCase(digest2));
+    }
+
+}
@@ -0,0 +1,124 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+/**
+ * Static methods to place local files in the folders of the app, copying or moving them.
+ *
+ * Copies are done with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * letting the system move the data between both files without passing it through buffers in
+ * the app. Moves are done renaming the file when source and target are in the same volume.
+ */
+public class FileStagingUtils {
+
+    private static final String TAG = FileStagingUtils.class.getSimpleName();
+
+    /** Maximum amount of bytes requested to the system in every transfer */
+    private static final long TRANSFER_BLOCK = 8 * 1024 * 1024;
+
+
+    /**
+     * Copies the contents of a file into another, creating the target and its parent folders
+     * if needed. The target is overwritten if it exists.
+     *
+     * @param source        File to copy.
+     * @param target        File where the contents will be copied.
+     * @throws IOException  If the copy could not be completed.
+     */
+    public static void copyFile(File source, File target) throws IOException {
+        prepareTarget(target);
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(target);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long length = inChannel.size();
+            long position = 0;
+            while (position < length) {
+                long transferred = inChannel.transferTo(
+                        position, Math.min(TRANSFER_BLOCK, length - position), outChannel);
+                if (transferred <= 0) {
+                    throw new IOException("Copy of " + source + " stopped at byte " + position +
+                            " of " + length);
+                }
+                position += transferred;
+            }
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing input stream for " + source +
+                            " (ignoring)", e);
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing output stream for " + target +
+                            " (ignoring)", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Moves a file, renaming it if both paths are in the same volume, or copying it and
+     * deleting the source otherwise. The target is overwritten if it exists.
+     *
+     * @param source        File to move.
+     * @param target        New location for the file.
+     * @throws IOException  If the file could not be moved; the source is kept in that case.
+     */
+    public static void moveFile(File source, File target) throws IOException {
+        prepareTarget(target);
+        if (source.renameTo(target)) {
+            return;
+        }
+        // different volumes
+        copyFile(source, target);
+        if (!source.delete()) {
+            Log_OC.w(TAG, "Could not delete " + source + " after copying it to " + target);
+        }
+    }
+
+
+    private static void prepareTarget(File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+            if (!parent.isDirectory()) {
+                throw new IOException("Unexpected error: parent directory could not be created");
+            }
+        }
+    }
+
+}
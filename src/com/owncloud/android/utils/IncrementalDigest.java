@@ -0,0 +1,131 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+
+/**
+ * Digest of the contents of a file computed while they are transferred, from the same buffers
+ * the transfer writes or sends, so that the file does not need to be read again.
+ *
+ * Contents must be received in order. Bytes received again, as when a request is repeated, are
+ * ignored; a gap leaves the digest unknown.
+ *
+ * Not thread safe; meant to be used by the thread running the transfer.
+ */
+public class IncrementalDigest {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private MessageDigest mMessageDigest = ContentDigestUtils.newMessageDigest();
+    private long mPosition = 0;
+    private boolean mBroken = false;
+    private String mDigest = null;
+
+
+    /**
+     * Adds contents of the file to the digest.
+     *
+     * @param position      Position of the contents in the file.
+     * @param buffer        Buffer with the contents.
+     * @param offset        Position of the contents in the buffer.
+     * @param count         Number of bytes of the contents.
+     */
+    public void update(long position, byte[] buffer, int offset, int count) {
+        if (mBroken || mDigest != null) {
+            return;
+        }
+        if (position > mPosition) {
+            mBroken = true;     // a part of the file was not seen
+            return;
+        }
+        long repeated = mPosition - position;
+        if (repeated >= count) {
+            return;
+        }
+        mMessageDigest.update(buffer, offset + (int) repeated, count - (int) repeated);
+        mPosition += count - repeated;
+    }
+
+
+    /**
+     * Adds to the digest the contents of a local file up to a position, when the transfer
+     * continues a former one that left them in place.
+     *
+     * @param file          Local file.
+     * @param end           Position after the last byte to add.
+     */
+    public void update(File file, long end) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            in.seek(mPosition);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (mPosition < end && !mBroken) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - mPosition));
+                if (read < 0) {
+                    mBroken = true;
+                } else {
+                    update(mPosition, buffer, 0, read);
+                }
+            }
+        } catch (IOException e) {
+            mBroken = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing else to do
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Starts again from the beginning of the file, as when the contents are received again
+     * in full.
+     */
+    public void reset() {
+        mMessageDigest = ContentDigestUtils.newMessageDigest();
+        mPosition = 0;
+        mBroken = false;
+        mDigest = null;
+    }
+
+
+    /**
+     * @param length    Length of the file.
+     * @return          Digest in the format "ALGORITHM:hex" if all the contents of the file
+     *                  were added in order, or null otherwise.
+     */
+    public String getDigest(long length) {
+        if (mBroken || mPosition != length) {
+            return null;
+        }
+        if (mDigest == null) {
+            mDigest = ContentDigestUtils.toDigestString(mMessageDigest);
+        }
+        return mDigest;
+    }
+
+}
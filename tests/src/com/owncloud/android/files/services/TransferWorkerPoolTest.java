@@ -0,0 +1,207 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Placed in the package of {@link TransferWorkerPool} to reach its package-private queue entries.
+ */
+public class TransferWorkerPoolTest extends TestCase {
+
+    private static final String ACCOUNT = "test@server";
+    private static final long TIMEOUT = 5;  // seconds
+
+    private TransferWorkerPool mPool;
+    private CountDownLatch mBlocker;
+    private List<String> mStarted;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new TransferWorkerPool("test", 1, 1, null);
+        mBlocker = new CountDownLatch(1);
+        mStarted = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBlocker.countDown();
+        mPool.shutdown();
+        super.tearDown();
+    }
+
+    public void testPriorityClassesThenFifo() throws InterruptedException {
+        occupyRegularWorker();
+        CountDownLatch done = new CountDownLatch(4);
+        mPool.enqueue("instant", ACCOUNT, null, TransferWorkerPool.PRIORITY_INSTANT, record("instant", done));
+        mPool.enqueue("sync1", ACCOUNT, null, TransferWorkerPool.PRIORITY_SYNC, record("sync1", done));
+        mPool.enqueue("bulk", ACCOUNT, null, TransferWorkerPool.PRIORITY_USER_BULK, record("bulk", done));
+        mPool.enqueue("sync2", ACCOUNT, null, TransferWorkerPool.PRIORITY_SYNC, record("sync2", done));
+        assertEquals(4, mPool.getQueuedCount());
+        assertEquals(2, mPool.getQueuedCount(TransferWorkerPool.PRIORITY_SYNC));
+
+        mBlocker.countDown();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("bulk", "sync1", "sync2", "instant"), mStarted);
+    }
+
+    public void testInteractiveUsesReservedWorker() throws InterruptedException {
+        occupyRegularWorker();
+        CountDownLatch done = new CountDownLatch(1);
+        mPool.enqueue("sync", ACCOUNT, null, TransferWorkerPool.PRIORITY_SYNC, record("sync", null));
+        mPool.enqueue("open", ACCOUNT, null, TransferWorkerPool.PRIORITY_INTERACTIVE, record("open", done));
+
+        // started while the regular worker is still busy
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("open"), mStarted);
+        assertEquals(1, mPool.getQueuedCount());
+    }
+
+    public void testRaisePriority() throws InterruptedException {
+        occupyRegularWorker();
+        CountDownLatch done = new CountDownLatch(2);
+        mPool.enqueue("first", ACCOUNT, null, TransferWorkerPool.PRIORITY_SYNC, record("first", done));
+        mPool.enqueue("second", ACCOUNT, null, TransferWorkerPool.PRIORITY_INSTANT, record("second", done));
+        mPool.raisePriority("second", TransferWorkerPool.PRIORITY_USER_BULK);
+
+        mBlocker.countDown();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("second", "first"), mStarted);
+    }
+
+    public void testRemoveOnlyQueued() {
+        occupyRegularWorker();
+        mPool.enqueue("queued", ACCOUNT, null, TransferWorkerPool.PRIORITY_SYNC, record("queued", null));
+        assertFalse(mPool.remove("blocker"));
+        assertTrue(mPool.remove("queued"));
+        assertFalse(mPool.remove("queued"));
+        assertEquals(0, mPool.getQueuedCount());
+    }
+
+    public void testPerAccountLimit() throws InterruptedException {
+        mPool.setLimits(2, 1);
+        occupyRegularWorker();
+        CountDownLatch done = new CountDownLatch(1);
+        mPool.enqueue("same", ACCOUNT, null, TransferWorkerPool.PRIORITY_USER_BULK, record("same", null));
+        mPool.enqueue("other", "other@server", null, TransferWorkerPool.PRIORITY_USER_BULK,
+                record("other", done));
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("other"), mStarted);
+        assertEquals(1, mPool.getQueuedCount());
+    }
+
+    public void testOrderingKey() throws InterruptedException {
+        mPool.setLimits(2, 2);
+        occupyWorker(ACCOUNT, "/path");
+        CountDownLatch done = new CountDownLatch(2);
+        mPool.enqueue("same path", ACCOUNT, "/path", TransferWorkerPool.PRIORITY_USER_BULK,
+                record("same path", done));
+        mPool.enqueue("other path", ACCOUNT, "/other", TransferWorkerPool.PRIORITY_USER_BULK,
+                record("other path", done));
+
+        // waits for the transfer to the same path, though a worker is free
+        Thread.sleep(200);
+        assertEquals(Arrays.asList("other path"), mStarted);
+        mBlocker.countDown();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("other path", "same path"), mStarted);
+    }
+
+    public void testSeveralOrderingKeys() throws InterruptedException {
+        mPool.setLimits(3, 3);
+        occupyWorker(ACCOUNT, "/folder/b");
+        CountDownLatch done = new CountDownLatch(2);
+        mPool.enqueueWithOrderingKeys("batch", ACCOUNT, Arrays.asList("/folder/a", "/folder/b"),
+                TransferWorkerPool.PRIORITY_USER_BULK, record("batch", done));
+        mPool.enqueue("single", ACCOUNT, "/folder/a", TransferWorkerPool.PRIORITY_USER_BULK,
+                record("single", done));
+
+        // the batch waits for the path it shares, and the single upload waits for the batch
+        Thread.sleep(200);
+        assertTrue(mStarted.isEmpty());
+        mBlocker.countDown();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("batch", "single"), mStarted);
+    }
+
+    public void testAging() {
+        TransferWorkerPool.QueuedTransfer transfer = new TransferWorkerPool.QueuedTransfer(
+                "aging", ACCOUNT, Collections.<String>emptyList(), TransferWorkerPool.PRIORITY_INSTANT,
+                record("aging", null));
+        long enqueuedAt = transfer.mEnqueuedAt;
+        long interval = TransferWorkerPool.AGING_INTERVAL;
+
+        assertEquals(TransferWorkerPool.PRIORITY_INSTANT, transfer.effectivePriority(enqueuedAt));
+        assertEquals(TransferWorkerPool.PRIORITY_INSTANT,
+                transfer.effectivePriority(enqueuedAt + interval - 1));
+        assertEquals(TransferWorkerPool.PRIORITY_SYNC,
+                transfer.effectivePriority(enqueuedAt + interval));
+        assertEquals(TransferWorkerPool.PRIORITY_USER_BULK,
+                transfer.effectivePriority(enqueuedAt + 2 * interval));
+        // never above the highest class
+        assertEquals(TransferWorkerPool.PRIORITY_INTERACTIVE,
+                transfer.effectivePriority(enqueuedAt + 10 * interval));
+    }
+
+    /**
+     * Starts a transfer keeping the only regular worker busy until {@link #mBlocker} is released.
+     */
+    private void occupyRegularWorker() {
+        occupyWorker(ACCOUNT, null);
+    }
+
+    /**
+     * Starts a transfer keeping a worker busy until {@link #mBlocker} is released.
+     */
+    private void occupyWorker(String accountName, String orderingKey) {
+        mPool.enqueue("blocker", accountName, orderingKey, TransferWorkerPool.PRIORITY_USER_BULK,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mBlocker.await(TIMEOUT, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+        assertEquals(1, mPool.getActiveCount());
+    }
+
+    private Runnable record(final String name, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mStarted.add(name);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,105 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.media;
+
+import junit.framework.TestCase;
+
+/**
+ * Placed in the package of {@link MediaStreamProxy} to reach its package-private ranges.
+ */
+public class ReceivedRangesTest extends TestCase {
+
+    private static final long LENGTH = 1000;
+
+    private MediaStreamProxy.ReceivedRanges mRanges;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRanges = new MediaStreamProxy.ReceivedRanges();
+    }
+
+    public void testEmpty() {
+        assertEquals(0, mRanges.availableFrom(0));
+        assertEquals(500, mRanges.availableFrom(500));
+        assertEquals(LENGTH, mRanges.nextReceived(0, LENGTH));
+    }
+
+    public void testEmptyRangeIsIgnored() {
+        mRanges.add(100, 100);
+        mRanges.add(200, 150);
+        assertEquals(100, mRanges.availableFrom(100));
+        assertEquals(LENGTH, mRanges.nextReceived(0, LENGTH));
+    }
+
+    public void testDisjointRanges() {
+        mRanges.add(100, 200);
+        mRanges.add(300, 400);
+        assertEquals(50, mRanges.availableFrom(50));
+        assertEquals(200, mRanges.availableFrom(100));
+        assertEquals(200, mRanges.availableFrom(150));
+        assertEquals(200, mRanges.availableFrom(200));
+        assertEquals(250, mRanges.availableFrom(250));
+        assertEquals(400, mRanges.availableFrom(300));
+        assertEquals(100, mRanges.nextReceived(0, LENGTH));
+        assertEquals(300, mRanges.nextReceived(200, LENGTH));
+        assertEquals(LENGTH, mRanges.nextReceived(300, LENGTH));
+        assertEquals(250, mRanges.nextReceived(200, 250));
+    }
+
+    public void testOverlappingRangesMerge() {
+        mRanges.add(100, 200);
+        mRanges.add(150, 300);
+        assertEquals(300, mRanges.availableFrom(100));
+
+        mRanges.add(50, 120);
+        assertEquals(300, mRanges.availableFrom(50));
+        assertEquals(LENGTH, mRanges.nextReceived(50, LENGTH));
+    }
+
+    public void testTouchingRangesMerge() {
+        mRanges.add(100, 200);
+        mRanges.add(200, 300);
+        mRanges.add(0, 100);
+        assertEquals(300, mRanges.availableFrom(0));
+        assertEquals(LENGTH, mRanges.nextReceived(0, LENGTH));
+    }
+
+    public void testRangeCoveringSeveral() {
+        mRanges.add(100, 200);
+        mRanges.add(300, 400);
+        mRanges.add(500, 600);
+        mRanges.add(150, 550);
+        assertEquals(600, mRanges.availableFrom(100));
+        assertEquals(LENGTH, mRanges.nextReceived(100, LENGTH));
+    }
+
+    public void testRangeInsideExisting() {
+        mRanges.add(100, 400);
+        mRanges.add(200, 300);
+        assertEquals(400, mRanges.availableFrom(100));
+        assertEquals(400, mRanges.availableFrom(250));
+    }
+
+    public void testClear() {
+        mRanges.add(0, 500);
+        mRanges.clear();
+        assertEquals(0, mRanges.availableFrom(0));
+    }
+
+}
@@ -0,0 +1,147 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.providers;
+
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Placed in the package of {@link FileContentProvider} to reach its package-private database
+ * helper.
+ */
+public class FileContentProviderUpgradeTest extends AndroidTestCase {
+
+    private static final long SYNC_DATE = 1400000000000L;
+
+    private SQLiteDatabase mDb;
+    private FileContentProvider.DataBaseHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mHelper = new FileContentProvider().new DataBaseHelper(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testUpgradeFromVersion8() {
+        createFilesTable(false);
+        long downloaded = insertFile("/downloaded.txt", "/sdcard/owncloud/downloaded.txt");
+        long notDownloaded = insertFile("/remote.txt", null);
+
+        mHelper.onUpgrade(mDb, 8, 10);
+
+        Cursor c = queryFile(downloaded);
+        try {
+            assertTrue(c.isNull(c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_DIGEST)));
+            assertTrue(c.isNull(c.getColumnIndex(ProviderTableMeta.FILE_LOCAL_DIGEST)));
+            assertEquals(0, c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LOCAL_DIGEST_LENGTH)));
+            assertEquals(0, c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LOCAL_DIGEST_MODIFIED)));
+            assertEquals(SYNC_DATE, c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LAST_ACCESS)));
+        } finally {
+            c.close();
+        }
+        c = queryFile(notDownloaded);
+        try {
+            assertEquals(0, c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LAST_ACCESS)));
+        } finally {
+            c.close();
+        }
+        assertLastAccessIndexExists();
+    }
+
+    public void testUpgradeFromVersion9() {
+        createFilesTable(true);
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_PATH, "/digested.txt");
+        cv.put(ProviderTableMeta.FILE_STORAGE_PATH, "/sdcard/owncloud/digested.txt");
+        cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, SYNC_DATE);
+        cv.put(ProviderTableMeta.FILE_CONTENT_DIGEST, "SHA1:a9993e364706816aba3e25717850c26c9cd0d89d");
+        long id = mDb.insert(ProviderTableMeta.FILE_TABLE_NAME, null, cv);
+
+        mHelper.onUpgrade(mDb, 9, 10);
+
+        Cursor c = queryFile(id);
+        try {
+            // digests saved before are kept
+            assertEquals("SHA1:a9993e364706816aba3e25717850c26c9cd0d89d",
+                    c.getString(c.getColumnIndex(ProviderTableMeta.FILE_CONTENT_DIGEST)));
+            assertEquals(SYNC_DATE, c.getLong(c.getColumnIndex(ProviderTableMeta.FILE_LAST_ACCESS)));
+        } finally {
+            c.close();
+        }
+        assertLastAccessIndexExists();
+    }
+
+    /**
+     * Creates the columns of the files table used by the upgrades, as they were before them.
+     *
+     * @param withDigests   'True' to include the columns added in version 9.
+     */
+    private void createFilesTable(boolean withDigests) {
+        mDb.execSQL("CREATE TABLE " + ProviderTableMeta.FILE_TABLE_NAME + "("
+                + ProviderTableMeta._ID + " INTEGER PRIMARY KEY, "
+                + ProviderTableMeta.FILE_PATH + " TEXT, "
+                + ProviderTableMeta.FILE_STORAGE_PATH + " TEXT, "
+                + ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA + " INTEGER, "
+                + (withDigests ?
+                        ProviderTableMeta.FILE_CONTENT_DIGEST + " TEXT null, "
+                        + ProviderTableMeta.FILE_LOCAL_DIGEST + " TEXT null, "
+                        + ProviderTableMeta.FILE_LOCAL_DIGEST_LENGTH + " INTEGER, "
+                        + ProviderTableMeta.FILE_LOCAL_DIGEST_MODIFIED + " INTEGER, "
+                        : "")
+                + ProviderTableMeta.FILE_UPDATE_THUMBNAIL + " INTEGER);"
+                );
+    }
+
+    private long insertFile(String path, String storagePath) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_PATH, path);
+        cv.put(ProviderTableMeta.FILE_STORAGE_PATH, storagePath);
+        cv.put(ProviderTableMeta.FILE_LAST_SYNC_DATE_FOR_DATA, SYNC_DATE);
+        return mDb.insert(ProviderTableMeta.FILE_TABLE_NAME, null, cv);
+    }
+
+    private Cursor queryFile(long id) {
+        Cursor c = mDb.query(ProviderTableMeta.FILE_TABLE_NAME, null,
+                ProviderTableMeta._ID + "=?", new String[] { String.valueOf(id) },
+                null, null, null);
+        assertTrue(c.moveToFirst());
+        return c;
+    }
+
+    private void assertLastAccessIndexExists() {
+        Cursor c = mDb.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND name=?",
+                new String[] { ProviderTableMeta.FILE_LAST_ACCESS + "_index" });
+        try {
+            assertTrue(c.moveToFirst());
+        } finally {
+            c.close();
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import com.owncloud.android.operations.ChunkedUploadState;
+
+import android.test.AndroidTestCase;
+
+
+public class ChunkedUploadStateTest extends AndroidTestCase {
+
+    private static final long CHUNK_SIZE = 1024;
+    private static final long FILE_LENGTH = 3 * CHUNK_SIZE + 1;
+    private static final long FILE_MODIFIED = 1400000000000L;
+
+    private File mStateFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStateFile = new File(getContext().getCacheDir(),
+                "upload_test" + ChunkedUploadState.STATE_FILE_SUFFIX);
+        mStateFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStateFile.delete();
+        super.tearDown();
+    }
+
+    public void testNewState() {
+        ChunkedUploadState state = newState();
+        assertEquals(CHUNK_SIZE, state.getChunkSize());
+        assertEquals(4, state.getChunksCount());
+        assertEquals(0, state.getDoneChunksCount());
+        assertNotNull(state.getTransferId());
+        assertFalse(mStateFile.exists());
+    }
+
+    public void testSaveAndLoad() {
+        ChunkedUploadState state = newState();
+        state.setChunkDone(0);
+        state.setChunkDone(2);
+        state.save();
+
+        ChunkedUploadState loaded = ChunkedUploadState.loadOrCreate(
+                mStateFile, 2 * CHUNK_SIZE, FILE_LENGTH, FILE_MODIFIED);
+        assertEquals(state.getTransferId(), loaded.getTransferId());
+        // the chunk size of the saved transfer wins
+        assertEquals(CHUNK_SIZE, loaded.getChunkSize());
+        assertEquals(2, loaded.getDoneChunksCount());
+        assertTrue(loaded.isChunkDone(0));
+        assertFalse(loaded.isChunkDone(1));
+        assertTrue(loaded.isChunkDone(2));
+        assertFalse(loaded.isChunkDone(3));
+    }
+
+    public void testChangedFileDiscardsState() {
+        ChunkedUploadState state = newState();
+        state.setChunkDone(0);
+        state.save();
+
+        ChunkedUploadState loaded = ChunkedUploadState.loadOrCreate(
+                mStateFile, CHUNK_SIZE, FILE_LENGTH, FILE_MODIFIED + 1000);
+        assertEquals(0, loaded.getDoneChunksCount());
+        assertFalse(mStateFile.exists());
+
+        state.save();
+        loaded = ChunkedUploadState.loadOrCreate(
+                mStateFile, CHUNK_SIZE, FILE_LENGTH + 1, FILE_MODIFIED);
+        assertEquals(0, loaded.getDoneChunksCount());
+        assertFalse(mStateFile.exists());
+    }
+
+    public void testExpiredStateIsDiscarded() throws IOException {
+        ChunkedUploadState state = newState();
+        state.setChunkDone(1);
+        state.save();
+        setCreated(System.currentTimeMillis() - 24 * 60 * 60 * 1000);
+
+        ChunkedUploadState loaded = ChunkedUploadState.loadOrCreate(
+                mStateFile, CHUNK_SIZE, FILE_LENGTH, FILE_MODIFIED);
+        assertEquals(0, loaded.getDoneChunksCount());
+        assertFalse(mStateFile.exists());
+    }
+
+    public void testStateFromTheFutureIsDiscarded() throws IOException {
+        ChunkedUploadState state = newState();
+        state.setChunkDone(1);
+        state.save();
+        setCreated(System.currentTimeMillis() + 60 * 60 * 1000);
+
+        ChunkedUploadState loaded = ChunkedUploadState.loadOrCreate(
+                mStateFile, CHUNK_SIZE, FILE_LENGTH, FILE_MODIFIED);
+        assertEquals(0, loaded.getDoneChunksCount());
+    }
+
+    public void testMalformedStateIsIgnored() throws IOException {
+        FileOutputStream out = new FileOutputStream(mStateFile);
+        try {
+            out.write("transfer_id=1\nchunk_size=1024\ndone_chunks=0,x\n".getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+
+        ChunkedUploadState loaded = ChunkedUploadState.loadOrCreate(
+                mStateFile, CHUNK_SIZE, FILE_LENGTH, FILE_MODIFIED);
+        assertEquals(0, loaded.getDoneChunksCount());
+    }
+
+    public void testDelete() {
+        ChunkedUploadState state = newState();
+        state.save();
+        assertTrue(mStateFile.exists());
+        state.delete();
+        assertFalse(mStateFile.exists());
+    }
+
+    private ChunkedUploadState newState() {
+        return ChunkedUploadState.loadOrCreate(mStateFile, CHUNK_SIZE, FILE_LENGTH, FILE_MODIFIED);
+    }
+
+    /**
+     * Rewrites the creation time in the saved state.
+     */
+    private void setCreated(long created) throws IOException {
+        Properties info = new Properties();
+        FileInputStream in = new FileInputStream(mStateFile);
+        try {
+            info.load(in);
+        } finally {
+            in.close();
+        }
+        info.setProperty("created", String.valueOf(created));
+        FileOutputStream out = new FileOutputStream(mStateFile);
+        try {
+            info.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.utils.ContentDigestUtils;
+
+import android.test.AndroidTestCase;
+
+
+public class ContentDigestUtilsTest extends AndroidTestCase {
+
+    private static final String ABC_DIGEST = "SHA1:a9993e364706816aba3e25717850c26c9cd0d89d";
+
+    private File mLocalFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocalFile = new File(getContext().getCacheDir(), "digest_test.txt");
+        write(mLocalFile, "abc");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLocalFile.delete();
+        super.tearDown();
+    }
+
+    public void testSameContents() {
+        assertTrue(ContentDigestUtils.sameContents(ABC_DIGEST, ABC_DIGEST));
+        assertTrue(ContentDigestUtils.sameContents(ABC_DIGEST, ABC_DIGEST.toUpperCase()));
+        assertFalse(ContentDigestUtils.sameContents(ABC_DIGEST,
+                "SHA1:da39a3ee5e6b4b0d3255bfef95601890afd80709"));
+        assertFalse(ContentDigestUtils.sameContents(ABC_DIGEST, null));
+        assertFalse(ContentDigestUtils.sameContents(null, ABC_DIGEST));
+        assertFalse(ContentDigestUtils.sameContents(null, null));
+    }
+
+    public void testComputeDigest() throws IOException {
+        assertEquals(ABC_DIGEST, ContentDigestUtils.computeDigest(mLocalFile));
+    }
+
+    public void testSetSynchronizedDigestReusesTransferredDigest() {
+        OCFile file = new OCFile("/digest_test.txt");
+        file.setStoragePath(mLocalFile.getAbsolutePath());
+        String transferred = "SHA1:0123456789abcdef0123456789abcdef01234567";
+
+        ContentDigestUtils.setSynchronizedDigest(file, transferred);
+
+        // the local copy is not read again
+        assertEquals(transferred, file.getContentDigest());
+        assertEquals(transferred, file.getLocalDigest());
+        assertEquals(mLocalFile.length(), file.getLocalDigestLength());
+        assertEquals(mLocalFile.lastModified(), file.getLocalDigestModified());
+    }
+
+    public void testSetSynchronizedDigestComputesUnknownDigest() {
+        OCFile file = new OCFile("/digest_test.txt");
+        file.setStoragePath(mLocalFile.getAbsolutePath());
+
+        ContentDigestUtils.setSynchronizedDigest(file, null);
+
+        assertEquals(ABC_DIGEST, file.getContentDigest());
+        assertEquals(ABC_DIGEST, file.getLocalDigest());
+    }
+
+    public void testSetSynchronizedDigestWithoutLocalCopy() {
+        OCFile file = new OCFile("/digest_test.txt");
+
+        ContentDigestUtils.setSynchronizedDigest(file, ABC_DIGEST);
+        assertEquals(ABC_DIGEST, file.getContentDigest());
+
+        ContentDigestUtils.setSynchronizedDigest(file, null);
+        assertNull(file.getContentDigest());
+    }
+
+    public void testGetLocalDigestDetectsChanges() throws IOException {
+        OCFile file = new OCFile("/digest_test.txt");
+        file.setStoragePath(mLocalFile.getAbsolutePath());
+        assertEquals(ABC_DIGEST, ContentDigestUtils.getLocalDigest(file));
+
+        write(mLocalFile, "abcd");
+        assertEquals(ContentDigestUtils.computeDigest(mLocalFile),
+                ContentDigestUtils.getLocalDigest(file));
+        assertFalse(ABC_DIGEST.equals(file.getLocalDigest()));
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,335 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Remote tree of files and folders served by {@link WebdavStandInServer}.
+ *
+ * The tree is generated procedurally from its shape (number of entries, depth and fan-out), so
+ * that trees with hundreds of thousands of entries don't need to be kept in memory. Only the
+ * entries changed with {@link #applyChanges(float)}, the files uploaded with
+ * {@link #putFile(String, long)} and the folders created with {@link #putFolder(String)} are
+ * stored.
+ *
+ * Every folder at a level lower than the depth of the tree contains 'fanOut' subfolders named
+ * "dirN/", and every folder contains the same number of files named "fileN.bin".
+ */
+public class GeneratedTree {
+
+    public static final String FOLDER_PREFIX = "dir";
+    public static final String FILE_PREFIX = "file";
+    public static final String FILE_SUFFIX = ".bin";
+
+    private static final long BASE_TIMESTAMP = 1400000000000L;
+    private static final int MAX_GENERATED_LENGTH = 64 * 1024;
+
+    /** Description of a single file or folder in the tree */
+    public static class Entry {
+        public final String mPath;
+        public final boolean mIsFolder;
+        public final long mLength;
+        public final long mModified;
+        public final String mEtag;
+
+        Entry(String path, boolean isFolder, long length, long modified, String etag) {
+            mPath = path;
+            mIsFolder = isFolder;
+            mLength = length;
+            mModified = modified;
+            mEtag = etag;
+        }
+    }
+
+    private final int mDepth;
+    private final int mFanOut;
+    private final int mFoldersCount;
+    private final int mFilesPerFolder;
+    private final Random mRandom;
+
+    /** Versions of files and folders changed since the tree was generated */
+    private final Map<String, Integer> mVersions = new HashMap<String, Integer>();
+
+    /** Files uploaded and folders created in the tree, out of the generated ones */
+    private final Map<String, Entry> mUploaded = new HashMap<String, Entry>();
+
+    private int mCurrentVersion = 0;
+
+
+    /**
+     * Generates a new tree.
+     *
+     * @param entries       Approximate number of files and folders in the tree, root excluded.
+     * @param depth         Number of levels of folders below the root folder.
+     * @param fanOut        Number of subfolders in every folder above the last level.
+     * @param seed          Seed for the random choice of changed files.
+     */
+    public GeneratedTree(int entries, int depth, int fanOut, long seed) {
+        if (depth < 0 || fanOut < 1) {
+            throw new IllegalArgumentException("Invalid shape: depth " + depth +
+                    ", fan-out " + fanOut);
+        }
+        mDepth = depth;
+        mFanOut = fanOut;
+        int folders = 0;
+        int levelSize = 1;
+        for (int level = 0; level <= depth; level++) {
+            folders += levelSize;
+            levelSize *= fanOut;
+        }
+        mFoldersCount = folders;
+        mFilesPerFolder = Math.max(0, (entries - (folders - 1)) / folders);
+        mRandom = new Random(seed);
+    }
+
+
+    public int getFoldersCount() {
+        return mFoldersCount;
+    }
+
+    public int getFilesCount() {
+        return mFoldersCount * mFilesPerFolder;
+    }
+
+    /**
+     * @return      Number of files and folders in the tree, root folder excluded.
+     */
+    public int getEntriesCount() {
+        return mFoldersCount - 1 + getFilesCount();
+    }
+
+
+    /**
+     * Returns the description of the file or folder in a given path.
+     *
+     * @param path      Full path to the entry; folder paths end with "/".
+     * @return          Description of the entry, or null if there is no entry in path.
+     */
+    public synchronized Entry getEntry(String path) {
+        Entry uploaded = mUploaded.get(path);
+        if (uploaded != null) {
+            return uploaded;
+        }
+        String[] segments = path.split("/");
+        int level = 0;
+        for (int i=0; i<segments.length; i++) {
+            String segment = segments[i];
+            if (segment.length() == 0) {
+                continue;
+            }
+            boolean isLast = (i == segments.length - 1);
+            if (isLast && !path.endsWith("/")) {
+                // file
+                int index = parseIndex(segment, FILE_PREFIX, FILE_SUFFIX);
+                if (index < 0 || index >= mFilesPerFolder) {
+                    return null;
+                }
+                return buildEntry(path, false);
+            }
+            int index = parseIndex(segment, FOLDER_PREFIX, "");
+            if (index < 0 || index >= mFanOut || ++level > mDepth) {
+                return null;
+            }
+        }
+        return buildEntry(path.endsWith("/") ? path : path + "/", true);
+    }
+
+
+    /**
+     * Returns the descriptions of the files and folders directly contained in a folder.
+     *
+     * @param folderPath    Full path to the folder, ending in "/".
+     * @return              Descriptions of the children of the folder.
+     */
+    public synchronized List<Entry> getChildren(String folderPath) {
+        List<Entry> children = new ArrayList<Entry>();
+        // folders created out of the generated ones contain only what was put into them
+        boolean generated = !mUploaded.containsKey(folderPath);
+        if (generated && levelOf(folderPath) < mDepth) {
+            for (int i=0; i<mFanOut; i++) {
+                children.add(buildEntry(folderPath + FOLDER_PREFIX + i + "/", true));
+            }
+        }
+        for (int i=0; generated && i<mFilesPerFolder; i++) {
+            String path = folderPath + FILE_PREFIX + i + FILE_SUFFIX;
+            Entry uploaded = mUploaded.get(path);
+            children.add((uploaded != null) ? uploaded : buildEntry(path, false));
+        }
+        for (Entry uploaded : mUploaded.values()) {
+            if (folderPath.equals(parentOf(uploaded.mPath))) {
+                String name = uploaded.mPath.substring(folderPath.length());
+                int index = parseIndex(name, FILE_PREFIX, FILE_SUFFIX);
+                if (!generated || index < 0 || index >= mFilesPerFolder) {
+                    children.add(uploaded);     // not replacing a generated file
+                }
+            }
+        }
+        return children;
+    }
+
+
+    /**
+     * Modifies a random subset of the files in the tree, as if their contents were updated
+     * by other clients. ETags of the modified files and of all their ancestors are updated.
+     *
+     * @param changeRate    Fraction of the files in the tree to modify, from 0 to 1.
+     * @return              Number of folders with a new ETag after the change.
+     */
+    public synchronized int applyChanges(float changeRate) {
+        int toChange = Math.round(changeRate * getFilesCount());
+        if (toChange == 0 || mFilesPerFolder == 0) {
+            return 0;
+        }
+        mCurrentVersion++;
+        int changedFolders = 0;
+        for (int i=0; i<toChange; i++) {
+            String folder = folderPathOf(mRandom.nextInt(mFoldersCount));
+            String file = folder + FILE_PREFIX + mRandom.nextInt(mFilesPerFolder) + FILE_SUFFIX;
+            mVersions.put(file, mCurrentVersion);
+            while (folder != null) {
+                Integer former = mVersions.put(folder, mCurrentVersion);
+                if (former == null || former.intValue() != mCurrentVersion) {
+                    changedFolders++;
+                }
+                folder = parentOf(folder);
+            }
+        }
+        return changedFolders;
+    }
+
+
+    /**
+     * Adds or replaces a file in the tree, as a result of an upload.
+     *
+     * @param path          Full path to the file.
+     * @param length        Length of the contents of the new file.
+     */
+    public synchronized void putFile(String path, long length) {
+        mCurrentVersion++;
+        mUploaded.put(path, new Entry(path, false, length,
+                System.currentTimeMillis(), etagFor(path, mCurrentVersion)));
+        updateAncestors(path);
+    }
+
+
+    /**
+     * Adds an empty folder to the tree, as a result of a MKCOL request.
+     *
+     * @param path          Full path to the folder, ending in "/".
+     */
+    public synchronized void putFolder(String path) {
+        mCurrentVersion++;
+        mUploaded.put(path, new Entry(path, true, 0,
+                System.currentTimeMillis(), etagFor(path, mCurrentVersion)));
+        updateAncestors(path);
+    }
+
+
+    /**
+     * Gives the current version to all the folders containing an entry.
+     */
+    private void updateAncestors(String path) {
+        String folder = parentOf(path);
+        while (folder != null) {
+            mVersions.put(folder, mCurrentVersion);
+            Entry created = mUploaded.get(folder);
+            if (created != null) {
+                mUploaded.put(folder, new Entry(folder, true, 0,
+                        System.currentTimeMillis(), etagFor(folder, mCurrentVersion)));
+            }
+            folder = parentOf(folder);
+        }
+    }
+
+
+    /**
+     * Returns the byte in a given position of the contents of a generated file.
+     *
+     * Contents are generated from the path and the position, so that they can be checked
+     * after a download without keeping them in memory. They repeat every 256 bytes.
+     */
+    public static byte contentByteAt(String path, long position) {
+        return (byte) ((path.hashCode() + position * 31) & 0xFF);
+    }
+
+
+    private Entry buildEntry(String path, boolean isFolder) {
+        Integer version = mVersions.get(path);
+        int v = (version == null) ? 0 : version.intValue();
+        long length = isFolder ? 0 : (path.hashCode() & 0x7FFFFFFF) % MAX_GENERATED_LENGTH;
+        return new Entry(path, isFolder, length, BASE_TIMESTAMP + v * 1000L, etagFor(path, v));
+    }
+
+    private static String etagFor(String path, int version) {
+        return Integer.toHexString(path.hashCode()) + "v" + version;
+    }
+
+    private String folderPathOf(int index) {
+        // folders are numbered level by level, starting with the root folder as 0
+        int level = 0;
+        int levelSize = 1;
+        while (index >= levelSize) {
+            index -= levelSize;
+            levelSize *= mFanOut;
+            level++;
+        }
+        StringBuilder path = new StringBuilder();
+        for (int i=0; i<level; i++) {
+            path.insert(0, FOLDER_PREFIX + (index % mFanOut) + "/");
+            index /= mFanOut;
+        }
+        return "/" + path.toString();
+    }
+
+    private static int levelOf(String folderPath) {
+        int level = -1;
+        for (int i=0; i<folderPath.length(); i++) {
+            if (folderPath.charAt(i) == '/') {
+                level++;
+            }
+        }
+        return level;
+    }
+
+    private static String parentOf(String path) {
+        if (path.equals("/")) {
+            return null;
+        }
+        String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        return trimmed.substring(0, trimmed.lastIndexOf('/') + 1);
+    }
+
+    private static int parseIndex(String segment, String prefix, String suffix) {
+        if (!segment.startsWith(prefix) || !segment.endsWith(suffix) ||
+                segment.length() <= prefix.length() + suffix.length()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(
+                    segment.substring(prefix.length(), segment.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
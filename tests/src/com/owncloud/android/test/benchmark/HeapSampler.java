@@ -0,0 +1,77 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test.benchmark;
+
+/**
+ * Samples periodically the heap in use by the process to find its peak value during a 
+ * benchmark run.
+ */
+public class HeapSampler extends Thread {
+
+    private static final long SAMPLING_PERIOD = 20; // ms
+
+    private volatile boolean mSampling = true;
+    private long mPeakHeap = 0;
+
+
+    public HeapSampler() {
+        super("HeapSampler");
+        setDaemon(true);
+    }
+
+
+    @Override
+    public void run() {
+        while (mSampling) {
+            sample();
+            try {
+                Thread.sleep(SAMPLING_PERIOD);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * Stops sampling.
+     * 
+     * @return      Peak of heap in use, in bytes, since the sampler was started.
+     */
+    public long finish() {
+        mSampling = false;
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            // nothing to do
+        }
+        sample();
+        return mPeakHeap;
+    }
+
+
+    private synchronized void sample() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        if (used > mPeakHeap) {
+            mPeakHeap = used;
+        }
+    }
+
+}
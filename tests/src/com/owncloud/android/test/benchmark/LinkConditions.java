@@ -0,0 +1,214 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test.benchmark;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Emulates the conditions of a network link in the streams of a {@link WebdavStandInServer}.
+ *
+ * Conditions are applied in process, in the side of the server:
+ *  - latency: every request waits a round trip before it is served.
+ *  - bandwidth: bytes received and sent are limited to a rate per direction, shared by all the
+ *    connections, as in a real link.
+ *  - loss: every segment of {@link #SEGMENT_SIZE} bytes is lost with the given probability, and
+ *    stalls its stream during a retransmission timeout, as TCP does.
+ *
+ * This is an approximation good enough to compare changes in the transfer code; congestion
+ * control is not emulated.
+ */
+public class LinkConditions {
+
+    /** Size of a TCP segment in the emulated link */
+    public static final int SEGMENT_SIZE = 1460;
+
+    /** Minimum retransmission timeout, in milliseconds */
+    private static final long MIN_RETRANSMISSION_TIMEOUT = 200;
+
+    /** Link without any limitation; the loopback interface itself */
+    public static final LinkConditions LOOPBACK = new LinkConditions("loopback", 0, 0, 0);
+
+    /** Link similar to a good WiFi network with access to a server in the same country */
+    public static final LinkConditions WIFI =
+            new LinkConditions("wifi", 10, 2 * 1024 * 1024, 0.001f);
+
+    /** Link similar to a 3G mobile network */
+    public static final LinkConditions MOBILE =
+            new LinkConditions("mobile", 80, 256 * 1024, 0.01f);
+
+    /**
+     * Limits the rate of a direction of the link; tokens are bytes.
+     */
+    private static class RateLimiter {
+        private final long mRate;
+        private long mNextFree = 0;     // nanoseconds
+
+        RateLimiter(long rate) {
+            mRate = rate;
+        }
+
+        /**
+         * @return      Time to wait, in milliseconds, until the bytes pass through the link.
+         */
+        synchronized long reserve(long bytes) {
+            if (mRate <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            mNextFree = Math.max(mNextFree, now) + bytes * 1000000000L / mRate;
+            return (mNextFree - now) / 1000000L;
+        }
+    }
+
+    private final String mName;
+    private final long mLatency;
+    private final long mBandwidth;
+    private final float mLossRate;
+    private final RateLimiter mUplink;
+    private final RateLimiter mDownlink;
+    private final Random mRandom = new Random(20141019L);
+
+
+    /**
+     * @param name          Name of the conditions, for reports.
+     * @param latency       One way delay, in milliseconds.
+     * @param bandwidth     Maximum rate in every direction, in bytes per second; 0 is unlimited.
+     * @param lossRate      Probability of losing a segment, from 0 to 1.
+     */
+    public LinkConditions(String name, long latency, long bandwidth, float lossRate) {
+        mName = name;
+        mLatency = latency;
+        mBandwidth = bandwidth;
+        mLossRate = lossRate;
+        mUplink = new RateLimiter(bandwidth);
+        mDownlink = new RateLimiter(bandwidth);
+    }
+
+
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String toString() {
+        return "link=" + mName + " latencyMs=" + mLatency + " bandwidthBps=" + mBandwidth +
+                " loss=" + mLossRate;
+    }
+
+
+    /**
+     * Waits the round trip of a request and its response.
+     */
+    public void roundTrip() throws IOException {
+        pause(2 * mLatency);
+    }
+
+
+    /**
+     * @param in        Stream of the bytes received by the server.
+     * @return          Stream receiving the same bytes in the conditions of the link.
+     */
+    public InputStream wrapInput(InputStream in) {
+        if (mBandwidth <= 0 && mLossRate <= 0) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int c = super.read();
+                if (c >= 0) {
+                    transmit(mUplink, 1);
+                }
+                return c;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, Math.min(count, SEGMENT_SIZE));
+                if (read > 0) {
+                    transmit(mUplink, read);
+                }
+                return read;
+            }
+        };
+    }
+
+
+    /**
+     * @param out       Stream of the bytes sent by the server.
+     * @return          Stream sending the same bytes in the conditions of the link.
+     */
+    public OutputStream wrapOutput(OutputStream out) {
+        if (mBandwidth <= 0 && mLossRate <= 0) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                transmit(mDownlink, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                while (count > 0) {
+                    int segment = Math.min(count, SEGMENT_SIZE);
+                    transmit(mDownlink, segment);
+                    out.write(buffer, offset, segment);
+                    offset += segment;
+                    count -= segment;
+                }
+            }
+        };
+    }
+
+
+    private void transmit(RateLimiter direction, int bytes) throws IOException {
+        long wait = direction.reserve(bytes);
+        if (mLossRate > 0 && bytes >= SEGMENT_SIZE) {
+            boolean lost;
+            synchronized (mRandom) {
+                lost = mRandom.nextFloat() < mLossRate;
+            }
+            if (lost) {
+                wait += Math.max(MIN_RETRANSMISSION_TIMEOUT, 2 * mLatency);
+            }
+        }
+        pause(wait);
+    }
+
+
+    private static void pause(long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while emulating the link");
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test.benchmark;
+
+import java.util.List;
+
+import android.accounts.Account;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.OwnCloudCredentialsFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.operations.SynchronizeFolderOperation;
+
+/**
+ * Measures the synchronization of generated remote trees against a {@link WebdavStandInServer}.
+ *
+ * Every benchmark synchronizes the full tree three times, following the same depth-first
+ * strategy as {@link com.owncloud.android.syncadapter.FileSyncAdapter}: a first time into an
+ * empty database, a second time without remote changes, and a third time after changing
+ * a fraction of the remote files.
+ *
+ * For every pass, a line tagged {@link #REPORT_TAG} is logged with the number of requests,
+ * bytes sent and received, wall time, time spent in the local database and peak heap. The
+ * number of requests is also checked against the expected upper bound, so that regressions
+ * fail the test run.
+ *
+ * Large trees are annotated as {@link LargeTest}, so they can be excluded from quick runs
+ * with the 'size' argument of InstrumentationTestRunner.
+ */
+public class SyncBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = SyncBenchmarkTest.class.getSimpleName();
+
+    public static final String REPORT_TAG = "SyncBenchmark";
+
+    private static final long SEED = 20141019L;
+
+    private WebdavStandInServer mServer;
+    private OwnCloudClient mClient;
+    private Account mAccount;
+    private TimedFileDataStorageManager mStorageManager;
+    private long mCurrentSyncTime;
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mStorageManager != null) {
+            removeLocalData();
+        }
+        if (mServer != null) {
+            mServer.stop();
+        }
+        super.tearDown();
+    }
+
+
+    @SmallTest
+    public void testSync1k() throws Exception {
+        runBenchmark(1000, 2, 4, 0.05f);
+    }
+
+    @MediumTest
+    public void testSync10k() throws Exception {
+        runBenchmark(10000, 3, 5, 0.01f);
+    }
+
+    @LargeTest
+    public void testSync100k() throws Exception {
+        runBenchmark(100000, 4, 6, 0.01f);
+    }
+
+    @LargeTest
+    public void testSync500k() throws Exception {
+        runBenchmark(500000, 4, 8, 0.001f);
+    }
+
+
+    /**
+     * Runs the three synchronization passes over a new generated tree.
+     *
+     * @param entries       Approximate number of files and folders in the tree.
+     * @param depth         Levels of folders below the root folder.
+     * @param fanOut        Number of subfolders in every folder above the last level.
+     * @param changeRate    Fraction of the files changed before the last pass.
+     */
+    private void runBenchmark(int entries, int depth, int fanOut, float changeRate)
+            throws Exception {
+        GeneratedTree tree = new GeneratedTree(entries, depth, fanOut, SEED);
+        String shape = "entries=" + tree.getEntriesCount() + " folders=" +
+                tree.getFoldersCount() + " depth=" + depth + " fanOut=" + fanOut +
+                " changeRate=" + changeRate;
+        setUpServerAndClient(tree);
+        int folders = tree.getFoldersCount();
+
+        /// first pass: nothing in the local database
+        long requests = runPass(shape, "initial");
+        assertTrue("Too many requests in initial pass: " + requests, requests <= 2 * folders);
+
+        /// second pass: no changes in the server
+        requests = runPass(shape, "unchanged");
+        assertTrue("Too many requests in unchanged pass: " + requests, requests <= folders);
+
+        /// third pass: a fraction of the files changed in the server
+        int changedFolders = tree.applyChanges(changeRate);
+        requests = runPass(shape, "changed");
+        assertTrue("Too many requests in changed pass: " + requests,
+                requests <= folders + changedFolders);
+    }
+
+
+    private void setUpServerAndClient(GeneratedTree tree) throws Exception {
+        mServer = new WebdavStandInServer(tree);
+        mServer.start();
+
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse(mServer.getBaseUrl()), getContext(), true);
+        mClient.setCredentials(
+                OwnCloudCredentialsFactory.newBasicCredentials("benchmark", "benchmark"));
+
+        mAccount = new Account(
+                "benchmark@" + Uri.parse(mServer.getBaseUrl()).getAuthority(),
+                MainApp.getAccountType());
+        mStorageManager = new TimedFileDataStorageManager(
+                mAccount, getContext().getContentResolver());
+        removeLocalData();
+    }
+
+
+    /**
+     * Synchronizes the full tree and reports the measures of the process.
+     *
+     * @return      Number of requests received by the server during the pass.
+     */
+    private long runPass(String shape, String passName) {
+        System.gc();
+        mServer.resetCounters();
+        mStorageManager.resetElapsed();
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        mCurrentSyncTime = System.currentTimeMillis();
+
+        long start = System.currentTimeMillis();
+        synchronizeFolder(mStorageManager.getFileByPath(OCFile.ROOT_PATH));
+        long wallTime = System.currentTimeMillis() - start;
+        long peakHeap = sampler.finish();
+
+        long requests = mServer.getRequestsCount();
+        Log.i(REPORT_TAG, shape +
+                " pass=" + passName +
+                " requests=" + requests +
+                " bytesSent=" + mServer.getBytesSent() +
+                " bytesReceived=" + mServer.getBytesReceived() +
+                " wallMs=" + wallTime +
+                " dbMs=" + mStorageManager.getElapsedMillis() +
+                " peakHeapKB=" + (peakHeap / 1024));
+        return requests;
+    }
+
+
+    /**
+     * Synchronizes a folder and, recursively, all the folders inside.
+     *
+     * @param folder        Folder to synchronize.
+     */
+    private void synchronizeFolder(OCFile folder) {
+        SynchronizeFolderOperation operation = new SynchronizeFolderOperation(
+                folder,
+                mCurrentSyncTime,
+                true,
+                false,
+                false,
+                mStorageManager,
+                mAccount,
+                getContext()
+        );
+        RemoteOperationResult result = operation.execute(mClient);
+        assertTrue("Synchronization of " + folder.getRemotePath() + " failed: " +
+                result.getLogMessage(), result.isSuccess());
+
+        List<OCFile> children = operation.getChildren();
+        for (OCFile child : children) {
+            if (child.isFolder()) {
+                synchronizeFolder(child);
+            }
+        }
+    }
+
+
+    private void removeLocalData() {
+        OCFile root = mStorageManager.getFileByPath(OCFile.ROOT_PATH);
+        if (root != null) {
+            mStorageManager.removeFolder(root, true, false);
+        }
+        Log.d(TAG, "Local data of " + mAccount.name + " removed");
+    }
+
+}
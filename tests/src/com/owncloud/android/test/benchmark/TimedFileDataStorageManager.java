@@ -0,0 +1,155 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test.benchmark;
+
+import java.util.Collection;
+import java.util.Vector;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+
+/**
+ * {@link FileDataStorageManager} accumulating the time spent in the accesses to the local 
+ * database done by the synchronization operations.
+ * 
+ * Only the outermost call is measured when a method calls others in the same instance.
+ * Not thread safe; a single synchronization is expected to use it at a time.
+ */
+public class TimedFileDataStorageManager extends FileDataStorageManager {
+
+    private long mElapsedNanos = 0;
+    private int mNesting = 0;
+    private long mStart;
+
+
+    public TimedFileDataStorageManager(Account account, ContentResolver cr) {
+        super(account, cr);
+    }
+
+
+    /**
+     * @return      Time spent in database accesses, in milliseconds, since the last reset.
+     */
+    public long getElapsedMillis() {
+        return mElapsedNanos / 1000000;
+    }
+
+    public void resetElapsed() {
+        mElapsedNanos = 0;
+    }
+
+
+    @Override
+    public OCFile getFileByPath(String path) {
+        enter();
+        try {
+            return super.getFileByPath(path);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public OCFile getFileById(long id) {
+        enter();
+        try {
+            return super.getFileById(id);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean fileExists(long id) {
+        enter();
+        try {
+            return super.fileExists(id);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean fileExists(String path) {
+        enter();
+        try {
+            return super.fileExists(path);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public Vector<OCFile> getFolderContent(OCFile f) {
+        enter();
+        try {
+            return super.getFolderContent(f);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean saveFile(OCFile file) {
+        enter();
+        try {
+            return super.saveFile(file);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void saveFolder(
+            OCFile folder, Collection<OCFile> updatedFiles, Collection<OCFile> filesToRemove
+        ) {
+        enter();
+        try {
+            super.saveFolder(folder, updatedFiles, filesToRemove);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean removeFolder(OCFile folder, boolean removeDBData, boolean removeLocalContent) {
+        enter();
+        try {
+            return super.removeFolder(folder, removeDBData, removeLocalContent);
+        } finally {
+            exit();
+        }
+    }
+
+
+    private void enter() {
+        if (mNesting++ == 0) {
+            mStart = System.nanoTime();
+        }
+    }
+
+    private void exit() {
+        if (--mNesting == 0) {
+            mElapsedNanos += System.nanoTime() - mStart;
+        }
+    }
+
+}
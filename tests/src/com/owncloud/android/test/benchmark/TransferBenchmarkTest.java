@@ -0,0 +1,354 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import android.accounts.Account;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.files.services.FileUploader;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.OwnCloudCredentialsFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
+import com.owncloud.android.operations.DownloadFileOperation;
+import com.owncloud.android.operations.UploadFileOperation;
+import com.owncloud.android.utils.FileStorageUtils;
+
+/**
+ * Measures uploads and downloads of single files against a {@link WebdavStandInServer}.
+ *
+ * Every benchmark transfers files of several sizes through the operations used by the app:
+ * {@link UploadFileOperation}, in a single request and in chunks, and
+ * {@link DownloadFileOperation}, in a single stream and in segments. The server emulates the
+ * conditions of a network link, see {@link LinkConditions}.
+ *
+ * For every transfer, a line tagged {@link #REPORT_TAG} is logged with the wall time,
+ * throughput, CPU time of the transferring thread per MB, and the memory allocated by the
+ * transferring thread, per MB and per second. Segments of downloads run in other threads, so
+ * their CPU time and memory are not included.
+ *
+ * Slow links are only measured with small files. The largest files need free space for
+ * the file uploaded or downloaded, and are skipped with a warning if not available; they are
+ * annotated as {@link LargeTest}, so they can be excluded from quick runs with the 'size'
+ * argument of InstrumentationTestRunner.
+ */
+public class TransferBenchmarkTest extends AndroidTestCase {
+
+    public static final String REPORT_TAG = "TransferBenchmark";
+
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+    private static final long GB = 1024 * MB;
+
+    private static final String MODE_UPLOAD = "upload";
+    private static final String MODE_CHUNKED_UPLOAD = "upload-chunked";
+    private static final String MODE_DOWNLOAD = "download";
+    private static final String MODE_SEGMENTED_DOWNLOAD = "download-segmented";
+
+    private static final String LOCAL_FILE_PREFIX = "transfer-benchmark-";
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private GeneratedTree mTree;
+    private WebdavStandInServer mServer;
+    private OwnCloudClient mClient;
+    private Account mAccount;
+    private File mLocalFolder;
+    private int mTransfersCount = 0;
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        if (mLocalFolder != null) {
+            File[] files = mLocalFolder.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().startsWith(LOCAL_FILE_PREFIX)) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        super.tearDown();
+    }
+
+
+    @SmallTest
+    public void testSmallFilesLoopback() throws Exception {
+        runBenchmark(LinkConditions.LOOPBACK, new long[] { 1 * KB, 64 * KB, 1 * MB });
+    }
+
+    @MediumTest
+    public void testMediumFilesLoopback() throws Exception {
+        runBenchmark(LinkConditions.LOOPBACK, new long[] { 16 * MB, 64 * MB });
+    }
+
+    @MediumTest
+    public void testWifi() throws Exception {
+        runBenchmark(LinkConditions.WIFI, new long[] { 1 * KB, 1 * MB, 8 * MB });
+    }
+
+    @MediumTest
+    public void testMobile() throws Exception {
+        runBenchmark(LinkConditions.MOBILE, new long[] { 1 * KB, 64 * KB, 2 * MB });
+    }
+
+    @LargeTest
+    public void testLargeFilesLoopback() throws Exception {
+        runBenchmark(LinkConditions.LOOPBACK, new long[] { 256 * MB, 1 * GB });
+    }
+
+    @LargeTest
+    public void testHugeFileLoopback() throws Exception {
+        runBenchmark(LinkConditions.LOOPBACK, new long[] { 4 * GB });
+    }
+
+
+    /**
+     * Uploads, plain and chunked, and downloads files of the given sizes.
+     *
+     * Chunked uploads are only measured for files larger than a chunk, and segmented downloads
+     * for files large enough to be downloaded in segments.
+     *
+     * @param link      Conditions of the link to emulate.
+     * @param sizes     Sizes of the files to transfer, in bytes.
+     */
+    private void runBenchmark(LinkConditions link, long[] sizes) throws Exception {
+        setUpServerAndClient(link);
+        for (long size : sizes) {
+            if (!hasSpaceFor(size)) {
+                Log.w(REPORT_TAG, link + " size=" + size + " skipped; not enough free space");
+                continue;
+            }
+            File localFile = createLocalFile(size);
+            try {
+                runUpload(link, localFile, false);
+                if (size > ChunkedUploadRemoteFileOperation.CHUNK_SIZE) {
+                    runUpload(link, localFile, true);
+                }
+            } finally {
+                localFile.delete();
+            }
+            runDownload(link, size, 1);
+            if (size >= DownloadFileOperation.MIN_SEGMENTED_LENGTH) {
+                runDownload(link, size, DownloadFileOperation.MAX_SEGMENTS);
+            }
+        }
+    }
+
+
+    private void setUpServerAndClient(LinkConditions link) throws Exception {
+        mTree = new GeneratedTree(0, 0, 1, 0);     // empty root folder
+        mServer = new WebdavStandInServer(mTree, link);
+        mServer.start();
+
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse(mServer.getBaseUrl()), getContext(), true);
+        mClient.setCredentials(
+                OwnCloudCredentialsFactory.newBasicCredentials("benchmark", "benchmark"));
+
+        mAccount = new Account(
+                "benchmark@" + Uri.parse(mServer.getBaseUrl()).getAuthority(),
+                MainApp.getAccountType());
+
+        mLocalFolder = getContext().getExternalCacheDir();
+        if (mLocalFolder == null) {
+            mLocalFolder = getContext().getCacheDir();
+        }
+    }
+
+
+    private void runUpload(LinkConditions link, File localFile, boolean chunked) {
+        String remotePath = OCFile.ROOT_PATH + "upload" + (mTransfersCount++) + ".bin";
+        OCFile file = new OCFile(remotePath);
+        file.setStoragePath(localFile.getAbsolutePath());
+        file.setFileLength(localFile.length());
+        file.setMimetype("application/octet-stream");
+        UploadFileOperation upload = new UploadFileOperation(
+                mAccount,
+                file,
+                chunked,
+                false,
+                false,
+                FileUploader.LOCAL_BEHAVIOUR_FORGET,
+                getContext()
+        );
+
+        Measure measure = new Measure();
+        RemoteOperationResult result = upload.execute(mClient);
+        measure.finish();
+
+        assertTrue("Upload of " + localFile.length() + " bytes failed: " +
+                result.getLogMessage(), result.isSuccess());
+        GeneratedTree.Entry entry = mTree.getEntry(remotePath);
+        assertNotNull("Uploaded file not found in server", entry);
+        assertEquals("Wrong length of uploaded file", localFile.length(), entry.mLength);
+
+        measure.report(link, chunked ? MODE_CHUNKED_UPLOAD : MODE_UPLOAD, localFile.length());
+    }
+
+
+    private void runDownload(LinkConditions link, long size, int segments) throws IOException {
+        String remotePath = OCFile.ROOT_PATH + "download" + (mTransfersCount++) + ".bin";
+        mTree.putFile(remotePath, size);
+        OCFile file = new OCFile(remotePath);
+        file.setFileLength(size);
+        file.setMimetype("application/octet-stream");
+        DownloadFileOperation download = new DownloadFileOperation(mAccount, file);
+        download.setSegments(segments);
+
+        Measure measure = new Measure();
+        RemoteOperationResult result = download.execute(mClient);
+        measure.finish();
+
+        File downloaded = new File(download.getSavePath());
+        try {
+            assertTrue("Download of " + size + " bytes failed: " + result.getLogMessage(),
+                    result.isSuccess());
+            assertEquals("Wrong length of downloaded file", size, downloaded.length());
+            checkContents(downloaded, remotePath);
+        } finally {
+            downloaded.delete();
+        }
+
+        measure.report(link, (segments > 1) ? MODE_SEGMENTED_DOWNLOAD : MODE_DOWNLOAD, size);
+    }
+
+
+    /**
+     * Measures of the current thread during a single transfer.
+     */
+    private class Measure {
+        private final long mStart;
+        private final long mStartCpu;
+        private final long mRequestsAtStart;
+        private long mWallTime;
+        private long mCpuTime;
+        private long mAllocatedBytes;
+        private long mAllocationsCount;
+        private long mRequests;
+
+        Measure() {
+            System.gc();
+            mRequestsAtStart = mServer.getRequestsCount();
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            mStartCpu = Debug.threadCpuTimeNanos();
+            mStart = System.currentTimeMillis();
+        }
+
+        void finish() {
+            mWallTime = Math.max(1, System.currentTimeMillis() - mStart);
+            mCpuTime = Debug.threadCpuTimeNanos() - mStartCpu;
+            Debug.stopAllocCounting();
+            mAllocatedBytes = Debug.getThreadAllocSize();
+            mAllocationsCount = Debug.getThreadAllocCount();
+            mRequests = mServer.getRequestsCount() - mRequestsAtStart;
+        }
+
+        void report(LinkConditions link, String mode, long size) {
+            double megabytes = Math.max((double) size / MB, 1.0 / MB);
+            Log.i(REPORT_TAG, link +
+                    " mode=" + mode +
+                    " size=" + size +
+                    " requests=" + mRequests +
+                    " wallMs=" + mWallTime +
+                    " throughputKBps=" + (size * 1000 / mWallTime / KB) +
+                    " cpuMsPerMB=" + String.format("%.2f", mCpuTime / 1000000.0 / megabytes) +
+                    " allocKBPerMB=" + String.format("%.2f", mAllocatedBytes / 1024.0 / megabytes) +
+                    " allocKBps=" + (mAllocatedBytes * 1000 / mWallTime / KB) +
+                    " allocCount=" + mAllocationsCount);
+        }
+    }
+
+
+    /**
+     * Creates a local file with random contents, so that no layer can take advantage of
+     * sparse or repeated contents.
+     */
+    private File createLocalFile(long size) throws IOException {
+        File file = new File(mLocalFolder, LOCAL_FILE_PREFIX + size + ".bin");
+        byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        new Random(size).nextBytes(buffer);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            long written = 0;
+            while (written < size) {
+                int count = (int) Math.min(buffer.length, size - written);
+                out.write(buffer, 0, count);
+                written += count;
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+
+    /**
+     * Checks the first and last blocks of a downloaded file against the contents served.
+     */
+    private void checkContents(File downloaded, String remotePath) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(downloaded, "r");
+        try {
+            byte[] block = new byte[4096];
+            long[] offsets = { 0, Math.max(0, raf.length() - block.length) };
+            for (long offset : offsets) {
+                raf.seek(offset);
+                int read = raf.read(block);
+                for (int i=0; i<read; i++) {
+                    assertEquals("Wrong content at " + (offset + i),
+                            GeneratedTree.contentByteAt(remotePath, offset + i), block[i]);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * @return      'True' when there is space for the local file to upload and the temporal
+     *              and final copies of the download, one at a time, with some margin.
+     */
+    private boolean hasSpaceFor(long size) {
+        long margin = 64 * MB;
+        return mLocalFolder.getUsableSpace() > size + margin &&
+                FileStorageUtils.getUsableSpace(mAccount.name) > size + margin;
+    }
+
+}
@@ -0,0 +1,603 @@
+/* ownCloud Android client application
+ *   Copyright (C) 2012-2014 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Minimal HTTP server standing in for an ownCloud server in benchmarks.
+ *
+ * Serves the WebDAV and status requests needed to synchronize and transfer the files of a
+ * {@link GeneratedTree}: PROPFIND with depth 0 and 1, GET (with single byte ranges), HEAD,
+ * PUT and MKCOL under {@link #WEBDAV_PATH}, and GET on {@link #STATUS_PATH}. GET on
+ * {@link #SHARES_PATH} answers with an empty list of shares, so that synchronizations
+ * refreshing the shares of the account complete without errors.
+ *
+ * Listens only in the loopback interface and keeps connections alive, as a real server does.
+ * Requests and bytes received and sent are counted. The conditions of a slower network can be
+ * emulated with {@link LinkConditions}.
+ *
+ * Chunked uploads are assembled as ownCloud does: the target file is created when all its
+ * chunks were received.
+ */
+public class WebdavStandInServer {
+
+    private static final String TAG = WebdavStandInServer.class.getSimpleName();
+
+    public static final String WEBDAV_PATH = "/remote.php/webdav";
+    public static final String STATUS_PATH = "/status.php";
+    public static final String SHARES_PATH = "/ocs/v1.php/apps/files_sharing/api/v1/shares";
+
+    private static final String STATUS_RESPONSE =
+            "{\"installed\":\"true\",\"version\":\"7.0.2.1\",\"versionstring\":\"7.0.2\"," +
+            "\"edition\":\"\"}";
+
+    private static final String EMPTY_SHARES_RESPONSE =
+            "<?xml version=\"1.0\"?>\n<ocs><meta><status>ok</status><statuscode>100" +
+            "</statuscode><message/></meta><data/></ocs>";
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final GeneratedTree mTree;
+    private final LinkConditions mLinkConditions;
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+    private volatile boolean mRunning;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    /** Bytes and chunks received of every chunked upload in progress, by transfer id */
+    private final Map<String, long[]> mChunkedUploads = new HashMap<String, long[]>();
+
+
+    public WebdavStandInServer(GeneratedTree tree) {
+        this(tree, LinkConditions.LOOPBACK);
+    }
+
+
+    /**
+     * @param tree              Remote tree to serve.
+     * @param linkConditions    Conditions of the network link to emulate.
+     */
+    public WebdavStandInServer(GeneratedTree tree, LinkConditions linkConditions) {
+        mTree = tree;
+        mLinkConditions = linkConditions;
+    }
+
+
+    /**
+     * Starts listening in a random free port of the loopback interface.
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+        mRunning = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+        Log.d(TAG, "Listening at " + getBaseUrl());
+    }
+
+
+    public void stop() {
+        mRunning = false;
+        try {
+            if (mServerSocket != null) {
+                mServerSocket.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Exception closing server socket (ignoring)", e);
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * @return      URL to the stand-in server, as expected for the base URL of an account.
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    public long getRequestsCount() {
+        return mRequests.get();
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public void resetCounters() {
+        mRequests.set(0);
+        mBytesReceived.set(0);
+        mBytesSent.set(0);
+    }
+
+
+    /**
+     * Hook to modify the streams of every accepted connection; default behaviour
+     * applies the conditions of the link.
+     */
+    protected InputStream wrapInput(InputStream in) {
+        return mLinkConditions.wrapInput(in);
+    }
+
+    protected OutputStream wrapOutput(OutputStream out) {
+        return mLinkConditions.wrapOutput(out);
+    }
+
+
+    private void acceptConnections() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveConnection(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (mRunning) {
+                    Log.e(TAG, "Exception accepting connection", e);
+                }
+            }
+        }
+    }
+
+
+    private void serveConnection(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = wrapInput(new CountingInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(
+                    wrapOutput(new CountingOutputStream(socket.getOutputStream())), BUFFER_SIZE);
+            boolean keepAlive = true;
+            while (keepAlive && mRunning) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    break;
+                }
+                if (requestLine.length() == 0) {
+                    continue;
+                }
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                mRequests.incrementAndGet();
+                mLinkConditions.roundTrip();
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                serveRequest(requestLine, headers, in, out);
+                out.flush();
+            }
+
+        } catch (SocketException e) {
+            // connection closed by the client
+        } catch (IOException e) {
+            Log.d(TAG, "Exception serving connection", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+
+    private void serveRequest(String requestLine, Map<String, String> headers, InputStream in,
+            OutputStream out) throws IOException {
+
+        String[] parts = requestLine.split(" ");
+        String method = parts[0];
+        String uri = (parts.length > 1) ? parts[1] : "/";
+        int query = uri.indexOf('?');
+        if (query >= 0) {
+            uri = uri.substring(0, query);
+        }
+        String path = URLDecoder.decode(uri, "UTF-8");
+
+        if ("100-continue".equalsIgnoreCase(headers.get("expect"))) {
+            out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+        }
+        long received = readBody(in, headers);
+
+        if (path.equals(STATUS_PATH)) {
+            sendResponse(out, 200, "OK", "application/json", STATUS_RESPONSE.getBytes("UTF-8"),
+                    null);
+            return;
+        }
+        if (path.equals(SHARES_PATH) && "GET".equals(method)) {
+            sendResponse(out, 200, "OK", "text/xml; charset=utf-8",
+                    EMPTY_SHARES_RESPONSE.getBytes("UTF-8"), null);
+            return;
+        }
+        if (!path.startsWith(WEBDAV_PATH)) {
+            sendResponse(out, 404, "Not Found", null, null, null);
+            return;
+        }
+        String remotePath = path.substring(WEBDAV_PATH.length());
+        if (remotePath.length() == 0) {
+            remotePath = "/";
+        }
+
+        if ("PROPFIND".equals(method)) {
+            servePropfind(remotePath, headers.get("depth"), out);
+
+        } else if ("GET".equals(method) || "HEAD".equals(method)) {
+            serveGet(remotePath, headers.get("range"), "HEAD".equals(method), out);
+
+        } else if ("PUT".equals(method)) {
+            if (headers.containsKey("oc-chunked")) {
+                remotePath = receiveChunk(remotePath, received);
+                if (remotePath == null) {
+                    sendResponse(out, 201, "Created", null, null, null);
+                    return;
+                }
+            } else {
+                mTree.putFile(remotePath, received);
+            }
+            GeneratedTree.Entry entry = mTree.getEntry(remotePath);
+            Map<String, String> extra = new HashMap<String, String>();
+            extra.put("ETag", "\"" + entry.mEtag + "\"");
+            sendResponse(out, 201, "Created", null, null, extra);
+
+        } else if ("MKCOL".equals(method)) {
+            String folderPath = remotePath.endsWith("/") ? remotePath : remotePath + "/";
+            String filePath = folderPath.substring(0, folderPath.length() - 1);
+            GeneratedTree.Entry parent = mTree.getEntry(
+                    folderPath.substring(0, filePath.lastIndexOf('/') + 1));
+            if (mTree.getEntry(folderPath) != null || mTree.getEntry(filePath) != null) {
+                sendResponse(out, 405, "Method Not Allowed", null, null, null);
+            } else if (parent == null || !parent.mIsFolder) {
+                sendResponse(out, 409, "Conflict", null, null, null);
+            } else {
+                mTree.putFolder(folderPath);
+                sendResponse(out, 201, "Created", null, null, null);
+            }
+
+        } else {
+            sendResponse(out, 501, "Not Implemented", null, null, null);
+        }
+    }
+
+
+    /**
+     * Accounts a chunk received, named as "<path>-chunking-<id>-<count>-<index>".
+     *
+     * @return      Path of the target file, if all its chunks were received; null otherwise.
+     */
+    private String receiveChunk(String chunkPath, long length) {
+        int mark = chunkPath.lastIndexOf("-chunking-");
+        String[] parts = chunkPath.substring(mark + "-chunking-".length()).split("-");
+        String targetPath = chunkPath.substring(0, mark);
+        String transferId = targetPath + "-" + parts[0];
+        int chunksCount = Integer.parseInt(parts[1]);
+        synchronized (mChunkedUploads) {
+            long[] progress = mChunkedUploads.get(transferId);
+            if (progress == null) {
+                progress = new long[2];
+                mChunkedUploads.put(transferId, progress);
+            }
+            progress[0] += length;
+            progress[1]++;
+            if (progress[1] < chunksCount) {
+                return null;
+            }
+            mChunkedUploads.remove(transferId);
+            mTree.putFile(targetPath, progress[0]);
+            return targetPath;
+        }
+    }
+
+
+    private void servePropfind(String remotePath, String depth, OutputStream out)
+            throws IOException {
+        GeneratedTree.Entry entry = mTree.getEntry(remotePath);
+        if (entry == null) {
+            sendResponse(out, 404, "Not Found", null, null, null);
+            return;
+        }
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        xml.append("<d:multistatus xmlns:d=\"DAV:\" xmlns:s=\"http://sabredav.org/ns\" " +
+                "xmlns:oc=\"http://owncloud.org/ns\">");
+        appendResponse(xml, entry);
+        if (entry.mIsFolder && "1".equals(depth)) {
+            List<GeneratedTree.Entry> children = mTree.getChildren(entry.mPath);
+            for (GeneratedTree.Entry child : children) {
+                appendResponse(xml, child);
+            }
+        }
+        xml.append("</d:multistatus>");
+        sendResponse(out, 207, "Multi-Status", "application/xml; charset=utf-8",
+                xml.toString().getBytes("UTF-8"), null);
+    }
+
+
+    private void appendResponse(StringBuilder xml, GeneratedTree.Entry entry) {
+        xml.append("<d:response><d:href>").append(WEBDAV_PATH).append(entry.mPath)
+            .append("</d:href><d:propstat><d:prop>");
+        xml.append("<d:getlastmodified>").append(formatDate(entry.mModified))
+            .append("</d:getlastmodified>");
+        xml.append("<d:getetag>\"").append(entry.mEtag).append("\"</d:getetag>");
+        xml.append("<oc:id>").append(Integer.toHexString(entry.mPath.hashCode()))
+            .append("ocstandin</oc:id>");
+        if (entry.mIsFolder) {
+            xml.append("<d:resourcetype><d:collection/></d:resourcetype>");
+            xml.append("<oc:permissions>RDNVCK</oc:permissions>");
+        } else {
+            xml.append("<d:resourcetype/>");
+            xml.append("<d:getcontentlength>").append(entry.mLength)
+                .append("</d:getcontentlength>");
+            xml.append("<d:getcontenttype>application/octet-stream</d:getcontenttype>");
+            xml.append("<oc:permissions>RDNVW</oc:permissions>");
+        }
+        xml.append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>");
+    }
+
+
+    private void serveGet(String remotePath, String range, boolean headOnly, OutputStream out)
+            throws IOException {
+        GeneratedTree.Entry entry = mTree.getEntry(remotePath);
+        if (entry == null || entry.mIsFolder) {
+            sendResponse(out, 404, "Not Found", null, null, null);
+            return;
+        }
+        long start = 0;
+        long end = entry.mLength - 1;
+        int status = 200;
+        String reason = "OK";
+        Map<String, String> extra = new HashMap<String, String>();
+        extra.put("ETag", "\"" + entry.mEtag + "\"");
+        extra.put("Last-Modified", formatDate(entry.mModified));
+        extra.put("Accept-Ranges", "bytes");
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            try {
+                if (bounds[0].length() > 0) {
+                    start = Long.parseLong(bounds[0]);
+                    if (bounds[1].length() > 0) {
+                        end = Math.min(end, Long.parseLong(bounds[1]));
+                    }
+                } else {
+                    start = Math.max(0, entry.mLength - Long.parseLong(bounds[1]));
+                }
+            } catch (NumberFormatException e) {
+                start = 0;
+                end = entry.mLength - 1;
+            }
+            if (start > end || start >= entry.mLength) {
+                extra.put("Content-Range", "bytes */" + entry.mLength);
+                sendResponse(out, 416, "Requested Range Not Satisfiable", null, null, extra);
+                return;
+            }
+            status = 206;
+            reason = "Partial Content";
+            extra.put("Content-Range", "bytes " + start + "-" + end + "/" + entry.mLength);
+        }
+
+        long length = end - start + 1;
+        writeHeaders(out, status, reason, "application/octet-stream", length, extra);
+        if (!headOnly) {
+            // contents repeat every 256 bytes, and the buffer size is a multiple of 256, so the
+            // same buffer is valid for the whole range; this keeps the server out of the way
+            // of the client with large files
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int i=0; i<buffer.length; i++) {
+                buffer[i] = GeneratedTree.contentByteAt(entry.mPath, start + i);
+            }
+            long position = start;
+            while (position <= end) {
+                int count = (int) Math.min(buffer.length, end - position + 1);
+                out.write(buffer, 0, count);
+                position += count;
+            }
+        }
+    }
+
+
+    private void sendResponse(OutputStream out, int status, String reason, String contentType,
+            byte[] body, Map<String, String> extraHeaders) throws IOException {
+        writeHeaders(out, status, reason, contentType, (body == null) ? 0 : body.length,
+                extraHeaders);
+        if (body != null) {
+            out.write(body);
+        }
+    }
+
+
+    private void writeHeaders(OutputStream out, int status, String reason, String contentType,
+            long contentLength, Map<String, String> extraHeaders) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        headers.append("Date: ").append(formatDate(System.currentTimeMillis())).append("\r\n");
+        headers.append("Server: ownCloud stand-in\r\n");
+        headers.append("Connection: keep-alive\r\n");
+        if (contentType != null) {
+            headers.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        headers.append("Content-Length: ").append(contentLength).append("\r\n");
+        if (extraHeaders != null) {
+            for (Map.Entry<String, String> header : extraHeaders.entrySet()) {
+                headers.append(header.getKey()).append(": ").append(header.getValue())
+                    .append("\r\n");
+            }
+        }
+        headers.append("\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+    }
+
+
+    /**
+     * Reads and discards the body of a request.
+     *
+     * @return      Length of the body.
+     */
+    private long readBody(InputStream in, Map<String, String> headers) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            String sizeLine;
+            while ((sizeLine = readLine(in)) != null) {
+                int semicolon = sizeLine.indexOf(';');
+                long chunkSize = Long.parseLong(
+                        (semicolon >= 0) ? sizeLine.substring(0, semicolon).trim() :
+                            sizeLine.trim(), 16);
+                if (chunkSize == 0) {
+                    while ((sizeLine = readLine(in)) != null && sizeLine.length() > 0) {
+                        // trailers
+                    }
+                    break;
+                }
+                total += skipFully(in, chunkSize, buffer);
+                readLine(in);   // CRLF after chunk
+            }
+        } else if (headers.containsKey("content-length")) {
+            total = skipFully(in, Long.parseLong(headers.get("content-length")), buffer);
+        }
+        return total;
+    }
+
+
+    private static long skipFully(InputStream in, long length, byte[] buffer)
+            throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Unexpected end of request body");
+            }
+            remaining -= read;
+        }
+        return length;
+    }
+
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int last = line.length() - 1;
+                if (last >= 0 && line.charAt(last) == '\r') {
+                    line.setLength(last);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return (line.length() > 0) ? line.toString() : null;
+    }
+
+
+    private static String formatDate(long timestamp) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(timestamp));
+    }
+
+
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(new BufferedInputStream(in, BUFFER_SIZE));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) {
+                mBytesReceived.incrementAndGet();
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mBytesReceived.addAndGet(read);
+            }
+            return read;
+        }
+    }
+
+
+    private class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mBytesSent.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+            mBytesSent.addAndGet(count);
+        }
+    }
+
+}